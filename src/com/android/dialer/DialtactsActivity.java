@@ -93,6 +93,8 @@ import com.android.phone.common.animation.AnimationListenerAdapter;
 
 import junit.framework.Assert;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -578,6 +580,14 @@ public class DialtactsActivity extends TransactionSafeActivity implements View.O
         mStateSaved = true;
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mDialerDatabaseHelper != null) {
+            mDialerDatabaseHelper.getSmartDialMetrics().dump(prefix, writer);
+        }
+    }
+
     @Override
     public void onAttachFragment(Fragment fragment) {
         if (fragment instanceof DialpadFragment) {
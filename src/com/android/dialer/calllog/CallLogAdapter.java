@@ -61,14 +61,11 @@ import com.android.dialer.voicemail.VoicemailPlaybackPresenter;
 
 import com.google.common.annotations.VisibleForTesting;
 
-import java.util.HashMap;
-
 /**
  * Adapter class to fill in data for the Call Log.
  */
 public class CallLogAdapter extends GroupingListAdapter
-        implements CallLogGroupBuilder.GroupCreator,
-                VoicemailPlaybackPresenter.OnVoicemailDeletedListener {
+        implements VoicemailPlaybackPresenter.OnVoicemailDeletedListener {
 
     /** Interface used to initiate a refresh of the content. */
     public interface CallFetcher {
@@ -112,18 +109,13 @@ public class CallLogAdapter extends GroupingListAdapter
     private long mCurrentlyExpandedRowId = NO_EXPANDED_LIST_ITEM;
 
     /**
-     *  Hashmap, keyed by call Id, used to track the day group for a call.  As call log entries are
-     *  put into the primary call groups in {@link com.android.dialer.calllog.CallLogGroupBuilder},
-     *  they are also assigned a secondary "day group".  This hashmap tracks the day group assigned
-     *  to all calls in the call log.  This information is used to trigger the display of a day
-     *  group header above the call log entry at the start of a day group.
-     *  Note: Multiple calls are grouped into a single primary "call group" in the call log, and
-     *  the cursor used to bind rows includes all of these calls.  When determining if a day group
-     *  change has occurred it is necessary to look at the last entry in the call log to determine
-     *  its day group.  This hashmap provides a means of determining the previous day group without
-     *  having to reverse the cursor to the start of the previous day call log entry.
+     * The groups of the current cursor. As call log entries are put into the primary call groups
+     * in {@link com.android.dialer.calllog.CallLogGroupBuilder}, they are also assigned a secondary
+     * "day group", which is used to trigger the display of a day group header above the call log
+     * entry at the start of a day group. The day groups are stored by cursor position, so that
+     * the day group of the previous call is found without moving the cursor.
      */
-    private HashMap<Long,Integer> mDayGroups = new HashMap<Long, Integer>();
+    private CallLogGroups mGroups;
 
     private boolean mLoading = true;
 
@@ -137,8 +129,12 @@ public class CallLogAdapter extends GroupingListAdapter
     /** Cache for repeated requests to TelecomManager. */
     protected final TelecomCallLogCache mTelecomCallLogCache;
 
-    /** Helper to group call log entries. */
+    /**
+     * Helper to group call log entries, for the cursors which were not grouped when fetched by
+     * {@link CallLogQueryHandler}.
+     */
     private final CallLogGroupBuilder mCallLogGroupBuilder;
+    private final CallLogGroups.Collector mGroupCollector = new CallLogGroups.Collector();
 
     /**
      * The OnClickListener used to expand or collapse the action buttons of a call log entry.
@@ -325,7 +321,7 @@ public class CallLogAdapter extends GroupingListAdapter
                 new PhoneCallDetailsHelper(mContext, resources, mTelecomCallLogCache);
         mCallLogListItemHelper =
                 new CallLogListItemHelper(phoneCallDetailsHelper, resources, mTelecomCallLogCache);
-        mCallLogGroupBuilder = new CallLogGroupBuilder(this);
+        mCallLogGroupBuilder = new CallLogGroupBuilder(mGroupCollector);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         maybeShowVoicemailPromoCard();
     }
@@ -382,7 +378,18 @@ public class CallLogAdapter extends GroupingListAdapter
 
     @Override
     protected void addGroups(Cursor cursor) {
-        mCallLogGroupBuilder.addGroups(cursor);
+        CallLogGroups groups = null;
+        if (cursor instanceof CallLogPagesCursor) {
+            groups = ((CallLogPagesCursor) cursor).getGroups();
+        }
+        if (groups == null) {
+            mCallLogGroupBuilder.addGroups(cursor);
+            groups = mGroupCollector.build();
+        }
+        mGroups = groups;
+        for (int group = 0; group < groups.getGroupCount(); group++) {
+            addGroup(groups.getGroupPosition(group), groups.getGroupSize(group), false);
+        }
     }
 
     @Override
@@ -542,8 +549,8 @@ public class CallLogAdapter extends GroupingListAdapter
         views.primaryActionView.setVisibility(View.VISIBLE);
 
         // Check if the day group has changed and display a header if necessary.
-        int currentGroup = getDayGroupForCall(views.rowId);
-        int previousGroup = getPreviousDayGroup(c);
+        int currentGroup = mGroups.getDayGroup(c.getPosition());
+        int previousGroup = mGroups.getDayGroup(c.getPosition() - 1);
         if (currentGroup != previousGroup) {
             views.dayGroupHeader.setVisibility(View.VISIBLE);
             views.dayGroupHeader.setText(getGroupDescription(currentGroup));
@@ -610,39 +617,6 @@ public class CallLogAdapter extends GroupingListAdapter
         mCurrentlyExpandedPosition = RecyclerView.NO_POSITION;
     }
 
-    /**
-     * Retrieves the day group of the previous call in the call log.  Used to determine if the day
-     * group has changed and to trigger display of the day group text.
-     *
-     * @param cursor The call log cursor.
-     * @return The previous day group, or DAY_GROUP_NONE if this is the first call.
-     */
-    private int getPreviousDayGroup(Cursor cursor) {
-        // We want to restore the position in the cursor at the end.
-        int startingPosition = cursor.getPosition();
-        int dayGroup = CallLogGroupBuilder.DAY_GROUP_NONE;
-        if (cursor.moveToPrevious()) {
-            long previousRowId = cursor.getLong(CallLogQuery.ID);
-            dayGroup = getDayGroupForCall(previousRowId);
-        }
-        cursor.moveToPosition(startingPosition);
-        return dayGroup;
-    }
-
-    /**
-     * Given a call Id, look up the day group that the call belongs to.  The day group data is
-     * populated in {@link com.android.dialer.calllog.CallLogGroupBuilder}.
-     *
-     * @param callId The call to retrieve the day group for.
-     * @return The day group for the call.
-     */
-    private int getDayGroupForCall(long callId) {
-        if (mDayGroups.containsKey(callId)) {
-            return mDayGroups.get(callId);
-        }
-        return CallLogGroupBuilder.DAY_GROUP_NONE;
-    }
-
     /**
      * Returns the call types for the given number of items in the cursor.
      * <p>
@@ -698,32 +672,6 @@ public class CallLogAdapter extends GroupingListAdapter
         mContactInfoCache.injectContactInfoForTest(number, countryIso, contactInfo);
     }
 
-    @Override
-    public void addGroup(int cursorPosition, int size, boolean expanded) {
-        super.addGroup(cursorPosition, size, expanded);
-    }
-
-    /**
-     * Stores the day group associated with a call in the call log.
-     *
-     * @param rowId The row Id of the current call.
-     * @param dayGroup The day group the call belongs in.
-     */
-    @Override
-    public void setDayGroup(long rowId, int dayGroup) {
-        if (!mDayGroups.containsKey(rowId)) {
-            mDayGroups.put(rowId, dayGroup);
-        }
-    }
-
-    /**
-     * Clears the day group associations on re-bind of the call log.
-     */
-    @Override
-    public void clearDayGroups() {
-        mDayGroups.clear();
-    }
-
     /**
      * Retrieves the call Ids represented by the current call log row.
      *
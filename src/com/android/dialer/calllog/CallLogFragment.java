@@ -82,13 +82,18 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
     private static final String KEY_LOG_LIMIT = "log_limit";
     private static final String KEY_DATE_LIMIT = "date_limit";
 
-    // No limit specified for the number of logs to show; use the CallLogQueryHandler's default.
+    // No limit specified for the number of logs to show; the CallLogQueryHandler loads them in
+    // pages as the list is scrolled.
     private static final int NO_LOG_LIMIT = -1;
     // No date-based filtering.
     private static final int NO_DATE_LIMIT = 0;
 
     private static final int READ_CALL_LOG_PERMISSION_REQUEST_CODE = 1;
 
+    // Number of items left below the last visible one when the next page of calls is fetched.
+    // Kept well below the size of the first page, which would otherwise always fetch the next one.
+    private static final int NEXT_PAGE_PREFETCH_ITEMS = 10;
+
     private RecyclerView mRecyclerView;
     private LinearLayoutManager mLayoutManager;
     private CallLogAdapter mAdapter;
@@ -229,6 +234,17 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
         boolean showListView = cursor != null && cursor.getCount() > 0;
         mRecyclerView.setVisibility(showListView ? View.VISIBLE : View.GONE);
         mEmptyListView.setVisibility(!showListView ? View.VISIBLE : View.GONE);
+        // Grouped calls may not fill the screen, in which case the list can not be scrolled.
+        // The visible items are only known once the list has been laid out with the new calls.
+        mRecyclerView.post(new Runnable() {
+            @Override
+            public void run() {
+                if (getActivity() == null || getActivity().isFinishing()) {
+                    return;
+                }
+                fetchNextPageIfNeeded();
+            }
+        });
 
         if (mScrollToTop) {
             // The smooth-scroll animation happens over a fixed time period.
@@ -289,6 +305,12 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
         mRecyclerView.setHasFixedSize(true);
         mLayoutManager = new LinearLayoutManager(getActivity());
         mRecyclerView.setLayoutManager(mLayoutManager);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                fetchNextPageIfNeeded();
+            }
+        });
         mEmptyListView = (EmptyContentView) view.findViewById(R.id.empty_list_view);
         mEmptyListView.setImage(R.drawable.empty_call_log);
         mEmptyListView.setActionClickedListener(this);
@@ -391,6 +413,17 @@ public class CallLogFragment extends Fragment implements CallLogQueryHandler.Lis
         mCallLogQueryHandler.fetchCalls(mCallTypeFilter, mDateLimit);
     }
 
+    /**
+     * Fetches the next page of calls once the list is scrolled close to the last call loaded.
+     */
+    private void fetchNextPageIfNeeded() {
+        final int lastVisiblePosition = mLayoutManager.findLastVisibleItemPosition();
+        if (lastVisiblePosition != RecyclerView.NO_POSITION
+                && lastVisiblePosition >= mAdapter.getItemCount() - NEXT_PAGE_PREFETCH_ITEMS) {
+            mCallLogQueryHandler.fetchNextPage();
+        }
+    }
+
     private void updateEmptyMessage(int filterType) {
         final Context context = getActivity();
         if (context == null) {
@@ -26,6 +26,8 @@ import com.android.contacts.common.util.PhoneNumberHelper;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Objects;
 
 /**
@@ -82,12 +84,109 @@ public class CallLogGroupBuilder {
     /** Day grouping for calls which occurred before last week. */
     public static final int DAY_GROUP_OTHER = 2;
 
-    /** Instance of the time object used for time calculations. */
-    private static final Time TIME = new Time();
+    /** The number of trailing digits {@link PhoneNumberUtils#compare} requires to match. */
+    private static final int MIN_MATCH = 7;
+
+    /** The first character of the keys of SIP addresses, see {@link #getNumberKey}. */
+    private static final char SIP_ADDRESS_KEY = 'S';
+    /** The first character of the keys of phone numbers of at least MIN_MATCH digits. */
+    private static final char PHONE_NUMBER_KEY = 'P';
+    /** The first character of the keys of shorter phone numbers. */
+    private static final char SHORT_NUMBER_KEY = 'Q';
+
+    /**
+     * Instance of the time object used for time calculations. Not shared between builders, which
+     * may run on different threads.
+     */
+    private final Time mTime = new Time();
 
     /** The object on which the groups are created. */
     private final GroupCreator mGroupCreator;
 
+    /** The calls seen by the previous run, and how they were grouped. */
+    private CallRows mPreviousRows;
+
+    /** The time of the previous run, used to tell whether its day groups are still valid. */
+    private long mPreviousTime;
+
+    /**
+     * The calls of a cursor, in cursor order, with the outcome of the comparisons made while
+     * grouping them. A later run reuses these outcomes for the calls which are still in the call
+     * log, so that only the calls next to new or deleted ones are compared again.
+     */
+    private static final class CallRows {
+        final long[] rowIds;
+        final String[] numbers;
+        /** The key of each number, see {@link #getNumberKey}. */
+        final String[] numberKeys;
+        final int[] callTypes;
+        final String[] accountComponentNames;
+        final String[] accountIds;
+        final long[] dates;
+
+        /** The row of the previous run holding the same call, or -1 for a new call. */
+        final int[] previousRows;
+
+        /** The first row of the group each row belongs to. */
+        final int[] groupFirstRows;
+
+        /** For a row starting a group, the first row of the group it was not added to, or -1. */
+        final int[] rejectingRows;
+
+        /** For a row starting a group, the day group of the group, or DAY_GROUP_NONE. */
+        final int[] groupDayGroups;
+
+        /** Maps row ids to rows, built on the first lookup which is not in cursor order. */
+        private HashMap<Long, Integer> mRowsById;
+
+        CallRows(int count) {
+            rowIds = new long[count];
+            numbers = new String[count];
+            numberKeys = new String[count];
+            callTypes = new int[count];
+            accountComponentNames = new String[count];
+            accountIds = new String[count];
+            dates = new long[count];
+            previousRows = new int[count];
+            groupFirstRows = new int[count];
+            rejectingRows = new int[count];
+            groupDayGroups = new int[count];
+            Arrays.fill(rejectingRows, -1);
+            Arrays.fill(groupDayGroups, DAY_GROUP_NONE);
+        }
+
+        /**
+         * Returns the row of the call with the given id and values, or -1 if there is none. The
+         * expected row is checked first, since calls keep their order as the call log changes.
+         */
+        int findRow(int expectedRow, long rowId, String number, int callType,
+                String accountComponentName, String accountId, long date) {
+            int row = -1;
+            if (expectedRow < rowIds.length && rowIds[expectedRow] == rowId) {
+                row = expectedRow;
+            } else {
+                if (mRowsById == null) {
+                    mRowsById = new HashMap<Long, Integer>(rowIds.length * 2);
+                    for (int i = 0; i < rowIds.length; i++) {
+                        mRowsById.put(rowIds[i], i);
+                    }
+                }
+                final Integer found = mRowsById.get(rowId);
+                if (found != null) {
+                    row = found;
+                }
+            }
+            if (row == -1 || callTypes[row] != callType || dates[row] != date
+                    || !Objects.equals(numbers[row], number)
+                    || !Objects.equals(accountComponentNames[row], accountComponentName)
+                    || !Objects.equals(accountIds[row], accountId)) {
+                /** A call whose values changed is grouped again like a new one. */
+                return -1;
+            }
+            return row;
+        }
+    }
+
     public CallLogGroupBuilder(GroupCreator groupCreator) {
         mGroupCreator = groupCreator;
     }
@@ -99,101 +198,178 @@ public class CallLogGroupBuilder {
      * <p>
      * For entries that are not grouped with others, we do not need to create a group of size one.
      * <p>
+     * The outcome of each comparison is remembered until the next call, so that when the call log
+     * only gained new calls at the top, lost some calls or got a new page at the end, only the
+     * groups around those calls are computed again.
+     * <p>
      * It assumes that the cursor will not change during its execution.
      *
      * @see GroupingListAdapter#addGroups(Cursor)
      */
     public void addGroups(Cursor cursor) {
-        final int count = cursor.getCount();
-        if (count == 0) {
+        if (cursor.getCount() == 0) {
+            mPreviousRows = null;
             return;
         }
+        addGroups(readRows(cursor, mPreviousRows, false));
+    }
+
+    /**
+     * Finds the groups of a cursor made of the calls grouped by the previous call to this builder
+     * followed by the calls of the given page, and reports them like {@link #addGroups(Cursor)}.
+     * Only the rows of the page are read, so the previous calls may be in use elsewhere.
+     */
+    public void addPageGroups(Cursor page) {
+        if (mPreviousRows == null) {
+            addGroups(page);
+            return;
+        }
+        addGroups(readRows(page, mPreviousRows, true));
+    }
+
+    private void addGroups(CallRows rows) {
+        final int count = rows.rowIds.length;
 
         // Clear any previous day grouping information.
         mGroupCreator.clearDayGroups();
 
         // Get current system time, used for calculating which day group calls belong to.
-        long currentTime = System.currentTimeMillis();
-
-        int currentGroupSize = 1;
-        cursor.moveToFirst();
-        // The number of the first entry in the group.
-        String firstNumber = cursor.getString(CallLogQuery.NUMBER);
-        // This is the type of the first call in the group.
-        int firstCallType = cursor.getInt(CallLogQuery.CALL_TYPE);
-
-        // The account information of the first entry in the group.
-        String firstAccountComponentName = cursor.getString(CallLogQuery.ACCOUNT_COMPONENT_NAME);
-        String firstAccountId = cursor.getString(CallLogQuery.ACCOUNT_ID);
-
-        // Determine the day group for the first call in the cursor.
-        final long firstDate = cursor.getLong(CallLogQuery.DATE);
-        final long firstRowId = cursor.getLong(CallLogQuery.ID);
-        int currentGroupDayGroup = getDayGroup(firstDate, currentTime);
-        mGroupCreator.setDayGroup(firstRowId, currentGroupDayGroup);
-
-        while (cursor.moveToNext()) {
-            // The number of the current row in the cursor.
-            final String currentNumber = cursor.getString(CallLogQuery.NUMBER);
-            final int callType = cursor.getInt(CallLogQuery.CALL_TYPE);
-            final String currentAccountComponentName = cursor.getString(
-                    CallLogQuery.ACCOUNT_COMPONENT_NAME);
-            final String currentAccountId = cursor.getString(CallLogQuery.ACCOUNT_ID);
-
-            final boolean sameNumber = equalNumbers(firstNumber, currentNumber);
-            final boolean sameAccountComponentName = Objects.equals(
-                    firstAccountComponentName,
-                    currentAccountComponentName);
-            final boolean sameAccountId = Objects.equals(
-                    firstAccountId,
-                    currentAccountId);
-            final boolean sameAccount = sameAccountComponentName && sameAccountId;
-
-            final boolean shouldGroup;
-            final long currentCallId = cursor.getLong(CallLogQuery.ID);
-            final long date = cursor.getLong(CallLogQuery.DATE);
-
-            if (!sameNumber || !sameAccount) {
-                // Should only group with calls from the same number.
-                shouldGroup = false;
-            } else if (firstCallType == Calls.VOICEMAIL_TYPE) {
-                // never group voicemail.
-                shouldGroup = false;
+        final long currentTime = System.currentTimeMillis();
+
+        final CallRows previousRows = mPreviousRows;
+        // The day groups of the previous run are only valid until the day changes.
+        final boolean sameDay = previousRows != null
+                && DateUtils.getDayDifference(mTime, mPreviousTime, currentTime) == 0;
+
+        // The first entry in the current group.
+        int first = 0;
+        for (int row = 0; row < count; row++) {
+            if (row > 0 && shouldGroup(rows, previousRows, first, row)) {
+                rows.groupFirstRows[row] = first;
             } else {
-                // Incoming, outgoing, and missed calls group together.
-                shouldGroup = callType != Calls.VOICEMAIL_TYPE;
-            }
+                // Create a group for the previous set of calls, excluding the current one, but do
+                // not create a group for a single call.
+                if (row - first > 1) {
+                    addGroup(first, row - first);
+                }
+                if (row > 0) {
+                    rows.rejectingRows[row] = first;
+                }
+                // Start a new group; it will include at least the current call.
+                first = row;
+                rows.groupFirstRows[row] = row;
 
-            if (shouldGroup) {
-                // Increment the size of the group to include the current call, but do not create
-                // the group until we find a call that does not match.
-                currentGroupSize++;
-            } else {
                 // The call group has changed, so determine the day group for the new call group.
                 // This ensures all calls grouped together in the call log are assigned the same
                 // day group.
-                currentGroupDayGroup = getDayGroup(date, currentTime);
-
-                // Create a group for the previous set of calls, excluding the current one, but do
-                // not create a group for a single call.
-                if (currentGroupSize > 1) {
-                    addGroup(cursor.getPosition() - currentGroupSize, currentGroupSize);
+                final int previousRow = rows.previousRows[row];
+                if (sameDay && previousRow != -1
+                        && previousRows.groupDayGroups[previousRow] != DAY_GROUP_NONE) {
+                    rows.groupDayGroups[row] = previousRows.groupDayGroups[previousRow];
+                } else {
+                    rows.groupDayGroups[row] = getDayGroup(rows.dates[row], currentTime);
                 }
-                // Start a new group; it will include at least the current call.
-                currentGroupSize = 1;
-                // The current entry is now the first in the group.
-                firstNumber = currentNumber;
-                firstCallType = callType;
-                firstAccountComponentName = currentAccountComponentName;
-                firstAccountId = currentAccountId;
             }
 
             // Save the day group associated with the current call.
-            mGroupCreator.setDayGroup(currentCallId, currentGroupDayGroup);
+            mGroupCreator.setDayGroup(rows.rowIds[row], rows.groupDayGroups[first]);
         }
         // If the last set of calls at the end of the call log was itself a group, create it now.
-        if (currentGroupSize > 1) {
-            addGroup(count - currentGroupSize, currentGroupSize);
+        if (count - first > 1) {
+            addGroup(first, count - first);
+        }
+
+        mPreviousRows = rows;
+        mPreviousTime = currentTime;
+    }
+
+    /**
+     * Reads the values used for grouping from the rows of the cursor, and matches each row with
+     * the same call in the previous run.
+     *
+     * @param append Whether the cursor is a page following the calls of the previous run, which
+     *     are then copied rather than read again.
+     */
+    private CallRows readRows(Cursor cursor, CallRows previousRows, boolean append) {
+        final int offset = append ? previousRows.rowIds.length : 0;
+        final CallRows rows = new CallRows(offset + cursor.getCount());
+        if (append) {
+            System.arraycopy(previousRows.rowIds, 0, rows.rowIds, 0, offset);
+            System.arraycopy(previousRows.numbers, 0, rows.numbers, 0, offset);
+            System.arraycopy(previousRows.numberKeys, 0, rows.numberKeys, 0, offset);
+            System.arraycopy(previousRows.callTypes, 0, rows.callTypes, 0, offset);
+            System.arraycopy(previousRows.accountComponentNames, 0, rows.accountComponentNames, 0,
+                    offset);
+            System.arraycopy(previousRows.accountIds, 0, rows.accountIds, 0, offset);
+            System.arraycopy(previousRows.dates, 0, rows.dates, 0, offset);
+            for (int row = 0; row < offset; row++) {
+                rows.previousRows[row] = row;
+            }
+        }
+
+        int expectedPreviousRow = 0;
+        for (int position = 0; cursor.moveToPosition(position); position++) {
+            final int row = offset + position;
+            rows.rowIds[row] = cursor.getLong(CallLogQuery.ID);
+            rows.numbers[row] = cursor.getString(CallLogQuery.NUMBER);
+            rows.callTypes[row] = cursor.getInt(CallLogQuery.CALL_TYPE);
+            rows.accountComponentNames[row] = cursor.getString(
+                    CallLogQuery.ACCOUNT_COMPONENT_NAME);
+            rows.accountIds[row] = cursor.getString(CallLogQuery.ACCOUNT_ID);
+            rows.dates[row] = cursor.getLong(CallLogQuery.DATE);
+
+            int previousRow = -1;
+            if (previousRows != null && !append) {
+                previousRow = previousRows.findRow(expectedPreviousRow, rows.rowIds[row],
+                        rows.numbers[row], rows.callTypes[row], rows.accountComponentNames[row],
+                        rows.accountIds[row], rows.dates[row]);
+                if (previousRow != -1) {
+                    expectedPreviousRow = previousRow + 1;
+                }
+            }
+            rows.previousRows[row] = previousRow;
+            // The key of a number is computed once, when the call is first read.
+            rows.numberKeys[row] = previousRow != -1
+                    ? previousRows.numberKeys[previousRow] : getNumberKey(rows.numbers[row]);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns whether the call at the given row belongs to the group starting at the first row.
+     * If the previous run already compared the same two calls, its outcome is used.
+     */
+    private boolean shouldGroup(CallRows rows, CallRows previousRows, int first, int row) {
+        final int previousFirst = rows.previousRows[first];
+        final int previousRow = rows.previousRows[row];
+        if (previousFirst != -1 && previousRow != -1) {
+            if (previousRows.groupFirstRows[previousRow] == previousFirst) {
+                return true;
+            }
+            if (previousRows.rejectingRows[previousRow] == previousFirst) {
+                return false;
+            }
+        }
+
+        final boolean sameNumber = equalNumbers(rows.numbers[first], rows.numberKeys[first],
+                rows.numbers[row], rows.numberKeys[row]);
+        final boolean sameAccountComponentName = Objects.equals(
+                rows.accountComponentNames[first],
+                rows.accountComponentNames[row]);
+        final boolean sameAccountId = Objects.equals(
+                rows.accountIds[first],
+                rows.accountIds[row]);
+        final boolean sameAccount = sameAccountComponentName && sameAccountId;
+
+        if (!sameNumber || !sameAccount) {
+            // Should only group with calls from the same number.
+            return false;
+        } else if (rows.callTypes[first] == Calls.VOICEMAIL_TYPE) {
+            // never group voicemail.
+            return false;
+        } else {
+            // Incoming, outgoing, and missed calls group together.
+            return rows.callTypes[row] != Calls.VOICEMAIL_TYPE;
         }
     }
 
@@ -210,6 +386,105 @@ public class CallLogGroupBuilder {
 
     @VisibleForTesting
     boolean equalNumbers(String number1, String number2) {
+        return equalNumbers(number1, getNumberKey(number1), number2, getNumberKey(number2));
+    }
+
+    /**
+     * Returns whether two numbers are the same, as {@link #compareNumbers} would. Most pairs are
+     * decided by comparing the keys of the numbers, returned by {@link #getNumberKey}; the others
+     * fall back to {@link #compareNumbers}.
+     */
+    @VisibleForTesting
+    boolean equalNumbers(String number1, String key1, String number2, String key2) {
+        if (key1 != null && key2 != null) {
+            final char kind = key1.charAt(0);
+            if (kind != key2.charAt(0)) {
+                // SIP addresses never match phone numbers, nor long phone numbers short ones.
+                return false;
+            }
+            switch (kind) {
+                case SIP_ADDRESS_KEY:
+                    return key1.equals(key2);
+                case PHONE_NUMBER_KEY:
+                    if (key1.equals(key2)) {
+                        return true;
+                    }
+                    // Numbers only match if their last MIN_MATCH digits do, the earlier ones may
+                    // still differ by a country code or trunk prefix.
+                    if (!key1.regionMatches(key1.length() - MIN_MATCH, key2,
+                            key2.length() - MIN_MATCH, MIN_MATCH)) {
+                        return false;
+                    }
+                    break;
+                case SHORT_NUMBER_KEY:
+                    if (!key1.equals(key2)) {
+                        return false;
+                    }
+                    if (number1.equals(number2)) {
+                        return true;
+                    }
+                    break;
+            }
+        }
+        return compareNumbers(number1, number2);
+    }
+
+    /**
+     * Returns the key of a number used by {@link #equalNumbers(String, String, String, String)},
+     * or null if the number can only be compared with {@link #compareNumbers}.
+     * <p>
+     * The key of a SIP address is its user followed by its host with the case folded the way
+     * {@link String#equalsIgnoreCase} does. The key of a phone number is the sequence of dialable
+     * characters before any pause or wait, the characters {@link PhoneNumberUtils#compare}
+     * matches from the end of the numbers. Numbers with a wild character, empty numbers and short
+     * numbers with a pause or wait have no key.
+     */
+    @VisibleForTesting
+    static String getNumberKey(String number) {
+        if (number == null || number.isEmpty()) {
+            return null;
+        }
+
+        final int length = number.length();
+        final StringBuilder key = new StringBuilder(length + 1);
+        if (PhoneNumberHelper.isUriNumber(number)) {
+            key.append(SIP_ADDRESS_KEY);
+            final int hostStart = number.indexOf('@');
+            for (int i = 0; i < length; i++) {
+                final char c = number.charAt(i);
+                key.append(hostStart != -1 && i >= hostStart
+                        ? Character.toLowerCase(Character.toUpperCase(c)) : c);
+            }
+            return key.toString();
+        }
+
+        key.append(PHONE_NUMBER_KEY);
+        boolean postDial = false;
+        for (int i = 0; i < length; i++) {
+            final char c = number.charAt(i);
+            if (c == PhoneNumberUtils.PAUSE || c == PhoneNumberUtils.WAIT) {
+                postDial = true;
+                break;
+            } else if (c == PhoneNumberUtils.WILD) {
+                return null;
+            } else if (PhoneNumberUtils.isDialable(c)) {
+                key.append(c);
+            }
+        }
+        if (key.length() - 1 < MIN_MATCH) {
+            // A short number only matches another one if all of both are matched, which depends on
+            // the characters which are not dialable.
+            if (postDial) {
+                return null;
+            }
+            key.setCharAt(0, SHORT_NUMBER_KEY);
+        }
+        return key.toString();
+    }
+
+    /** Compares two numbers from scratch. */
+    @VisibleForTesting
+    boolean compareNumbers(String number1, String number2) {
         if (PhoneNumberHelper.isUriNumber(number1) || PhoneNumberHelper.isUriNumber(number2)) {
             return compareSipAddresses(number1, number2);
         } else {
@@ -254,7 +529,7 @@ public class CallLogGroupBuilder {
      * @return The date group the call belongs in.
      */
     private int getDayGroup(long date, long now) {
-        int days = DateUtils.getDayDifference(TIME, date, now);
+        int days = DateUtils.getDayDifference(mTime, date, now);
 
         if (days == 0) {
             return DAY_GROUP_TODAY;
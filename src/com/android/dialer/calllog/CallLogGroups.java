@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import java.util.Arrays;
+
+/**
+ * The groups and day groups found by {@link CallLogGroupBuilder} in a call log cursor. It is
+ * computed on the worker thread of {@link CallLogQueryHandler} and handed to the adapter along
+ * with the cursor, so that binding a call only looks up its day group by cursor position.
+ * <p>
+ * Instances are immutable.
+ */
+final class CallLogGroups {
+    private final int[] mGroupPositions;
+    private final int[] mGroupSizes;
+    private final int mGroupCount;
+
+    /** The day group of each call, by cursor position. */
+    private final byte[] mDayGroups;
+
+    private CallLogGroups(int[] groupPositions, int[] groupSizes, int groupCount,
+            byte[] dayGroups) {
+        mGroupPositions = groupPositions;
+        mGroupSizes = groupSizes;
+        mGroupCount = groupCount;
+        mDayGroups = dayGroups;
+    }
+
+    /** Returns the number of groups of more than one call. */
+    public int getGroupCount() {
+        return mGroupCount;
+    }
+
+    /** Returns the cursor position of the first call of a group. */
+    public int getGroupPosition(int group) {
+        return mGroupPositions[group];
+    }
+
+    /** Returns the number of calls of a group. */
+    public int getGroupSize(int group) {
+        return mGroupSizes[group];
+    }
+
+    /**
+     * Returns the day group of the call at a cursor position, or
+     * {@link CallLogGroupBuilder#DAY_GROUP_NONE} if there is no call at that position.
+     */
+    public int getDayGroup(int cursorPosition) {
+        if (cursorPosition < 0 || cursorPosition >= mDayGroups.length) {
+            return CallLogGroupBuilder.DAY_GROUP_NONE;
+        }
+        return mDayGroups[cursorPosition];
+    }
+
+    /**
+     * Collects the groups reported by a {@link CallLogGroupBuilder}, which reports the day group
+     * of each call in cursor order.
+     */
+    static final class Collector implements CallLogGroupBuilder.GroupCreator {
+        private static final int INITIAL_SIZE = 16;
+
+        private int[] mGroupPositions = new int[INITIAL_SIZE];
+        private int[] mGroupSizes = new int[INITIAL_SIZE];
+        private int mGroupCount;
+        private byte[] mDayGroups = new byte[INITIAL_SIZE];
+        private int mDayGroupCount;
+
+        @Override
+        public void addGroup(int cursorPosition, int size, boolean expanded) {
+            if (mGroupCount == mGroupPositions.length) {
+                mGroupPositions = Arrays.copyOf(mGroupPositions, mGroupCount * 2);
+                mGroupSizes = Arrays.copyOf(mGroupSizes, mGroupCount * 2);
+            }
+            mGroupPositions[mGroupCount] = cursorPosition;
+            mGroupSizes[mGroupCount] = size;
+            mGroupCount++;
+        }
+
+        @Override
+        public void setDayGroup(long rowId, int dayGroup) {
+            if (mDayGroupCount == mDayGroups.length) {
+                mDayGroups = Arrays.copyOf(mDayGroups, mDayGroupCount * 2);
+            }
+            mDayGroups[mDayGroupCount++] = (byte) dayGroup;
+        }
+
+        /** Called by the builder before it reports the groups of a cursor. */
+        @Override
+        public void clearDayGroups() {
+            mGroupCount = 0;
+            mDayGroupCount = 0;
+        }
+
+        /** Returns the groups collected since the last call, and starts collecting anew. */
+        public CallLogGroups build() {
+            final CallLogGroups groups = new CallLogGroups(
+                    Arrays.copyOf(mGroupPositions, mGroupCount),
+                    Arrays.copyOf(mGroupSizes, mGroupCount), mGroupCount,
+                    Arrays.copyOf(mDayGroups, mDayGroupCount));
+            clearDayGroups();
+            return groups;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Presents the pages of the call log loaded so far as a single cursor, along with their groups.
+ * Appending a page with {@link #extend} returns a new cursor sharing the pages of this one, so
+ * that the adapter can switch to it and close the previous cursor without the pages being closed
+ * under it. The pages are only closed with the newest cursor.
+ */
+final class CallLogPagesCursor extends AbstractCursor {
+    /** The pages shared by the cursors extended from the same first page. */
+    private static final class Pages {
+        final ArrayList<Cursor> cursors = Lists.newArrayList();
+        CallLogPagesCursor newest;
+    }
+
+    private final Pages mPages;
+
+    /** The number of pages seen by this cursor, which may be less than in {@link #mPages}. */
+    private final int mPageCount;
+
+    /** The position of the first row of each page, plus the number of rows at the end. */
+    private final int[] mPageStarts;
+
+    /** The groups of the calls seen by this cursor, or null if they were not computed. */
+    private final CallLogGroups mGroups;
+
+    private Cursor mCurrentPage;
+
+    private CallLogPagesCursor(Pages pages, int[] pageStarts, CallLogGroups groups) {
+        mPages = pages;
+        mPageCount = pages.cursors.size();
+        mPageStarts = pageStarts;
+        mGroups = groups;
+        pages.newest = this;
+    }
+
+    /**
+     * Creates a cursor over the first page of the call log, taking ownership of the page.
+     *
+     * @param groups The groups of the calls of the page, or null.
+     */
+    static CallLogPagesCursor create(Cursor firstPage, CallLogGroups groups) {
+        final Pages pages = new Pages();
+        pages.cursors.add(firstPage);
+        return new CallLogPagesCursor(pages, new int[] {0, firstPage.getCount()}, groups);
+    }
+
+    /**
+     * Returns a cursor over the pages of this cursor followed by the given page, taking ownership
+     * of the page. Must be called on the newest cursor.
+     *
+     * @param groups The groups of the calls of all pages, or null.
+     */
+    CallLogPagesCursor extend(Cursor page, CallLogGroups groups) {
+        if (mPages.newest != this) {
+            throw new IllegalStateException("Only the newest cursor can be extended");
+        }
+        mPages.cursors.add(page);
+        final int[] pageStarts = Arrays.copyOf(mPageStarts, mPageCount + 2);
+        pageStarts[mPageCount + 1] = pageStarts[mPageCount] + page.getCount();
+        return new CallLogPagesCursor(mPages, pageStarts, groups);
+    }
+
+    /**
+     * Closes the pages appended after this cursor was created and makes it the newest cursor
+     * again, for when the cursor extended from it was not taken over. The pages this cursor sees
+     * stay open, and are closed with it.
+     */
+    void discardLaterPages() {
+        final ArrayList<Cursor> cursors = mPages.cursors;
+        while (cursors.size() > mPageCount) {
+            cursors.remove(cursors.size() - 1).close();
+        }
+        mPages.newest = this;
+    }
+
+    /** Returns the groups of the calls seen by this cursor, or null if they were not computed. */
+    CallLogGroups getGroups() {
+        return mGroups;
+    }
+
+    @Override
+    public int getCount() {
+        return mPageStarts[mPageCount];
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int page = Arrays.binarySearch(mPageStarts, 0, mPageCount, newPosition);
+        if (page < 0) {
+            page = ~page - 1;
+        } else {
+            /** Skips empty pages starting at the same position. */
+            while (page + 1 < mPageCount && mPageStarts[page + 1] == newPosition) {
+                page++;
+            }
+        }
+        mCurrentPage = mPages.cursors.get(page);
+        return mCurrentPage.moveToPosition(newPosition - mPageStarts[page]);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages.cursors.get(0).getColumnNames();
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrentPage.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrentPage.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrentPage.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrentPage.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrentPage.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrentPage.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCurrentPage.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCurrentPage.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrentPage.isNull(column);
+    }
+
+    /**
+     * Changes to the call log are reported by the first page, which is shared by all cursors
+     * extended from it.
+     */
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        mPages.cursors.get(0).registerContentObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        mPages.cursors.get(0).unregisterContentObserver(observer);
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        mPages.cursors.get(0).registerDataSetObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        mPages.cursors.get(0).unregisterDataSetObserver(observer);
+    }
+
+    @Override
+    public Uri getNotificationUri() {
+        return mPages.cursors.get(0).getNotificationUri();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (mPages.newest == this) {
+            for (Cursor page : mPages.cursors) {
+                page.close();
+            }
+        }
+    }
+}
@@ -39,6 +39,7 @@ import com.android.contacts.common.util.PermissionsUtil;
 import com.android.dialer.util.TelecomUtil;
 import com.android.dialer.voicemail.VoicemailStatusHelperImpl;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 
 import java.lang.ref.WeakReference;
@@ -49,7 +50,25 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
     private static final String TAG = "CallLogQueryHandler";
-    private static final int NUM_LOGS_TO_DISPLAY = 1000;
+
+    /** Number of calls in the first page of the call log, enough to fill the screen. */
+    @VisibleForTesting
+    static final int FIRST_PAGE_SIZE = 30;
+    /** Number of calls in each following page, fetched as the list is scrolled. */
+    @VisibleForTesting
+    static final int PAGE_SIZE = 200;
+    /**
+     * Maximum number of calls reloaded by a refresh. The calls loaded beyond it are fetched again
+     * by {@link #fetchNextPage} as the list is scrolled.
+     */
+    @VisibleForTesting
+    static final int MAX_REFRESH_SIZE = FIRST_PAGE_SIZE + PAGE_SIZE;
+
+    /**
+     * Pages are keyed on the date and id of their last call, so this order has to be a total
+     * order, and the next page starts right after the last call without skipping any rows.
+     */
+    private static final String SORT_ORDER = Calls.DATE + " DESC, " + Calls._ID + " DESC";
 
     /** The token for the query to fetch the old entries from the call log. */
     private static final int QUERY_CALLLOG_TOKEN = 54;
@@ -59,9 +78,47 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
     private static final int UPDATE_MARK_MISSED_CALL_AS_READ_TOKEN = 56;
     /** The token for the query to fetch voicemail status messages. */
     private static final int QUERY_VOICEMAIL_STATUS_TOKEN = 57;
+    /** The token for the query to fetch the next page of the call log. */
+    private static final int QUERY_CALLLOG_PAGE_TOKEN = 58;
 
     private final int mLogLimit;
 
+    /**
+     * State of the paged call log. Only accessed on the thread of the handler, where the queries
+     * are started and completed.
+     */
+    private int mCallType;
+    private long mNewerThan;
+    /** Incremented by each new fetch, to ignore the pages of previous fetches. */
+    private int mFetchGeneration;
+    /** The number of calls requested by the pending query. */
+    private int mRequestedCount;
+    /** The cursor handed to the listener last, if more pages may follow it. */
+    private CallLogPagesCursor mPagesCursor;
+    private boolean mHasMorePages;
+    private boolean mFetchingPage;
+    /** The date and id of the last call loaded, from which the next page continues. */
+    private long mLastDate;
+    private long mLastId;
+    /** The number of calls loaded, so that a refresh does not shrink the list too much. */
+    private int mLoadedCount;
+
+    /**
+     * Groups the calls of each fetch on the worker thread, and remembers them to group the calls
+     * of the following pages and fetches. Only accessed on the worker thread.
+     */
+    private final CallLogGroups.Collector mGroupCollector = new CallLogGroups.Collector();
+    private final CallLogGroupBuilder mGroupBuilder = new CallLogGroupBuilder(mGroupCollector);
+    /** The fetch whose first page was grouped last. Only accessed on the worker thread. */
+    private int mGroupedGeneration;
+
+    /**
+     * The handler of the worker thread on which the queries run. It is set by
+     * {@link #createHandler}, which is called by the constructor of the superclass before the
+     * fields of this class are initialized, so it must not have an initializer.
+     */
+    private Handler mWorkerHandler;
+
     /**
      * Call type similar to Calls.INCOMING_TYPE used to specify all types instead of one particular
      * type. Exception: excludes Calls.VOICEMAIL_TYPE.
@@ -105,7 +162,8 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
     @Override
     protected Handler createHandler(Looper looper) {
         // Provide our special handler that catches exceptions
-        return new CatchingWorkerHandler(looper);
+        mWorkerHandler = new CatchingWorkerHandler(looper);
+        return mWorkerHandler;
     }
 
     public CallLogQueryHandler(Context context, ContentResolver contentResolver,
@@ -125,17 +183,45 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
      * Fetches the list of calls from the call log for a given type.
      * This call ignores the new or old state.
      * <p>
-     * It will asynchronously update the content of the list view when the fetch completes.
+     * It will asynchronously update the content of the list view when the fetch completes. Unless
+     * the handler was created with a limit, only the first page of calls is fetched, along with
+     * as many calls as were loaded before up to {@link #MAX_REFRESH_SIZE}, and
+     * {@link #fetchNextPage} fetches the following ones.
      */
     public void fetchCalls(int callType, long newerThan) {
         cancelFetch();
+        mFetchGeneration++;
+        mCallType = callType;
+        mNewerThan = newerThan;
+        mPagesCursor = null;
+        mHasMorePages = false;
+        mFetchingPage = false;
         if (PermissionsUtil.hasPhonePermissions(mContext)) {
-            fetchCalls(QUERY_CALLLOG_TOKEN, callType, false /* newOnly */, newerThan);
+            mRequestedCount = mLogLimit != -1 ? mLogLimit
+                    : Math.min(Math.max(FIRST_PAGE_SIZE, mLoadedCount), MAX_REFRESH_SIZE);
+            fetchCalls(QUERY_CALLLOG_TOKEN, callType, false /* newOnly */, newerThan,
+                    mRequestedCount, false /* afterLastCall */);
         } else {
+            mLoadedCount = 0;
             updateAdapterData(null);
         }
     }
 
+    /**
+     * Fetches the page of calls following the ones loaded so far, unless all of them have been
+     * loaded or the page is already being fetched. The listener is given a cursor over all calls
+     * loaded when the fetch completes.
+     */
+    public void fetchNextPage() {
+        if (!mHasMorePages || mFetchingPage || !PermissionsUtil.hasPhonePermissions(mContext)) {
+            return;
+        }
+        mFetchingPage = true;
+        mRequestedCount = PAGE_SIZE;
+        fetchCalls(QUERY_CALLLOG_PAGE_TOKEN, mCallType, false /* newOnly */, mNewerThan,
+                PAGE_SIZE, true /* afterLastCall */);
+    }
+
     public void fetchCalls(int callType) {
         fetchCalls(callType, 0);
     }
@@ -147,8 +233,14 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
         }
     }
 
-    /** Fetches the list of calls in the call log. */
-    private void fetchCalls(int token, int callType, boolean newOnly, long newerThan) {
+    /**
+     * Fetches the list of calls in the call log.
+     *
+     * @param limit The maximum number of calls to fetch.
+     * @param afterLastCall Whether to only fetch the calls following the last one loaded.
+     */
+    private void fetchCalls(int token, int callType, boolean newOnly, long newerThan, int limit,
+            boolean afterLastCall) {
         // We need to check for NULL explicitly otherwise entries with where READ is NULL
         // may not match either the query or its negation.
         // We consider the calls that are not yet consumed (i.e. IS_READ = 0) as "new".
@@ -180,19 +272,28 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
             selectionArgs.add(Long.toString(newerThan));
         }
 
-        final int limit = (mLogLimit == -1) ? NUM_LOGS_TO_DISPLAY : mLogLimit;
+        if (afterLastCall) {
+            where.append(" AND ");
+            where.append(String.format("(%s < ? OR (%s = ? AND %s < ?))",
+                    Calls.DATE, Calls.DATE, Calls._ID));
+            selectionArgs.add(Long.toString(mLastDate));
+            selectionArgs.add(Long.toString(mLastDate));
+            selectionArgs.add(Long.toString(mLastId));
+        }
+
         final String selection = where.length() > 0 ? where.toString() : null;
         Uri uri = TelecomUtil.getCallLogUri(mContext).buildUpon()
                 .appendQueryParameter(Calls.LIMIT_PARAM_KEY, Integer.toString(limit))
                 .build();
-        startQuery(token, null, uri,
+        startQuery(token, mFetchGeneration, uri,
                 CallLogQuery._PROJECTION, selection, selectionArgs.toArray(EMPTY_STRING_ARRAY),
-                Calls.DEFAULT_SORT_ORDER);
+                SORT_ORDER);
     }
 
     /** Cancel any pending fetch request. */
     private void cancelFetch() {
         cancelOperation(QUERY_CALLLOG_TOKEN);
+        cancelOperation(QUERY_CALLLOG_PAGE_TOKEN);
     }
 
     /** Updates all new calls to mark them as old. */
@@ -237,10 +338,13 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
             return;
         }
         try {
-            if (token == QUERY_CALLLOG_TOKEN) {
-                if (updateAdapterData(cursor)) {
-                    cursor = null;
+            if (token == QUERY_CALLLOG_TOKEN || token == QUERY_CALLLOG_PAGE_TOKEN) {
+                if (!Integer.valueOf(mFetchGeneration).equals(cookie)) {
+                    /** The calls of a previous fetch, which has been replaced since. */
+                    return;
                 }
+                groupCalls(token, mFetchGeneration, cursor);
+                cursor = null;
             } else if (token == QUERY_VOICEMAIL_STATUS_TOKEN) {
                 updateVoicemailStatus(cursor);
             } else {
@@ -253,6 +357,147 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
         }
     }
 
+    /**
+     * Groups the calls of a page on the worker thread, then hands them to the listener on the
+     * thread of this handler. The pages already handed to the listener are not read again, so the
+     * worker thread only reads a cursor which is not in use anywhere else.
+     * <p>
+     * Grouping reads the cursor, which may fill its window from the provider and fail like the
+     * query itself. Such failures are caught like in {@link CatchingWorkerHandler}, since the
+     * runnable does not go through its {@link CatchingWorkerHandler#handleMessage}; the cursor is
+     * then closed and the listener is told that no calls were loaded.
+     */
+    private void groupCalls(final int token, final int generation, final Cursor cursor) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CallLogGroups groups = null;
+                boolean grouped = false;
+                try {
+                    if (token == QUERY_CALLLOG_TOKEN) {
+                        mGroupBuilder.addGroups(cursor);
+                        groups = mGroupCollector.build();
+                        mGroupedGeneration = generation;
+                    } else if (generation == mGroupedGeneration) {
+                        mGroupBuilder.addPageGroups(cursor);
+                        groups = mGroupCollector.build();
+                    }
+                    grouped = true;
+                } catch (SQLiteDiskIOException e) {
+                    Log.w(TAG, "Exception on background worker thread", e);
+                } catch (SQLiteFullException e) {
+                    Log.w(TAG, "Exception on background worker thread", e);
+                } catch (SQLiteDatabaseCorruptException e) {
+                    Log.w(TAG, "Exception on background worker thread", e);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "ContactsProvider not present on device", e);
+                } catch (SecurityException e) {
+                    Log.w(TAG, "No permission to access ContactsProvider.", e);
+                } finally {
+                    if (!grouped) {
+                        cursor.close();
+                    }
+                }
+                final CallLogGroups groupedCalls = groups;
+                final Cursor groupedCursor = grouped ? cursor : null;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onCallsGrouped(token, generation, groupedCursor, groupedCalls);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Called on the thread of this handler once the calls of a page have been grouped.
+     *
+     * @param cursor The calls of the page, or null if they could not be read.
+     * @param groups The groups of all the calls loaded, or null if the page could not be grouped.
+     */
+    private synchronized void onCallsGrouped(int token, int generation, Cursor cursor,
+            CallLogGroups groups) {
+        if (cursor == null) {
+            if (generation == mFetchGeneration) {
+                mFetchingPage = false;
+                mHasMorePages = false;
+                if (token == QUERY_CALLLOG_TOKEN) {
+                    updateAdapterData(null);
+                }
+            }
+            return;
+        }
+        boolean tookOwnership = false;
+        if (generation == mFetchGeneration) {
+            tookOwnership = token == QUERY_CALLLOG_TOKEN
+                    ? updateFirstPage(cursor, groups) : updatePage(cursor, groups);
+        }
+        if (!tookOwnership) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Hands the first page of calls to the listener, as a {@link CallLogPagesCursor} which more
+     * pages may extend.
+     *
+     * @return Whether the listener took ownership of the cursor.
+     */
+    private boolean updateFirstPage(Cursor cursor, CallLogGroups groups) {
+        mLoadedCount = cursor.getCount();
+        mHasMorePages = mLogLimit == -1 && cursor.getCount() >= mRequestedCount;
+        if (mHasMorePages) {
+            rememberLastCall(cursor);
+        }
+        final CallLogPagesCursor pagesCursor = CallLogPagesCursor.create(cursor, groups);
+        if (!updateAdapterData(pagesCursor)) {
+            pagesCursor.close();
+            mHasMorePages = false;
+        } else if (mHasMorePages) {
+            mPagesCursor = pagesCursor;
+        }
+        return true;
+    }
+
+    /**
+     * Appends a following page of calls to the ones loaded so far, and hands all of them to the
+     * listener.
+     *
+     * @return Whether the page has been taken over, either by the listener or by being closed.
+     */
+    private boolean updatePage(Cursor cursor, CallLogGroups groups) {
+        mFetchingPage = false;
+        mHasMorePages = cursor.getCount() >= mRequestedCount;
+        if (cursor.getCount() == 0 || mPagesCursor == null || groups == null) {
+            mHasMorePages = false;
+            return false;
+        }
+        rememberLastCall(cursor);
+        final CallLogPagesCursor previous = mPagesCursor;
+        mPagesCursor = previous.extend(cursor, groups);
+        if (!updateAdapterData(mPagesCursor)) {
+            /** The listener still shows the previous cursor, so only the new page is closed. */
+            previous.discardLaterPages();
+            mPagesCursor = null;
+            mHasMorePages = false;
+            return true;
+        }
+        mLoadedCount += cursor.getCount();
+        return true;
+    }
+
+    /**
+     * Records the date and id of the last call of a page, from which the next page continues.
+     */
+    private void rememberLastCall(Cursor cursor) {
+        if (cursor.moveToLast()) {
+            mLastDate = cursor.getLong(CallLogQuery.DATE);
+            mLastId = cursor.getLong(CallLogQuery.ID);
+        }
+        cursor.moveToPosition(-1);
+    }
+
     /**
      * Updates the adapter in the call log fragment to show the new cursor data.
      * Returns true if the listener took ownership of the cursor.
@@ -279,7 +524,8 @@ public class CallLogQueryHandler extends NoNullCursorAsyncQueryHandler {
         void onVoicemailStatusFetched(Cursor statusCursor);
 
         /**
-         * Called when {@link CallLogQueryHandler#fetchCalls(int)} complete.
+         * Called when {@link CallLogQueryHandler#fetchCalls(int)} complete, and again with all
+         * calls loaded so far whenever {@link CallLogQueryHandler#fetchNextPage()} completes.
          * Returns true if takes ownership of cursor.
          */
         boolean onCallsFetched(Cursor combinedCursor);
@@ -167,11 +167,13 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
 
     /**
      * Scans over the entire cursor looking for duplicate phone numbers that need
-     * to be collapsed.
+     * to be collapsed. The group metadata array is kept across cursors and refilled in place.
      */
     private void findGroups() {
         mGroupCount = 0;
-        mGroupMetadata = new long[GROUP_METADATA_ARRAY_INITIAL_SIZE];
+        if (mGroupMetadata == null) {
+            mGroupMetadata = new long[GROUP_METADATA_ARRAY_INITIAL_SIZE];
+        }
 
         if (mCursor == null) {
             return;
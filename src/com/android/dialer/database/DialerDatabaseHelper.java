@@ -26,7 +26,9 @@ import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -39,6 +41,7 @@ import android.util.Log;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.common.util.StopWatch;
 import com.android.dialer.R;
+import com.android.dialer.dialpad.SmartDialMatchRanges;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
 
@@ -47,10 +50,13 @@ import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Database helper for smart dial. Designed as a singleton to make sure there is
@@ -64,7 +70,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     private static DialerDatabaseHelper sSingleton = null;
 
     private static final Object mLock = new Object();
-    private static final AtomicBoolean sInUpdate = new AtomicBoolean(false);
+
+    /**
+     * Incremented when an update of the smart dial database starts and again when it finishes,
+     * so it is odd while the database tables are being modified.
+     */
+    private static final AtomicInteger sUpdateSequence = new AtomicInteger(0);
     private final Context mContext;
 
     /**
@@ -73,7 +84,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      *   0-98   KitKat
      * </pre>
      */
-    public static final int DATABASE_VERSION = 4;
+    public static final int DATABASE_VERSION = 9;
     public static final String DATABASE_NAME = "dialer.db";
 
     /**
@@ -81,15 +92,97 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      */
     private static final String DATABASE_LAST_CREATED_SHARED_PREF = "com.android.dialer";
     private static final String LAST_UPDATED_MILLIS = "last_updated_millis";
+
+    /**
+     * Saves the time of the last smart dial update. It is committed in the same transaction as
+     * the changes of the update, so it always matches the contents of the smart dial tables.
+     */
+    private static final String LAST_UPDATED_MILLIS_PROPERTY = "last_updated_millis";
     private static final String DATABASE_VERSION_PROPERTY = "database_version";
 
-    private static final int MAX_ENTRIES = 20;
+    /** Time the rank scores of all rows were last brought up to date. */
+    private static final String RANK_SCORE_REFRESH_MILLIS_PROPERTY = "rank_score_refresh_millis";
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    /** Suffix of the file in the cache directory holding the smart dial trie snapshot. */
+    private static final String SMARTDIAL_SNAPSHOT_SUFFIX = ".smartdial";
+
+    /**
+     * Number of leading digits of a prefix stored in its packed key. Keeps the largest key,
+     * including the digit count, within a signed 64 bit integer.
+     */
+    private static final int PREFIX_KEY_DIGITS = 17;
+    /**
+     * Number of smart dial rows inserted or deleted since the index statistics were last
+     * refreshed. Absent if the statistics were never gathered.
+     */
+    private static final String ROWS_CHANGED_SINCE_ANALYZE_PROPERTY =
+            "rows_changed_since_analyze";
+
+    /** Default number of changed rows after which the index statistics are refreshed. */
+    public static final int DEFAULT_ANALYZE_CHURN_THRESHOLD = 500;
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 20;
+
+    /**
+     * Number of ranked contacts kept at each node of the in-memory smart dial trie. Leaves room
+     * for candidates that are rejected by the name matcher before falling back to the database.
+     */
+    private static final int SMART_DIAL_TRIE_NODE_CAPACITY = 2 * MAX_ENTRIES;
+
+    /**
+     * Maximum number of corrected queries looked up for a query that matches too few contacts.
+     * The corrections of later digits, which are found first, are the most likely ones.
+     */
+    @VisibleForTesting
+    static final int MAX_FUZZY_QUERIES = 24;
+
+    /**
+     * Number of contact ids bound to a single DELETE statement, well below the limit of 999 host
+     * parameters per SQLite statement.
+     */
+    private static final int MAX_CONTACT_IDS_PER_DELETE = 500;
+
+    /** Columns read from the smart dial table when looking up matching contacts. */
+    private static final String SMARTDIAL_MATCH_COLUMNS =
+            SmartDialDbColumns.DATA_ID + ", " +
+            SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+            SmartDialDbColumns.PHOTO_ID + ", " +
+            SmartDialDbColumns.NUMBER + ", " +
+            SmartDialDbColumns.CONTACT_ID + ", " +
+            SmartDialDbColumns.LOOKUP_KEY;
+
+    /**
+     * In-memory index rebuilt after every smart dial update, null until the first update. It is
+     * replaced in a single write once fully built, so queries can keep reading the previous one
+     * while the tables are being updated.
+     */
+    private volatile SmartDialTrie mSmartDialTrie;
+
+    /** Results of the shortest queries for the current trie, or null. */
+    private volatile PrecomputedResults mPrecomputedResults;
+
+    private volatile int mAnalyzeChurnThreshold = DEFAULT_ANALYZE_CHURN_THRESHOLD;
+
+    /** Persisted copy of the trie, or null if the database is in memory. */
+    private final SmartDialSnapshot mSmartDialSnapshot;
+
+    private final AtomicBoolean mSmartDialSnapshotRead = new AtomicBoolean(false);
+
+    /** Applies contact changes in the background, created once the sync is started. */
+    private SmartDialSyncScheduler mSyncScheduler;
+
+    private final SmartDialMetrics mMetrics = new SmartDialMetrics();
 
     public interface Tables {
         /** Saves the necessary smart dial information of all contacts. */
         static final String SMARTDIAL_TABLE = "smartdial_table";
         /** Saves all possible prefixes to refer to a contacts.*/
         static final String PREFIX_TABLE = "prefix_table";
+        /** Saves the suffixes of phone numbers, to find numbers by the digits inside them. */
+        static final String NUMBER_SUFFIX_TABLE = "number_suffix_table";
         /** Database properties for internal use */
         static final String PROPERTIES = "properties";
     }
@@ -112,11 +205,24 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         static final String IN_VISIBLE_GROUP = "in_visible_group";
         static final String IS_PRIMARY = "is_primary";
         static final String LAST_SMARTDIAL_UPDATE_TIME = "last_smartdial_update_time";
+        /** Ranking of the row computed by {@link SmartDialSortingOrder#RANK_SCORE}. */
+        static final String RANK_SCORE = "rank_score";
     }
 
     public static interface PrefixColumns extends BaseColumns {
+        /** Prefix packed into an integer key, see {@link #packPrefix(String)}. */
         static final String PREFIX = "prefix";
         static final String CONTACT_ID = "contact_id";
+        /** Data id of the number a prefix belongs to, null for the prefixes of names. */
+        static final String DATA_ID = "data_id";
+    }
+
+    public static interface NumberSuffixColumns extends BaseColumns {
+        /** Suffix of a number packed into an integer key, see {@link #packPrefix(String)}. */
+        static final String SUFFIX = "suffix";
+        static final String CONTACT_ID = "contact_id";
+        /** Data id of the number the suffix belongs to. */
+        static final String DATA_ID = "data_id";
     }
 
     public interface PropertiesColumns {
@@ -198,8 +304,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Gets the sorting order for the smartdial table. This computes a SQL "ORDER BY" argument by
-     * composing contact status and recent contact details together.
+     * Gets the sorting order for the smartdial table. Contact status and recent contact details
+     * are composed into a rank score that is stored with each row, so that the "ORDER BY"
+     * argument can be served by an index instead of sorting the candidates for every query.
      */
     private static interface SmartDialSortingOrder {
         /** Current contacts - those contacted within the last 3 days (in milliseconds) */
@@ -222,18 +329,49 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 " THEN 1 " +
                 " ELSE 2 END)";
 
+        /** Room for the times used of a contact in the rank score. */
+        static final long TIMES_USED_RANGE = 1L << 31;
+
+        /** Higher scores rank first. From most to least significant, the score is composed of
+         * starred, super primary, the data usage bucket, times used and visibility, each ranking
+         * the same way as in the sort order of the ContactsProvider.
+         */
+        static final String RANK_SCORE =
+                "(((((" + SmartDialDbColumns.STARRED + " != 0) * 2 + " +
+                "(" + SmartDialDbColumns.IS_SUPER_PRIMARY + " != 0)) * 3 + " +
+                "(2 - " + SORT_BY_DATA_USAGE + ")) * " + TIMES_USED_RANGE + " + " +
+                "MIN(MAX(" + SmartDialDbColumns.TIMES_USED + ", 0), " +
+                (TIMES_USED_RANGE - 1) + ")) * 2 + " +
+                "(" + SmartDialDbColumns.IN_VISIBLE_GROUP + " != 0))";
+
         /** This sort order is similar to that used by the ContactsProvider when returning a list
          * of frequently called contacts.
          */
         static final String SORT_ORDER =
-                Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.STARRED + " DESC, "
-                + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IS_SUPER_PRIMARY + " DESC, "
-                + SORT_BY_DATA_USAGE + ", "
-                + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.TIMES_USED + " DESC, "
-                + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IN_VISIBLE_GROUP + " DESC, "
+                Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.RANK_SCORE + " DESC, "
                 + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", "
                 + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.CONTACT_ID + ", "
                 + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.IS_PRIMARY + " DESC";
+
+        /** Rank of a row among the rows of its contact, higher for rows sorting earlier in
+         * {@link #SORT_ORDER}. The display name and contact id are the same for all of them.
+         */
+        static final String ROW_RANK =
+                "(" + SmartDialDbColumns.RANK_SCORE + " * 2 + " +
+                "(" + SmartDialDbColumns.IS_PRIMARY + " != 0))";
+
+        /** Rank of the best row of a contact. In a query with a single MAX() aggregate, SQLite
+         * takes the other columns of each group from the row holding the maximum.
+         */
+        static final String BEST_ROW_RANK = "MAX(" + ROW_RANK + ")";
+
+        /** Orders contacts grouped to their best row the same way {@link #SORT_ORDER} orders
+         * the best rows themselves.
+         */
+        static final String GROUPED_SORT_ORDER =
+                BEST_ROW_RANK + " / 2 DESC, "
+                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", "
+                + SmartDialDbColumns.CONTACT_ID;
     }
 
     /**
@@ -312,6 +450,160 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Candidate rows considered while answering a smart dial query. When complete, they contain
+     * every row of every contact that has a prefix matching the query, so the results of any
+     * query extending it can be computed from them alone. Used by {@link #getLooseMatches} to
+     * narrow down results as the user appends digits to the query.
+     */
+    public static class SmartDialCandidates {
+        private String mQuery;
+        private ArrayList<ContactNumber> mRows;
+        private boolean mComplete;
+
+        /** Incremented whenever the candidates are invalidated. */
+        private int mGeneration;
+
+        synchronized int getGeneration() {
+            return mGeneration;
+        }
+
+        /**
+         * Returns the candidate rows of the contacts that have a prefix matching the given query,
+         * in their original order, or null if the query does not extend the kept query.
+         */
+        synchronized ArrayList<ContactNumber> narrowRows(String query) {
+            if (!mComplete || mQuery == null || !query.startsWith(mQuery)) {
+                return null;
+            }
+            final HashMap<Long, Boolean> contactMatches = new HashMap<Long, Boolean>();
+            for (ContactNumber row : mRows) {
+                if (Boolean.TRUE.equals(contactMatches.get(row.id))) {
+                    continue;
+                }
+                boolean matches = hasPrefix(SmartDialPrefix.parseToNumberTokens(row.phoneNumber),
+                        query);
+                if (!matches && !contactMatches.containsKey(row.id)) {
+                    matches = hasPrefix(SmartDialPrefix.generateNamePrefixes(row.displayName),
+                            query);
+                }
+                contactMatches.put(row.id, matches);
+            }
+
+            final ArrayList<ContactNumber> result = Lists.newArrayList();
+            for (ContactNumber row : mRows) {
+                if (contactMatches.get(row.id)) {
+                    result.add(row);
+                }
+            }
+            return result;
+        }
+
+        private static boolean hasPrefix(ArrayList<String> prefixes, String query) {
+            for (String prefix : prefixes) {
+                if (prefix.startsWith(query)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Keeps the candidates of a query, unless the candidates have been invalidated since the
+         * given generation.
+         */
+        synchronized void set(String query, ArrayList<ContactNumber> rows, boolean complete,
+                int generation) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mQuery = query;
+            mRows = rows;
+            mComplete = complete;
+        }
+
+        /**
+         * Drops the candidates, for example because the smart dial database has been updated.
+         */
+        public synchronized void invalidate() {
+            mQuery = null;
+            mRows = null;
+            mComplete = false;
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Results of all queries of up to {@link #MAX_QUERY_LENGTH} digits, computed after every
+     * smart dial update. These are the slowest queries, as the most contacts match them, and the
+     * first key press on the dialpad is always one of them.
+     */
+    private static class PrecomputedResults {
+        /** Precomputing the 100 two digit queries as well takes a few milliseconds. */
+        static final int MAX_QUERY_LENGTH = 2;
+
+        /** Queries of one digit come first, followed by the queries of two digits and so on. */
+        static final int QUERY_COUNT = getQueryCount(MAX_QUERY_LENGTH);
+
+        /** The trie the results were computed from. They are only valid while it is current. */
+        final SmartDialTrie trie;
+        final ArrayList<ArrayList<ContactNumber>> results;
+        final ArrayList<SmartDialMatchRanges> matchRanges;
+
+        PrecomputedResults(SmartDialTrie trie) {
+            this.trie = trie;
+            results = new ArrayList<ArrayList<ContactNumber>>(QUERY_COUNT);
+            matchRanges = new ArrayList<SmartDialMatchRanges>(QUERY_COUNT);
+        }
+
+        /**
+         * Returns the index of the results of a query, or -1 if they are not precomputed.
+         */
+        static int indexOf(String query) {
+            int index = 0;
+            int queryCount = 1;
+            for (int i = 0; i < query.length(); i++) {
+                final char ch = query.charAt(i);
+                if (i == MAX_QUERY_LENGTH || ch < '0' || ch > '9') {
+                    return -1;
+                }
+                index = index * 10 + (ch - '0');
+                queryCount *= 10;
+            }
+            /** Skips the indices of all shorter queries. */
+            return query.isEmpty() ? -1 : index + (queryCount - 10) / 9;
+        }
+
+        private static int getQueryCount(int maxLength) {
+            int count = 0;
+            int queryCount = 1;
+            for (int length = 1; length <= maxLength; length++) {
+                queryCount *= 10;
+                count += queryCount;
+            }
+            return count;
+        }
+
+        /**
+         * Returns the query whose results are kept at the given index.
+         */
+        static String getQuery(int index) {
+            int length = 1;
+            int queryCount = 10;
+            while (index >= queryCount) {
+                index -= queryCount;
+                queryCount *= 10;
+                length++;
+            }
+            final char[] digits = new char[length];
+            for (int i = length - 1; i >= 0; i--) {
+                digits[i] = (char) ('0' + index % 10);
+                index /= 10;
+            }
+            return new String(digits);
+        }
+    }
+
     /**
      * Access function to get the singleton instance of DialerDatabaseHelper.
      */
@@ -344,6 +636,16 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
         super(context, databaseName, null, dbVersion);
         mContext = Preconditions.checkNotNull(context, "Context must not be null");
+        mSmartDialSnapshot = databaseName == null ? null : new SmartDialSnapshot(
+                new File(context.getCacheDir(), databaseName + SMARTDIAL_SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * Sets the number of smart dial rows that have to be inserted or deleted by updates before
+     * the index statistics are refreshed with ANALYZE.
+     */
+    public void setAnalyzeChurnThreshold(int analyzeChurnThreshold) {
+        mAnalyzeChurnThreshold = analyzeChurnThreshold;
     }
 
     /**
@@ -372,25 +674,93 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 SmartDialDbColumns.STARRED + " INTEGER, " +
                 SmartDialDbColumns.IS_SUPER_PRIMARY + " INTEGER, " +
                 SmartDialDbColumns.IN_VISIBLE_GROUP + " INTEGER, " +
-                SmartDialDbColumns.IS_PRIMARY + " INTEGER" +
+                SmartDialDbColumns.IS_PRIMARY + " INTEGER, " +
+                SmartDialDbColumns.RANK_SCORE + " INTEGER" +
         ");");
 
-        db.execSQL("CREATE TABLE " + Tables.PREFIX_TABLE + " (" +
-                PrefixColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                PrefixColumns.PREFIX + " TEXT COLLATE NOCASE, " +
-                PrefixColumns.CONTACT_ID + " INTEGER" +
-                ");");
+        createPrefixTable(db);
+        createNumberSuffixTable(db);
 
         db.execSQL("CREATE TABLE " + Tables.PROPERTIES + " (" +
                 PropertiesColumns.PROPERTY_KEY + " TEXT PRIMARY KEY, " +
                 PropertiesColumns.PROPERTY_VALUE + " TEXT " +
                 ");");
 
+        createIndices(db);
+
         setProperty(db, DATABASE_VERSION_PROPERTY, String.valueOf(DATABASE_VERSION));
-        resetSmartDialLastUpdatedTime();
+        setProperty(db, LAST_UPDATED_MILLIS_PROPERTY, "0");
+        removeLegacyLastUpdatedTime();
+    }
+
+    /**
+     * Creates the indices of the smart dial tables if they do not exist yet.
+     *
+     * @param db The database.
+     */
+    private void createIndices(SQLiteDatabase db) {
+        /** Creates index on contact_id for fast JOIN operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.CONTACT_ID  + ");");
+        /** Creates index on data_id for matching rows by the prefixes of their numbers. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_data_id_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.DATA_ID  + ");");
+        /** Creates index on last_smartdial_update_time for fast SELECT operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" +
+                SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ");");
+        /** Creates index in the sort order for fast sort operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_rank_index ON " +
+                Tables.SMARTDIAL_TABLE + " (" +
+                SmartDialDbColumns.RANK_SCORE + " DESC, " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
+                SmartDialDbColumns.CONTACT_ID + ", " +
+                SmartDialDbColumns.IS_PRIMARY + " DESC" +
+                ");");
+        /** Creates index on prefix for fast SELECT operation, covering the columns read by
+         * {@link #getLooseMatches} so that range scans never touch the table.
+         */
+        db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_index ON " +
+                Tables.PREFIX_TABLE + " (" +
+                PrefixColumns.PREFIX + ", " +
+                PrefixColumns.DATA_ID + ", " +
+                PrefixColumns.CONTACT_ID +
+                ");");
+        /** Creates index on contact_id for fast JOIN operation. */
+        db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON " +
+                Tables.PREFIX_TABLE + " (" + PrefixColumns.CONTACT_ID + ");");
+        /** Creates index on suffix covering the data id, so that infix lookups never touch the
+         * table.
+         */
+        db.execSQL("CREATE INDEX IF NOT EXISTS number_suffix_index ON " +
+                Tables.NUMBER_SUFFIX_TABLE + " (" +
+                NumberSuffixColumns.SUFFIX + ", " +
+                NumberSuffixColumns.DATA_ID +
+                ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS number_suffix_contact_id_index ON " +
+                Tables.NUMBER_SUFFIX_TABLE + " (" + NumberSuffixColumns.CONTACT_ID + ");");
+    }
+
+    private void createPrefixTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.PREFIX_TABLE + " (" +
+                PrefixColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                PrefixColumns.PREFIX + " INTEGER, " +
+                PrefixColumns.CONTACT_ID + " INTEGER, " +
+                PrefixColumns.DATA_ID + " INTEGER" +
+                ");");
+    }
+
+    private void createNumberSuffixTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.NUMBER_SUFFIX_TABLE + " (" +
+                NumberSuffixColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                NumberSuffixColumns.SUFFIX + " INTEGER, " +
+                NumberSuffixColumns.CONTACT_ID + " INTEGER, " +
+                NumberSuffixColumns.DATA_ID + " INTEGER" +
+                ");");
     }
 
     public void dropTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.NUMBER_SUFFIX_TABLE);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.SMARTDIAL_TABLE);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.PROPERTIES);
@@ -414,14 +784,129 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             return;
         }
 
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+            oldVersion = 6;
+        }
+
+        /** Versions 5 and 7 both changed the layout of the prefix table, so a single rebuild
+         * upgrades it from any older version.
+         */
+        if (oldVersion < 7) {
+            rebuildPrefixTable(db);
+            oldVersion = 7;
+        }
+
+        if (oldVersion < 8) {
+            upgradeToVersion8(db);
+            oldVersion = 8;
+        }
+
+        if (oldVersion < 9) {
+            upgradeToVersion9(db);
+            oldVersion = 9;
+        }
+
         if (oldVersion != DATABASE_VERSION) {
             throw new IllegalStateException(
                     "error upgrading the database to version " + DATABASE_VERSION);
         }
 
+        createIndices(db);
         setProperty(db, DATABASE_VERSION_PROPERTY, String.valueOf(DATABASE_VERSION));
     }
 
+    /**
+     * Rebuilds the prefix table in the current layout, with packed integer keys and the data ids
+     * of numbers. The prefix table only holds data derived from the smartdial table, so it is
+     * rebuilt from there.
+     */
+    private void rebuildPrefixTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.PREFIX_TABLE);
+        createPrefixTable(db);
+
+        final Cursor numberCursor = db.rawQuery("SELECT " +
+                SmartDialDbColumns.CONTACT_ID + ", " + SmartDialDbColumns.DATA_ID + ", " +
+                SmartDialDbColumns.NUMBER +
+                " FROM " + Tables.SMARTDIAL_TABLE, null);
+        if (numberCursor != null) {
+            final PrefixInsertPipeline numberPrefixes = new PrefixInsertPipeline(
+                    compilePrefixInsert(db), numberCursor.getCount());
+            try {
+                while (numberCursor.moveToNext()) {
+                    numberPrefixes.addNumber(numberCursor.getLong(0), numberCursor.getLong(1),
+                            numberCursor.getString(2));
+                }
+                numberPrefixes.finish();
+            } finally {
+                numberPrefixes.close();
+                numberCursor.close();
+            }
+        }
+
+        final Cursor nameCursor = db.rawQuery("SELECT DISTINCT " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " + SmartDialDbColumns.CONTACT_ID +
+                " FROM " + Tables.SMARTDIAL_TABLE, null);
+        if (nameCursor != null) {
+            try {
+                insertNamePrefixes(db, nameCursor);
+            } finally {
+                nameCursor.close();
+            }
+        }
+
+        /** Gathers statistics for the new prefix index on the next update. */
+        db.delete(Tables.PROPERTIES, PropertiesColumns.PROPERTY_KEY + "=?",
+                new String[] {ROWS_CHANGED_SINCE_ANALYZE_PROPERTY});
+    }
+
+    /**
+     * Creates the number suffix table and fills it with the suffixes of the numbers already in
+     * the smartdial table.
+     */
+    private void upgradeToVersion9(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.NUMBER_SUFFIX_TABLE);
+        createNumberSuffixTable(db);
+
+        final Cursor numberCursor = db.rawQuery("SELECT " +
+                SmartDialDbColumns.CONTACT_ID + ", " + SmartDialDbColumns.DATA_ID + ", " +
+                SmartDialDbColumns.NUMBER +
+                " FROM " + Tables.SMARTDIAL_TABLE, null);
+        if (numberCursor == null) {
+            return;
+        }
+        try {
+            final SQLiteStatement insert = compileNumberSuffixInsert(db);
+            while (numberCursor.moveToNext()) {
+                insertNumberSuffixes(insert, numberCursor.getLong(0), numberCursor.getLong(1),
+                        numberCursor.getString(2));
+            }
+        } finally {
+            numberCursor.close();
+        }
+    }
+
+    /**
+     * Moves the time of the last update from the shared preferences into the properties table.
+     */
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        final long lastUpdateMillis = mContext.getSharedPreferences(
+                DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE)
+                .getLong(LAST_UPDATED_MILLIS, 0);
+        setProperty(db, LAST_UPDATED_MILLIS_PROPERTY, String.valueOf(lastUpdateMillis));
+        removeLegacyLastUpdatedTime();
+    }
+
+    /**
+     * Replaces the sort index over the individual ranking columns with the rank score column.
+     */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS smartdial_sort_index");
+        db.execSQL("ALTER TABLE " + Tables.SMARTDIAL_TABLE + " ADD COLUMN " +
+                SmartDialDbColumns.RANK_SCORE + " INTEGER");
+        refreshRankScores(db, System.currentTimeMillis());
+    }
+
     /**
      * Stores a key-value pair in the {@link Tables#PROPERTIES} table.
      */
@@ -465,6 +950,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    public long getPropertyAsLong(SQLiteDatabase db, String key, long defaultValue) {
+        final String stored = getProperty(db, key, "");
+        try {
+            return Long.parseLong(stored);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public int getPropertyAsInt(SQLiteDatabase db, String key, int defaultValue) {
         final String stored = getProperty(db, key, "");
         try {
@@ -474,82 +968,86 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    private void resetSmartDialLastUpdatedTime() {
+    /**
+     * Removes the time of the last update kept in the shared preferences by older versions.
+     */
+    private void removeLegacyLastUpdatedTime() {
         final SharedPreferences databaseLastUpdateSharedPref = mContext.getSharedPreferences(
                 DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE);
         final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
-        editor.putLong(LAST_UPDATED_MILLIS, 0);
+        editor.remove(LAST_UPDATED_MILLIS);
         editor.commit();
     }
 
     /**
-     * Starts the database upgrade process in the background.
+     * Starts keeping the smart dial database in sync with the contacts database in the
+     * background. The first call schedules an update for the changes made since the last one,
+     * later updates are triggered by changes of the contacts, so calling this again, for
+     * example whenever the dialer is opened, does not cause any work.
      */
     public void startSmartDialUpdateThread() {
         if (PermissionsUtil.hasContactsPermissions(mContext)) {
-            new SmartDialUpdateAsyncTask().execute();
+            synchronized (this) {
+                if (mSyncScheduler == null) {
+                    mSyncScheduler = SmartDialSyncScheduler.create(mContext, this);
+                }
+            }
+            mSyncScheduler.start();
         }
     }
 
-    private class SmartDialUpdateAsyncTask extends AsyncTask {
-        @Override
-        protected Object doInBackground(Object[] objects) {
-            if (DEBUG) {
-                Log.v(TAG, "Updating database");
-            }
-            updateSmartDialDatabase();
-            return null;
-        }
+    /**
+     * Returns the metrics of the smart dial updates and queries of this database.
+     */
+    public SmartDialMetrics getSmartDialMetrics() {
+        return mMetrics;
+    }
 
-        @Override
-        protected void onCancelled() {
-            if (DEBUG) {
-                Log.v(TAG, "Updating Cancelled");
-            }
-            super.onCancelled();
+    /**
+     * Loads the persisted trie if needed and updates the smart dial database. Called on the
+     * thread of the {@link SmartDialSyncScheduler}.
+     */
+    void syncSmartDialDatabase() {
+        /** Lets queries use the trie of the last run while the database is updated. */
+        readSmartDialSnapshot();
+        final PrecomputedResults precomputed = mPrecomputedResults;
+        if (precomputed == null || precomputed.trie != mSmartDialTrie) {
+            precomputeResults();
         }
-
-        @Override
-        protected void onPostExecute(Object o) {
-            if (DEBUG) {
-                Log.v(TAG, "Updating Finished");
-            }
-            super.onPostExecute(o);
+        if (DEBUG) {
+            Log.v(TAG, "Updating database");
         }
+        updateSmartDialDatabase();
     }
+
     /**
-     * Removes rows in the smartdial database that matches the contacts that have been deleted
-     * by other apps since last update.
+     * Queries the ids of the contacts that have been deleted by other apps since last update.
+     * The contacts provider is queried before the update transaction starts, so that the
+     * transaction does not wait on another process.
      *
-     * @param db Database pointer to the dialer database.
      * @param last_update_time Time stamp of last update on the smartdial database
+     * @return The ids of the deleted contacts.
      */
-    private void removeDeletedContacts(SQLiteDatabase db, String last_update_time) {
+    private ArrayList<String> queryDeletedContactIds(String last_update_time) {
+        final ArrayList<String> contactIds = Lists.newArrayList();
         final Cursor deletedContactCursor = mContext.getContentResolver().query(
                 DeleteContactQuery.URI,
                 DeleteContactQuery.PROJECTION,
                 DeleteContactQuery.SELECT_UPDATED_CLAUSE,
                 new String[] {last_update_time}, null);
         if (deletedContactCursor == null) {
-            return;
+            return contactIds;
         }
 
-        db.beginTransaction();
         try {
             while (deletedContactCursor.moveToNext()) {
-                final Long deleteContactId =
-                        deletedContactCursor.getLong(DeleteContactQuery.DELETED_CONTACT_ID);
-                db.delete(Tables.SMARTDIAL_TABLE,
-                        SmartDialDbColumns.CONTACT_ID + "=" + deleteContactId, null);
-                db.delete(Tables.PREFIX_TABLE,
-                        PrefixColumns.CONTACT_ID + "=" + deleteContactId, null);
+                contactIds.add(Long.toString(
+                        deletedContactCursor.getLong(DeleteContactQuery.DELETED_CONTACT_ID)));
             }
-
-            db.setTransactionSuccessful();
         } finally {
             deletedContactCursor.close();
-            db.endTransaction();
         }
+        return contactIds;
     }
 
     /**
@@ -559,15 +1057,18 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
      * @param db Database pointer to the dialer database.
      * @param last_update_time Time stamp of last successful update of the dialer database.
+     * @return The number of rows removed from the smartdial table.
      */
-    private void removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
-        db.delete(Tables.PREFIX_TABLE,
-                PrefixColumns.CONTACT_ID + " IN " +
+    private int removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
+        final String corruptedContactIds =
                 "(SELECT " + SmartDialDbColumns.CONTACT_ID + " FROM " + Tables.SMARTDIAL_TABLE +
                 " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " +
-                last_update_time + ")",
-                null);
-        db.delete(Tables.SMARTDIAL_TABLE,
+                last_update_time + ")";
+        db.delete(Tables.PREFIX_TABLE,
+                PrefixColumns.CONTACT_ID + " IN " + corruptedContactIds, null);
+        db.delete(Tables.NUMBER_SUFFIX_TABLE,
+                NumberSuffixColumns.CONTACT_ID + " IN " + corruptedContactIds, null);
+        return db.delete(Tables.SMARTDIAL_TABLE,
                 SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time, null);
     }
 
@@ -578,6 +1079,12 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     void removeAllContacts(SQLiteDatabase db) {
         db.delete(Tables.SMARTDIAL_TABLE, null, null);
         db.delete(Tables.PREFIX_TABLE, null, null);
+        db.delete(Tables.NUMBER_SUFFIX_TABLE, null, null);
+        setSmartDialTrie(null);
+        mPrecomputedResults = null;
+        if (mSmartDialSnapshot != null) {
+            mSmartDialSnapshot.delete();
+        }
     }
 
     /**
@@ -594,23 +1101,70 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      *
      * @param db Database pointer to the smartdial database
      * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+     * @return The number of rows removed from the smartdial table.
+     */
+    private int removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+        /** The cursor has one row per phone number, so a contact can appear several times. */
+        final Set<Long> contactIds = new HashSet<Long>();
+        while (updatedContactCursor.moveToNext()) {
+            contactIds.add(updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+        }
+
+        final ArrayList<String> contactIdArgs = Lists.newArrayListWithCapacity(contactIds.size());
+        for (Long contactId : contactIds) {
+            contactIdArgs.add(Long.toString(contactId));
+        }
+        return removeContacts(db, contactIdArgs);
+    }
+
+    /**
+     * Removes the rows of the given contacts from the smartdial, prefix and number suffix tables
+     * in a single transaction. Contact ids are bound in batches of
+     * {@link #MAX_CONTACT_IDS_PER_DELETE}, so each table only needs a few DELETE statements
+     * however many contacts changed.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param contactIds Ids of the contacts to remove.
+     * @return The number of rows removed from the smartdial table.
      */
-    private void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
+    private int removeContacts(SQLiteDatabase db, ArrayList<String> contactIds) {
+        int removedRows = 0;
         db.beginTransaction();
         try {
-            while (updatedContactCursor.moveToNext()) {
-                final Long contactId = updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID);
-
-                db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" +
-                        contactId, null);
-                db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" +
-                        contactId, null);
+            for (int start = 0; start < contactIds.size();
+                    start += MAX_CONTACT_IDS_PER_DELETE) {
+                final int end = Math.min(start + MAX_CONTACT_IDS_PER_DELETE, contactIds.size());
+                final String[] args = contactIds.subList(start, end).toArray(
+                        new String[end - start]);
+                final String placeholders = makePlaceholders(args.length);
+
+                removedRows += db.delete(Tables.SMARTDIAL_TABLE,
+                        SmartDialDbColumns.CONTACT_ID + " IN (" + placeholders + ")", args);
+                db.delete(Tables.PREFIX_TABLE,
+                        PrefixColumns.CONTACT_ID + " IN (" + placeholders + ")", args);
+                db.delete(Tables.NUMBER_SUFFIX_TABLE,
+                        NumberSuffixColumns.CONTACT_ID + " IN (" + placeholders + ")", args);
             }
 
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        return removedRows;
+    }
+
+    /**
+     * Returns a comma separated list of the given number of SQL parameter placeholders.
+     */
+    private static String makePlaceholders(int count) {
+        final StringBuilder builder = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('?');
+        }
+        return builder.toString();
     }
 
     /**
@@ -624,6 +1178,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     protected void insertUpdatedContactsAndNumberPrefix(SQLiteDatabase db,
             Cursor updatedContactCursor, Long currentMillis) {
         db.beginTransaction();
+        PrefixInsertPipeline numberPrefixes = null;
         try {
             final String sqlInsert = "INSERT INTO " + Tables.SMARTDIAL_TABLE + " (" +
                     SmartDialDbColumns.DATA_ID + ", " +
@@ -642,11 +1197,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                     " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
             final SQLiteStatement insert = db.compileStatement(sqlInsert);
 
-            final String numberSqlInsert = "INSERT INTO " + Tables.PREFIX_TABLE + " (" +
-                    PrefixColumns.CONTACT_ID + ", " +
-                    PrefixColumns.PREFIX  + ") " +
-                    " VALUES (?, ?)";
-            final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
+            /** Prefixes of the numbers are computed in parallel and inserted as they are done. */
+            numberPrefixes = new PrefixInsertPipeline(compilePrefixInsert(db),
+                    updatedContactCursor.getCount());
+            final SQLiteStatement suffixInsert = compileNumberSuffixInsert(db);
 
             updatedContactCursor.moveToPosition(-1);
             while (updatedContactCursor.moveToNext()) {
@@ -688,67 +1242,149 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
                 insert.bindLong(13, currentMillis);
                 insert.executeInsert();
-                final String contactPhoneNumber =
-                        updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-                final ArrayList<String> numberPrefixes =
-                        SmartDialPrefix.parseToNumberTokens(contactPhoneNumber);
-
-                for (String numberPrefix : numberPrefixes) {
-                    numberInsert.bindLong(1, updatedContactCursor.getLong(
-                            PhoneQuery.PHONE_CONTACT_ID));
-                    numberInsert.bindString(2, numberPrefix);
-                    numberInsert.executeInsert();
-                    numberInsert.clearBindings();
-                }
+                numberPrefixes.addNumber(
+                        updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID),
+                        updatedContactCursor.getLong(PhoneQuery.PHONE_ID), number);
+                insertNumberSuffixes(suffixInsert,
+                        updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID),
+                        updatedContactCursor.getLong(PhoneQuery.PHONE_ID), number);
             }
+            numberPrefixes.finish();
+
+            /** Ranks the inserted rows as of the time of this update. */
+            updateRankScores(db, currentMillis, SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME +
+                    " = " + currentMillis);
 
             db.setTransactionSuccessful();
         } finally {
+            if (numberPrefixes != null) {
+                numberPrefixes.close();
+            }
             db.endTransaction();
         }
     }
 
     /**
-     * Inserts prefixes of contact names to the prefix table.
-     *
-     * @param db Database pointer to the smartdial database.
-     * @param nameCursor Cursor pointing to the list of distinct updated contacts.
+     * Compiles a statement inserting a contact id, a packed suffix and a data id into the number
+     * suffix table.
      */
-    @VisibleForTesting
-    void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
-        final int columnIndexName = nameCursor.getColumnIndex(
-                SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
-        final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
-
-        db.beginTransaction();
-        try {
-            final String sqlInsert = "INSERT INTO " + Tables.PREFIX_TABLE + " (" +
-                    PrefixColumns.CONTACT_ID + ", " +
-                    PrefixColumns.PREFIX  + ") " +
-                    " VALUES (?, ?)";
-            final SQLiteStatement insert = db.compileStatement(sqlInsert);
-
-            while (nameCursor.moveToNext()) {
-                /** Computes a list of prefixes of a given contact name. */
-                final ArrayList<String> namePrefixes =
-                        SmartDialPrefix.generateNamePrefixes(nameCursor.getString(columnIndexName));
-
-                for (String namePrefix : namePrefixes) {
-                    insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
-                    insert.bindString(2, namePrefix);
-                    insert.executeInsert();
-                    insert.clearBindings();
-                }
-            }
-
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
-        }
+    private static SQLiteStatement compileNumberSuffixInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + Tables.NUMBER_SUFFIX_TABLE + " (" +
+                NumberSuffixColumns.CONTACT_ID + ", " +
+                NumberSuffixColumns.SUFFIX  + ", " +
+                NumberSuffixColumns.DATA_ID + ") " +
+                " VALUES (?, ?, ?)");
     }
 
     /**
-     * Updates the smart dial and prefix database.
+     * Inserts the suffixes of a phone number into the number suffix table, see
+     * {@link SmartDialPrefix#generateNumberSuffixes}.
+     *
+     * @param insert Statement compiled by {@link #compileNumberSuffixInsert}.
+     */
+    private static void insertNumberSuffixes(SQLiteStatement insert, long contactId,
+            long dataId, String number) {
+        for (String suffix : SmartDialPrefix.generateNumberSuffixes(number)) {
+            insert.bindLong(1, contactId);
+            insert.bindLong(2, packPrefix(suffix));
+            insert.bindLong(3, dataId);
+            insert.executeInsert();
+            insert.clearBindings();
+        }
+    }
+
+    /**
+     * Compiles a statement inserting a contact id, a packed prefix and a data id into the prefix
+     * table.
+     */
+    private static SQLiteStatement compilePrefixInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + Tables.PREFIX_TABLE + " (" +
+                PrefixColumns.CONTACT_ID + ", " +
+                PrefixColumns.PREFIX  + ", " +
+                PrefixColumns.DATA_ID + ") " +
+                " VALUES (?, ?, ?)");
+    }
+
+    /**
+     * Packs a prefix of digits into the integer key stored in the prefix table. The key holds the
+     * first {@link #PREFIX_KEY_DIGITS} digits padded with zeros, followed by the number of digits,
+     * so that all prefixes starting with a query form a single range of keys.
+     *
+     * @param prefix Prefix consisting of the digits 0-9.
+     * @return The packed key, or -1 if the prefix contains other characters.
+     */
+    @VisibleForTesting
+    static long packPrefix(String prefix) {
+        return packPrefix(prefix, '0', Math.min(prefix.length(), PREFIX_KEY_DIGITS));
+    }
+
+    /**
+     * Returns the smallest key of a prefix that starts with the query, or -1 if the query contains
+     * characters other than digits.
+     */
+    @VisibleForTesting
+    static long getPrefixKeyLowerBound(String query) {
+        return packPrefix(query);
+    }
+
+    /**
+     * Returns the largest key of a prefix that starts with the query, or -1 if the query contains
+     * characters other than digits. Only the first {@link #PREFIX_KEY_DIGITS} digits of longer
+     * queries are taken into account.
+     */
+    @VisibleForTesting
+    static long getPrefixKeyUpperBound(String query) {
+        return packPrefix(query, '9', PREFIX_KEY_DIGITS);
+    }
+
+    private static long packPrefix(String prefix, char padding, int length) {
+        long key = 0;
+        for (int i = 0; i < PREFIX_KEY_DIGITS; i++) {
+            final char ch = i < prefix.length() ? prefix.charAt(i) : padding;
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            key = key * 10 + (ch - '0');
+        }
+        return key * (PREFIX_KEY_DIGITS + 1) + length;
+    }
+
+    /**
+     * Inserts prefixes of contact names to the prefix table.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param nameCursor Cursor pointing to the list of distinct updated contacts.
+     */
+    @VisibleForTesting
+    void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
+        final int columnIndexName = nameCursor.getColumnIndex(
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
+        final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
+
+        db.beginTransaction();
+        PrefixInsertPipeline namePrefixes = null;
+        try {
+            /** Prefixes of the names are computed in parallel and inserted as they are done. */
+            namePrefixes = new PrefixInsertPipeline(compilePrefixInsert(db),
+                    nameCursor.getCount());
+
+            while (nameCursor.moveToNext()) {
+                namePrefixes.addName(nameCursor.getLong(columnIndexContactId),
+                        nameCursor.getString(columnIndexName));
+            }
+            namePrefixes.finish();
+
+            db.setTransactionSuccessful();
+        } finally {
+            if (namePrefixes != null) {
+                namePrefixes.close();
+            }
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the smart dial and prefix database.
      * This method queries the Delta API to get changed contacts since last update, and updates the
      * records in smartdial database and prefix database accordingly.
      * It also queries the deleted contact database to remove newly deleted contacts since last
@@ -761,17 +1397,20 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             if (DEBUG) {
                 Log.v(TAG, "Starting to update database");
             }
-            final StopWatch stopWatch = DEBUG ? StopWatch.start("Updating databases") : null;
+            final SmartDialMetrics.UpdateTimer timer = mMetrics.startUpdate();
 
             /** Gets the last update time on the database. */
-            final SharedPreferences databaseLastUpdateSharedPref = mContext.getSharedPreferences(
-                    DATABASE_LAST_CREATED_SHARED_PREF, Context.MODE_PRIVATE);
             final String lastUpdateMillis = String.valueOf(
-                    databaseLastUpdateSharedPref.getLong(LAST_UPDATED_MILLIS, 0));
+                    getPropertyAsLong(db, LAST_UPDATED_MILLIS_PROPERTY, 0));
 
             if (DEBUG) {
                 Log.v(TAG, "Last updated at " + lastUpdateMillis);
             }
+            /**
+             * Queries the deleted contacts first, so that the cursor of the updated contacts is
+             * not leaked if this query fails.
+             */
+            final ArrayList<String> deletedContactIds = queryDeletedContactIds(lastUpdateMillis);
             /** Queries the contact database to get contacts that have been updated since the last
              * update time.
              */
@@ -784,125 +1423,275 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 }
                 return;
             }
+            timer.lap(SmartDialMetrics.PHASE_QUERY_CONTACTS, updatedContactCursor.getCount());
 
             /** Sets the time after querying the database as the current update time. */
             final Long currentMillis = System.currentTimeMillis();
 
+            /** Makes queries read the in-memory snapshot until the update is finished. */
+            boolean analyze = false;
+            sUpdateSequence.incrementAndGet();
             try {
-                if (DEBUG) {
-                    stopWatch.lap("Queried the Contacts database");
-                }
-
-                /** Prevents the app from reading the dialer database when updating. */
-                sInUpdate.getAndSet(true);
-
-                /** Removes contacts that have been deleted. */
-                removeDeletedContacts(db, lastUpdateMillis);
-                removePotentiallyCorruptedContacts(db, lastUpdateMillis);
-
-                if (DEBUG) {
-                    stopWatch.lap("Finished deleting deleted entries");
+                /** Applies all changes and the new update time in a single transaction, so a
+                 * failed update is retried from the same point by the next one.
+                 */
+                db.beginTransaction();
+                try {
+                    analyze = updateSmartDialTables(db, updatedContactCursor, deletedContactIds,
+                            lastUpdateMillis, currentMillis, timer);
+                    setProperty(db, LAST_UPDATED_MILLIS_PROPERTY, String.valueOf(currentMillis));
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
+                timer.lap(SmartDialMetrics.PHASE_COMMIT);
 
-                /** If the database did not exist before, jump through deletion as there is nothing
-                 * to delete.
+                /** Moves contacts between data usage buckets once a day, in a transaction of its
+                 * own. The trie is built from the new ranks.
                  */
-                if (!lastUpdateMillis.equals("0")) {
-                    /** Removes contacts that have been updated. Updated contact information will be
-                     * inserted later.
-                     */
-                    removeUpdatedContacts(db, updatedContactCursor);
-                    if (DEBUG) {
-                        stopWatch.lap("Finished deleting updated entries");
+                if (currentMillis / DAY_MS != getPropertyAsLong(db,
+                        RANK_SCORE_REFRESH_MILLIS_PROPERTY, 0) / DAY_MS) {
+                    db.beginTransaction();
+                    try {
+                        refreshRankScores(db, currentMillis);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
                     }
+                    timer.lap(SmartDialMetrics.PHASE_RANK_SCORES);
                 }
-
-                /** Inserts recently updated contacts to the smartdial database.*/
-                insertUpdatedContactsAndNumberPrefix(db, updatedContactCursor, currentMillis);
+                rebuildSmartDialTrie(db);
+                timer.lap(SmartDialMetrics.PHASE_TRIE);
                 if (DEBUG) {
-                    stopWatch.lap("Finished building the smart dial table");
+                    Log.v(TAG, "Rebuilt smart dial trie");
                 }
             } finally {
-                /** Inserts prefixes of phone numbers into the prefix table.*/
-                updatedContactCursor.close();
+                sUpdateSequence.incrementAndGet();
+            }
+            precomputeResults();
+            timer.lap(SmartDialMetrics.PHASE_PRECOMPUTE);
+
+            /** Persists the new trie, so the next process can answer queries right away. */
+            final SmartDialTrie trie = mSmartDialTrie;
+            if (mSmartDialSnapshot != null && trie != null) {
+                mSmartDialSnapshot.write(trie, currentMillis);
+                timer.lap(SmartDialMetrics.PHASE_SNAPSHOT);
             }
 
-            /** Gets a list of distinct contacts which have been updated, and adds the name prefixes
-             * of these contacts to the prefix table.
+            /** Updates the database index statistics once enough rows have changed. This runs
+             * after the update is committed and queries are answered from the new trie, since it
+             * reads every table.
              */
-            final Cursor nameCursor = db.rawQuery(
-                    "SELECT DISTINCT " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " + SmartDialDbColumns.CONTACT_ID +
-                    " FROM " + Tables.SMARTDIAL_TABLE +
-                    " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME +
-                    " = " + Long.toString(currentMillis),
-                    new String[] {});
-            if (nameCursor != null) {
-                try {
-                    if (DEBUG) {
-                        stopWatch.lap("Queried the smart dial table for contact names");
-                    }
-
-                    /** Inserts prefixes of names into the prefix table.*/
-                    insertNamePrefixes(db, nameCursor);
-                    if (DEBUG) {
-                        stopWatch.lap("Finished building the name prefix table");
-                    }
-                } finally {
-                    nameCursor.close();
-                }
+            if (analyze) {
+                db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
+                db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
+                db.execSQL("ANALYZE " + Tables.NUMBER_SUFFIX_TABLE);
+                setProperty(db, ROWS_CHANGED_SINCE_ANALYZE_PROPERTY, "0");
+                timer.lap(SmartDialMetrics.PHASE_ANALYZE);
             }
+            timer.finish();
 
-            /** Creates index on contact_id for fast JOIN operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" + SmartDialDbColumns.CONTACT_ID  + ");");
-            /** Creates index on last_smartdial_update_time for fast SELECT operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_last_update_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + ");");
-            /** Creates index on sorting fields for fast sort operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS smartdial_sort_index ON " +
-                    Tables.SMARTDIAL_TABLE + " (" +
-                    SmartDialDbColumns.STARRED + ", " +
-                    SmartDialDbColumns.IS_SUPER_PRIMARY + ", " +
-                    SmartDialDbColumns.LAST_TIME_USED + ", " +
-                    SmartDialDbColumns.TIMES_USED + ", " +
-                    SmartDialDbColumns.IN_VISIBLE_GROUP +  ", " +
-                    SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                    SmartDialDbColumns.CONTACT_ID + ", " +
-                    SmartDialDbColumns.IS_PRIMARY +
-                    ");");
-            /** Creates index on prefix for fast SELECT operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_index ON " +
-                    Tables.PREFIX_TABLE + " (" + PrefixColumns.PREFIX + ");");
-            /** Creates index on contact_id for fast JOIN operation. */
-            db.execSQL("CREATE INDEX IF NOT EXISTS nameprefix_contact_id_index ON " +
-                    Tables.PREFIX_TABLE + " (" + PrefixColumns.CONTACT_ID + ");");
+            // Notify content observers that smart dial database has been updated.
+            mContext.getContentResolver().notifyChange(SMART_DIAL_UPDATED_URI, null, false);
+        }
+    }
+
+    /**
+     * Applies the changes of the contacts database since the last update to the smart dial
+     * tables. Must be called inside a transaction.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
+     * @param deletedContactIds Ids of the contacts deleted since the last update.
+     * @param lastUpdateMillis Time stamp of the last successful update.
+     * @param currentMillis Time stamp to record for this update.
+     * @param timer Timer of the update, recording each phase.
+     * @return Whether enough rows have changed for the index statistics to be refreshed.
+     */
+    private boolean updateSmartDialTables(SQLiteDatabase db, Cursor updatedContactCursor,
+            ArrayList<String> deletedContactIds, String lastUpdateMillis, Long currentMillis,
+            SmartDialMetrics.UpdateTimer timer) {
+        int changedRows = 0;
+        try {
+            /** Removes contacts that have been deleted. */
+            final int deletedRows = removeContacts(db, deletedContactIds);
+            changedRows += deletedRows + removePotentiallyCorruptedContacts(db, lastUpdateMillis);
 
             if (DEBUG) {
-                stopWatch.lap(TAG + "Finished recreating index");
+                Log.v(TAG, "Finished deleting " + deletedRows + " deleted entries");
             }
 
-            /** Updates the database index statistics.*/
-            db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
-            db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
-            db.execSQL("ANALYZE smartdial_contact_id_index");
-            db.execSQL("ANALYZE smartdial_last_update_index");
-            db.execSQL("ANALYZE nameprefix_index");
-            db.execSQL("ANALYZE nameprefix_contact_id_index");
-            if (DEBUG) {
-                stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
+            /** If the database did not exist before, jump through deletion as there is nothing
+             * to delete.
+             */
+            if (!lastUpdateMillis.equals("0")) {
+                /** Removes contacts that have been updated. Updated contact information will be
+                 * inserted later.
+                 */
+                final int updatedRows = removeUpdatedContacts(db, updatedContactCursor);
+                changedRows += updatedRows;
+                if (DEBUG) {
+                    Log.v(TAG, "Finished deleting " + updatedRows + " updated entries");
+                }
             }
+            timer.lap(SmartDialMetrics.PHASE_DELETE, changedRows);
 
-            sInUpdate.getAndSet(false);
+            /** Inserts recently updated contacts to the smartdial database.*/
+            insertUpdatedContactsAndNumberPrefix(db, updatedContactCursor, currentMillis);
+            changedRows += updatedContactCursor.getCount();
+            timer.lap(SmartDialMetrics.PHASE_INSERT, updatedContactCursor.getCount());
+        } finally {
+            /** Inserts prefixes of phone numbers into the prefix table.*/
+            updatedContactCursor.close();
+        }
 
-            final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
-            editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
-            editor.commit();
+        /** Gets a list of distinct contacts which have been updated, and adds the name prefixes
+         * of these contacts to the prefix table.
+         */
+        final Cursor nameCursor = db.rawQuery(
+                "SELECT DISTINCT " +
+                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " + SmartDialDbColumns.CONTACT_ID +
+                " FROM " + Tables.SMARTDIAL_TABLE +
+                " WHERE " + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME +
+                " = " + Long.toString(currentMillis),
+                new String[] {});
+        if (nameCursor != null) {
+            try {
+                /** Inserts prefixes of names into the prefix table.*/
+                insertNamePrefixes(db, nameCursor);
+                timer.lap(SmartDialMetrics.PHASE_NAME_PREFIXES, nameCursor.getCount());
+            } finally {
+                nameCursor.close();
+            }
+        }
 
-            // Notify content observers that smart dial database has been updated.
-            mContext.getContentResolver().notifyChange(SMART_DIAL_UPDATED_URI, null, false);
+        return updateChurnAndCheckAnalyze(db, changedRows);
+    }
+
+    /**
+     * Brings the rank scores of all rows up to date. Data usage buckets only change as time
+     * passes for contacts used within {@link SmartDialSortingOrder#LAST_TIME_USED_RECENT_MS}
+     * before the previous refresh, so only those rows are updated.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param currentMillis Time to rank the rows at.
+     */
+    private void refreshRankScores(SQLiteDatabase db, long currentMillis) {
+        final long previousMillis = getPropertyAsLong(db, RANK_SCORE_REFRESH_MILLIS_PROPERTY, 0);
+        final String selection = previousMillis == 0 ? null :
+                SmartDialDbColumns.LAST_TIME_USED + " >= " +
+                (previousMillis - SmartDialSortingOrder.LAST_TIME_USED_RECENT_MS);
+        updateRankScores(db, currentMillis, selection);
+        setProperty(db, RANK_SCORE_REFRESH_MILLIS_PROPERTY, String.valueOf(currentMillis));
+    }
+
+    /**
+     * Computes the rank scores of the selected rows.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param currentMillis Time to compute the data usage buckets at.
+     * @param selection Rows to update, or null for all rows.
+     */
+    private static void updateRankScores(SQLiteDatabase db, long currentMillis,
+            String selection) {
+        db.execSQL("UPDATE " + Tables.SMARTDIAL_TABLE +
+                " SET " + SmartDialDbColumns.RANK_SCORE + " = " + SmartDialSortingOrder.RANK_SCORE +
+                (selection == null ? "" : " WHERE " + selection),
+                new Object[] {currentMillis});
+    }
+
+    /**
+     * Adds the rows changed by an update to the number of rows changed since the index statistics
+     * were last refreshed.
+     *
+     * @param db Database pointer to the smartdial database.
+     * @param changedRows Number of smart dial rows inserted or deleted by the update.
+     * @return Whether the statistics have to be refreshed, either because the number of changed
+     * rows reached the churn threshold or because they were never gathered.
+     */
+    private boolean updateChurnAndCheckAnalyze(SQLiteDatabase db, int changedRows) {
+        final int previousRows = getPropertyAsInt(db, ROWS_CHANGED_SINCE_ANALYZE_PROPERTY, -1);
+        if (previousRows < 0) {
+            return true;
+        }
+        /** The count is kept until the statistics are refreshed, so that a refresh that did not
+         * run after the update is run after the next one.
+         */
+        final int totalRows = previousRows + changedRows;
+        setProperty(db, ROWS_CHANGED_SINCE_ANALYZE_PROPERTY, String.valueOf(totalRows));
+        return totalRows >= mAnalyzeChurnThreshold;
+    }
+
+    /**
+     * Rebuilds the in-memory smart dial trie from the smart dial table and publishes it for
+     * subsequent queries.
+     *
+     * @param db Database pointer to the smartdial database.
+     */
+    @VisibleForTesting
+    void rebuildSmartDialTrie(SQLiteDatabase db) {
+        final Cursor cursor = db.rawQuery("SELECT " + SMARTDIAL_MATCH_COLUMNS +
+                " FROM " + Tables.SMARTDIAL_TABLE +
+                " ORDER BY " + SmartDialSortingOrder.SORT_ORDER, null);
+        if (cursor == null) {
+            return;
         }
+        final SmartDialTrie.Builder builder =
+                new SmartDialTrie.Builder(SMART_DIAL_TRIE_NODE_CAPACITY);
+        try {
+            while (cursor.moveToNext()) {
+                builder.addRow(readContactNumber(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        setSmartDialTrie(builder.build());
+    }
+
+    private synchronized void setSmartDialTrie(SmartDialTrie trie) {
+        mSmartDialTrie = trie;
+    }
+
+    /**
+     * Loads the trie persisted by the last update of the smart dial database, unless a trie has
+     * been built already. Only the first call reads the snapshot file.
+     */
+    @VisibleForTesting
+    void readSmartDialSnapshot() {
+        if (mSmartDialSnapshot == null || !mSmartDialSnapshotRead.compareAndSet(false, true)) {
+            return;
+        }
+        final long lastUpdateMillis =
+                getPropertyAsLong(getReadableDatabase(), LAST_UPDATED_MILLIS_PROPERTY, 0);
+        if (lastUpdateMillis == 0) {
+            return;
+        }
+        final SmartDialTrie trie = mSmartDialSnapshot.read(lastUpdateMillis);
+        if (trie == null) {
+            return;
+        }
+        synchronized (this) {
+            /** An update may have finished while the snapshot was read. */
+            if (mSmartDialTrie == null) {
+                mSmartDialTrie = trie;
+            }
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Loaded smart dial trie from snapshot");
+        }
+    }
+
+    /**
+     * Reads a {@link ContactNumber} from a cursor over {@link #SMARTDIAL_MATCH_COLUMNS}.
+     */
+    private static ContactNumber readContactNumber(Cursor cursor) {
+        final long dataID = cursor.getLong(0);
+        final String displayName = cursor.getString(1);
+        final long photoId = cursor.getLong(2);
+        final String phoneNumber = cursor.getString(3);
+        final long id = cursor.getLong(4);
+        final String lookupKey = cursor.getString(5);
+        return new ContactNumber(id, dataID, displayName, phoneNumber, lookupKey, photoId);
     }
 
     /**
@@ -914,104 +1703,525 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
      */
     public ArrayList<ContactNumber>  getLooseMatches(String query,
             SmartDialNameMatcher nameMatcher) {
-        final boolean inUpdate = sInUpdate.get();
-        if (inUpdate) {
-            return Lists.newArrayList();
+        return getLooseMatches(query, nameMatcher, null);
+    }
+
+    /**
+     * Returns a list of candidate contacts where the query is a prefix of the dialpad index of
+     * the contact's name or phone number. If the candidates of a previous query that the given
+     * query extends are known, the result is computed from them without a database query.
+     *
+     * @param query The prefix of a contact's dialpad index.
+     * @param nameMatcher Name matcher configured with the query.
+     * @param candidates Candidates of the previous query, or null. Updated to hold the candidates
+     * of this query.
+     * @return A list of top candidate contacts that will be suggested to user to match their input.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, SmartDialCandidates candidates) {
+        return getLooseMatches(query, nameMatcher, candidates, null, null);
+    }
+
+    /**
+     * Returns a list of candidate contacts where the query is a prefix of the dialpad index of
+     * the contact's name or phone number, like {@link #getLooseMatches(String,
+     * SmartDialNameMatcher, SmartDialCandidates)}, stopping early once the signal is canceled.
+     *
+     * @param cancellationSignal Signal checked while reading candidates, or null.
+     * @param matchRanges Filled with the highlight ranges of the returned rows, in the same
+     * order, or null.
+     * @throws OperationCanceledException If the signal is canceled while querying.
+     */
+    public ArrayList<ContactNumber> getLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, SmartDialCandidates candidates,
+            CancellationSignal cancellationSignal, SmartDialMatchRanges matchRanges) {
+        if (mSmartDialTrie == null) {
+            readSmartDialSnapshot();
         }
 
-        final SQLiteDatabase db = getReadableDatabase();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
 
-        /** Uses SQL query wildcard '%' to represent prefix matching.*/
-        final String looseQuery = query + "%";
+        /** Answers the shortest queries from memory, unless the trie has changed since. */
+        final PrecomputedResults precomputed = mPrecomputedResults;
+        final int index = PrecomputedResults.indexOf(query);
+        if (index >= 0 && precomputed != null && precomputed.trie == mSmartDialTrie) {
+            if (candidates != null) {
+                candidates.set(query, new ArrayList<ContactNumber>(), false,
+                        candidates.getGeneration());
+            }
+            if (matchRanges != null) {
+                matchRanges.copyFrom(precomputed.matchRanges.get(index));
+            }
+            final ArrayList<ContactNumber> result =
+                    new ArrayList<ContactNumber>(precomputed.results.get(index));
+            mMetrics.recordQuery(SmartDialMetrics.PATH_PRECOMPUTED,
+                    SystemClock.elapsedRealtimeNanos() - startNanos, 0, result.size());
+            return result;
+        }
 
-        final ArrayList<ContactNumber> result = Lists.newArrayList();
+        final SmartDialMetrics.QueryTrace trace = new SmartDialMetrics.QueryTrace();
+        final ArrayList<ContactNumber> result;
+        try {
+            result = queryLooseMatches(query, nameMatcher, candidates, cancellationSignal,
+                    matchRanges, trace);
+            /** Numbers containing the query in their middle rank after all prefix matches. */
+            if (nameMatcher.isNumberInfixMatching()
+                    && query.length() >= SmartDialPrefix.MIN_INFIX_QUERY_LENGTH
+                    && result.size() < MAX_ENTRIES
+                    && !isUpdating(sUpdateSequence.get())) {
+                addInfixNumberMatches(query, nameMatcher, result, matchRanges,
+                        cancellationSignal, trace);
+            }
+            /** Corrected queries rank after all exact matches. */
+            if (nameMatcher.isFuzzyMatching()
+                    && query.length() >= SmartDialPrefix.MIN_FUZZY_QUERY_LENGTH
+                    && result.size() < MAX_ENTRIES
+                    && !isUpdating(sUpdateSequence.get())) {
+                addFuzzyMatches(query, nameMatcher, result, matchRanges, cancellationSignal,
+                        trace);
+            }
+        } catch (OperationCanceledException e) {
+            mMetrics.recordCanceledQuery();
+            throw e;
+        }
+        mMetrics.recordQuery(trace.path, SystemClock.elapsedRealtimeNanos() - startNanos,
+                trace.scannedRows, result.size());
+        return result;
+    }
+
+    /**
+     * Computes the results of {@link #getLooseMatches(String, SmartDialNameMatcher,
+     * SmartDialCandidates, CancellationSignal, SmartDialMatchRanges)} without using the
+     * precomputed results.
+     *
+     * @param trace Filled with the path taken and the number of candidate rows scanned.
+     */
+    private ArrayList<ContactNumber> queryLooseMatches(String query,
+            SmartDialNameMatcher nameMatcher, SmartDialCandidates candidates,
+            CancellationSignal cancellationSignal, SmartDialMatchRanges matchRanges,
+            SmartDialMetrics.QueryTrace trace) {
+        if (matchRanges != null) {
+            matchRanges.clear();
+        }
+
+        /** While the tables are being updated, answers from the snapshot of the last update. */
+        final int updateSequence = sUpdateSequence.get();
+        if (isUpdating(updateSequence)) {
+            if (candidates != null) {
+                candidates.invalidate();
+            }
+            return getSnapshotMatches(query, nameMatcher, matchRanges, trace);
+        }
+
+        final int generation = candidates != null ? candidates.getGeneration() : 0;
+
+        /** Narrows down the candidates of the previous query if the query extends it. */
+        final ArrayList<ContactNumber> narrowedRows =
+                candidates != null ? candidates.narrowRows(query) : null;
+        if (narrowedRows != null) {
+            trace.path = SmartDialMetrics.PATH_NARROWED;
+            final ArrayList<ContactNumber> result = Lists.newArrayList();
+            final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+            for (ContactNumber candidate : narrowedRows) {
+                if (result.size() >= MAX_ENTRIES) {
+                    break;
+                }
+                throwIfCanceled(cancellationSignal);
+                trace.scannedRows++;
+                addIfMatches(candidate, query, nameMatcher, duplicates, result, matchRanges);
+            }
+            candidates.set(query, narrowedRows, result.size() < MAX_ENTRIES, generation);
+            return result;
+        }
+
+        /** Answers the query from the in-memory trie when it is able to. */
+        final SmartDialTrie trie = mSmartDialTrie;
+        if (trie != null) {
+            final int node = trie.findNode(query);
+            trace.path = SmartDialMetrics.PATH_TRIE;
+            if (node == SmartDialTrie.NO_MATCH) {
+                if (candidates != null) {
+                    candidates.set(query, new ArrayList<ContactNumber>(), true, generation);
+                }
+                return Lists.newArrayList();
+            }
+            if (node != SmartDialTrie.NOT_INDEXED) {
+                final ArrayList<ContactNumber> candidateRows = trie.getCandidateRows(node);
+                final ArrayList<ContactNumber> result = Lists.newArrayList();
+                final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+                for (ContactNumber candidate : candidateRows) {
+                    if (result.size() >= MAX_ENTRIES) {
+                        break;
+                    }
+                    throwIfCanceled(cancellationSignal);
+                    trace.scannedRows++;
+                    addIfMatches(candidate, query, nameMatcher, duplicates, result, matchRanges);
+                }
+                /** The trie only keeps the top contacts of each node. If too many of them were
+                 * rejected by the name matcher, let the database find the remaining ones.
+                 */
+                if (result.size() >= MAX_ENTRIES || !trie.isTruncated(node)) {
+                    if (candidates != null) {
+                        candidates.set(query, candidateRows, result.size() < MAX_ENTRIES,
+                                generation);
+                    }
+                    return result;
+                }
+            }
+        }
+
+        trace.path = SmartDialMetrics.PATH_DATABASE;
+        final SQLiteDatabase db = getReadableDatabase();
+
+        /** Prefixes starting with the query form a range of packed keys. */
+        final long lowerKey = getPrefixKeyLowerBound(query);
+        final long upperKey = getPrefixKeyUpperBound(query);
 
         final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
 
-        final String currentTimeStamp = Long.toString(System.currentTimeMillis());
+        /** SQLite returns at most one row per contact, so usually the first MAX_ENTRIES rows are
+         * all shown. Only if the name matcher rejects some of them is the query repeated without
+         * a limit to find the remaining contacts.
+         */
+        final ArrayList<ContactNumber> result = Lists.newArrayList();
+        int limit = MAX_ENTRIES;
+        while (true) {
+            result.clear();
+            if (matchRanges != null) {
+                matchRanges.clear();
+            }
+            final int rowCount = queryTopContacts(db, lowerKey, upperKey, limit, query,
+                    nameMatcher, result, matchRanges, cancellationSignal);
+            if (DEBUG) {
+                stopWatch.lap("Read " + rowCount + " rows with limit " + limit);
+            }
+            if (rowCount < 0) {
+                if (candidates != null) {
+                    candidates.invalidate();
+                }
+                return result;
+            }
+            trace.scannedRows += rowCount;
+            if (result.size() >= MAX_ENTRIES || limit < 0 || rowCount < limit) {
+                break;
+            }
+            limit = -1;
+        }
+        if (DEBUG) {
+            stopWatch.stopAndLog(TAG + "Finished loading cursor", 0);
+        }
 
-        /** Queries the database to find contacts that have an index matching the query prefix. */
-        final Cursor cursor = db.rawQuery("SELECT " +
-                SmartDialDbColumns.DATA_ID + ", " +
-                SmartDialDbColumns.DISPLAY_NAME_PRIMARY + ", " +
-                SmartDialDbColumns.PHOTO_ID + ", " +
-                SmartDialDbColumns.NUMBER + ", " +
-                SmartDialDbColumns.CONTACT_ID + ", " +
-                SmartDialDbColumns.LOOKUP_KEY +
+        /** If an update ran during the query, the rows read may mix old and new contacts. */
+        if (sUpdateSequence.get() != updateSequence) {
+            if (candidates != null) {
+                candidates.invalidate();
+            }
+            return getSnapshotMatches(query, nameMatcher, matchRanges, trace);
+        }
+        /** Only the best matching row of each contact has been read, which is not enough to
+         * narrow down the results of a longer query.
+         */
+        if (candidates != null) {
+            candidates.set(query, new ArrayList<ContactNumber>(), false, generation);
+        }
+        return result;
+    }
+
+    /**
+     * Queries the best matching row of each contact that has a prefix in the given range of
+     * packed keys, in the order of {@link SmartDialSortingOrder#SORT_ORDER}, and adds the rows
+     * accepted by the name matcher to the result.
+     *
+     * A name prefix matches every row of its contact, while a number prefix only matches the row
+     * holding that number, so rows whose number does not match are never read.
+     *
+     * @param limit Maximum number of rows to read, or -1 to read all of them.
+     * @param matchRanges Filled with the highlight ranges of the added rows, or null.
+     * @param cancellationSignal Signal checked while reading rows, or null.
+     * @return Number of rows read, or -1 if the query failed. Reading stops once the result is
+     * full.
+     */
+    private int queryTopContacts(SQLiteDatabase db, long lowerKey, long upperKey, int limit,
+            String query, SmartDialNameMatcher nameMatcher, ArrayList<ContactNumber> result,
+            SmartDialMatchRanges matchRanges, CancellationSignal cancellationSignal) {
+        final String prefixRange = PrefixColumns.PREFIX +
+                " BETWEEN " + lowerKey + " AND " + upperKey;
+        final Cursor cursor = db.rawQuery("SELECT " + SMARTDIAL_MATCH_COLUMNS + ", " +
+                SmartDialSortingOrder.BEST_ROW_RANK +
                 " FROM " + Tables.SMARTDIAL_TABLE + " WHERE " +
                 SmartDialDbColumns.CONTACT_ID + " IN " +
                     " (SELECT " + PrefixColumns.CONTACT_ID +
                     " FROM " + Tables.PREFIX_TABLE +
-                    " WHERE " + Tables.PREFIX_TABLE + "." + PrefixColumns.PREFIX +
-                    " LIKE '" + looseQuery + "')" +
-                " ORDER BY " + SmartDialSortingOrder.SORT_ORDER,
-                new String[] {currentTimeStamp});
+                    " WHERE " + prefixRange +
+                    " AND " + PrefixColumns.DATA_ID + " IS NULL)" +
+                " OR " + SmartDialDbColumns.DATA_ID + " IN " +
+                    " (SELECT " + PrefixColumns.DATA_ID +
+                    " FROM " + Tables.PREFIX_TABLE +
+                    " WHERE " + prefixRange +
+                    " AND " + PrefixColumns.DATA_ID + " IS NOT NULL)" +
+                " GROUP BY " + SmartDialDbColumns.LOOKUP_KEY + ", " +
+                SmartDialDbColumns.CONTACT_ID +
+                " ORDER BY " + SmartDialSortingOrder.GROUPED_SORT_ORDER +
+                " LIMIT " + limit, null, cancellationSignal);
         if (cursor == null) {
-            return result;
+            return -1;
         }
         try {
-            if (DEBUG) {
-                stopWatch.lap("Prefix query completed");
+            final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+            int rowCount = 0;
+            while (result.size() < MAX_ENTRIES && cursor.moveToNext()) {
+                throwIfCanceled(cancellationSignal);
+                rowCount++;
+                addIfMatches(readContactNumber(cursor), query, nameMatcher, duplicates, result,
+                        matchRanges);
             }
+            return rowCount;
+        } finally {
+            cursor.close();
+        }
+    }
 
-            /** Gets the column ID from the cursor.*/
-            final int columnDataId = 0;
-            final int columnDisplayNamePrimary = 1;
-            final int columnPhotoId = 2;
-            final int columnNumber = 3;
-            final int columnId = 4;
-            final int columnLookupKey = 5;
-            if (DEBUG) {
-                stopWatch.lap("Found column IDs");
+    /**
+     * Appends the rows whose phone number contains the query past its first digit, looked up in
+     * the number suffix table, until the result is full. Contacts already in the result are
+     * skipped.
+     *
+     * Short queries such as "0000" are contained in many numbers, so the rows are first read
+     * with a limit. Only if the name matcher or the contacts already in the result rejected some
+     * of them are the remaining rows read.
+     *
+     * @param matchRanges Filled with the highlight ranges of the added rows, or null.
+     * @param cancellationSignal Signal checked while reading rows, or null.
+     */
+    private void addInfixNumberMatches(String query, SmartDialNameMatcher nameMatcher,
+            ArrayList<ContactNumber> result, SmartDialMatchRanges matchRanges,
+            CancellationSignal cancellationSignal, SmartDialMetrics.QueryTrace trace) {
+        final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+        for (ContactNumber contact : result) {
+            duplicates.add(new ContactMatch(contact.lookupKey, contact.id));
+        }
+
+        final SQLiteDatabase db = getReadableDatabase();
+        final int rowCount = queryInfixNumberMatches(db, query, MAX_ENTRIES, 0, nameMatcher,
+                duplicates, result, matchRanges, cancellationSignal);
+        if (rowCount < 0) {
+            return;
+        }
+        trace.scannedRows += rowCount;
+        if (result.size() < MAX_ENTRIES && rowCount == MAX_ENTRIES) {
+            trace.scannedRows += Math.max(0, queryInfixNumberMatches(db, query, -1, MAX_ENTRIES,
+                    nameMatcher, duplicates, result, matchRanges, cancellationSignal));
+        }
+    }
+
+    /**
+     * Queries the rows whose phone number contains the query past its first digit, in the order
+     * of {@link SmartDialSortingOrder#SORT_ORDER} followed by the data id, and adds the rows
+     * accepted by the name matcher to the result.
+     *
+     * @param limit Maximum number of rows to read, or -1 to read all of them.
+     * @param offset Number of rows to skip, which have been read by a previous call.
+     * @param duplicates Contacts already in the result. Updated with the added ones.
+     * @return Number of rows read, or -1 if the query failed. Reading stops once the result is
+     * full.
+     */
+    private int queryInfixNumberMatches(SQLiteDatabase db, String query, int limit, int offset,
+            SmartDialNameMatcher nameMatcher, Set<ContactMatch> duplicates,
+            ArrayList<ContactNumber> result, SmartDialMatchRanges matchRanges,
+            CancellationSignal cancellationSignal) {
+        /** The data id makes the order total, so that the rows skipped by the offset are
+         * exactly the ones read before.
+         */
+        final Cursor cursor = db.rawQuery("SELECT " + SMARTDIAL_MATCH_COLUMNS +
+                " FROM " + Tables.SMARTDIAL_TABLE + " WHERE " +
+                SmartDialDbColumns.DATA_ID + " IN " +
+                    " (SELECT " + NumberSuffixColumns.DATA_ID +
+                    " FROM " + Tables.NUMBER_SUFFIX_TABLE +
+                    " WHERE " + NumberSuffixColumns.SUFFIX +
+                    " BETWEEN " + getPrefixKeyLowerBound(query) +
+                    " AND " + getPrefixKeyUpperBound(query) + ")" +
+                " ORDER BY " + SmartDialSortingOrder.SORT_ORDER + ", " +
+                Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.DATA_ID +
+                " LIMIT " + limit + " OFFSET " + offset, null, cancellationSignal);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            int rowCount = 0;
+            while (result.size() < MAX_ENTRIES && cursor.moveToNext()) {
+                throwIfCanceled(cancellationSignal);
+                rowCount++;
+                addIfMatches(readContactNumber(cursor), query, nameMatcher, duplicates, result,
+                        matchRanges);
             }
+            return rowCount;
+        } finally {
+            cursor.close();
+        }
+    }
 
-            final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
-            int counter = 0;
-            if (DEBUG) {
-                stopWatch.lap("Moved cursor to start");
-            }
-            /** Iterates the cursor to find top contact suggestions without duplication.*/
-            while ((cursor.moveToNext()) && (counter < MAX_ENTRIES)) {
-                final long dataID = cursor.getLong(columnDataId);
-                final String displayName = cursor.getString(columnDisplayNamePrimary);
-                final String phoneNumber = cursor.getString(columnNumber);
-                final long id = cursor.getLong(columnId);
-                final long photoId = cursor.getLong(columnPhotoId);
-                final String lookupKey = cursor.getString(columnLookupKey);
-
-                /** If a contact already exists and another phone number of the contact is being
-                 * processed, skip the second instance.
-                 */
-                final ContactMatch contactMatch = new ContactMatch(lookupKey, id);
-                if (duplicates.contains(contactMatch)) {
+    /**
+     * Appends the matches of the queries one typing error away from the query, found by
+     * {@link SmartDialTrie#findFuzzyQueries}, until the result is full. Contacts already in the
+     * result are skipped.
+     *
+     * Corrected queries are only answered from the trie, since a database query for each of them
+     * would run dozens of queries per key press. A corrected query longer than
+     * {@link SmartDialTrie#MAX_DEPTH} is matched against the candidates of its indexed prefix.
+     * Corrected queries whose node was truncated are skipped, as are those past the first
+     * {@link #MAX_FUZZY_QUERIES}.
+     *
+     * @param nameMatcher Name matcher configured with the query. It is set to each corrected
+     * query in turn, and set back to the query afterwards.
+     * @param matchRanges Filled with the highlight ranges of the added rows, or null.
+     * @param cancellationSignal Signal checked while reading rows, or null.
+     */
+    private void addFuzzyMatches(String query, SmartDialNameMatcher nameMatcher,
+            ArrayList<ContactNumber> result, SmartDialMatchRanges matchRanges,
+            CancellationSignal cancellationSignal, SmartDialMetrics.QueryTrace trace) {
+        final SmartDialTrie trie = mSmartDialTrie;
+        if (trie == null) {
+            return;
+        }
+        final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+        for (ContactNumber contact : result) {
+            duplicates.add(new ContactMatch(contact.lookupKey, contact.id));
+        }
+
+        final ArrayList<String> fuzzyQueries = trie.findFuzzyQueries(query);
+        final int queryCount = Math.min(fuzzyQueries.size(), MAX_FUZZY_QUERIES);
+        try {
+            for (int i = 0; i < queryCount && result.size() < MAX_ENTRIES; i++) {
+                throwIfCanceled(cancellationSignal);
+                final String fuzzyQuery = fuzzyQueries.get(i);
+                final int node = trie.findNode(fuzzyQuery.length() > SmartDialTrie.MAX_DEPTH ?
+                        fuzzyQuery.substring(0, SmartDialTrie.MAX_DEPTH) : fuzzyQuery);
+                if (node < 0 || trie.isTruncated(node)) {
                     continue;
                 }
-
-                /**
-                 * If the contact has either the name or number that matches the query, add to the
-                 * result.
-                 */
-                final boolean nameMatches = nameMatcher.matches(displayName);
-                final boolean numberMatches =
-                        (nameMatcher.matchesNumber(phoneNumber, query) != null);
-                if (nameMatches || numberMatches) {
-                    /** If a contact has not been added, add it to the result and the hash set.*/
-                    duplicates.add(contactMatch);
-                    result.add(new ContactNumber(id, dataID, displayName, phoneNumber, lookupKey,
-                            photoId));
-                    counter++;
-                    if (DEBUG) {
-                        stopWatch.lap("Added one result: Name: " + displayName);
+                nameMatcher.setQuery(fuzzyQuery);
+                for (ContactNumber candidate : trie.getCandidateRows(node)) {
+                    if (result.size() >= MAX_ENTRIES) {
+                        break;
                     }
+                    trace.scannedRows++;
+                    addIfMatches(candidate, fuzzyQuery, nameMatcher, duplicates, result,
+                            matchRanges);
                 }
             }
+        } finally {
+            nameMatcher.setQuery(query);
+        }
+    }
 
-            if (DEBUG) {
-                stopWatch.stopAndLog(TAG + "Finished loading cursor", 0);
+    private static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    /**
+     * Computes the results of the shortest queries from the current trie, so that the first key
+     * pressed on the dialpad is answered from memory.
+     */
+    @VisibleForTesting
+    void precomputeResults() {
+        final SmartDialTrie trie = mSmartDialTrie;
+        if (trie == null) {
+            mPrecomputedResults = null;
+            return;
+        }
+        final PrecomputedResults precomputed = new PrecomputedResults(trie);
+        final SmartDialMetrics.QueryTrace trace = new SmartDialMetrics.QueryTrace();
+        for (int i = 0; i < PrecomputedResults.QUERY_COUNT; i++) {
+            final String query = PrecomputedResults.getQuery(i);
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap());
+            final SmartDialMatchRanges matchRanges = new SmartDialMatchRanges();
+            precomputed.results.add(
+                    queryLooseMatches(query, nameMatcher, null, null, matchRanges, trace));
+            precomputed.matchRanges.add(matchRanges);
+        }
+        mPrecomputedResults = precomputed;
+    }
+
+    /**
+     * Returns whether the smart dial tables were being updated at the given update sequence.
+     */
+    private static boolean isUpdating(int updateSequence) {
+        return (updateSequence & 1) != 0;
+    }
+
+    /**
+     * Returns matches for the query from the in-memory trie alone, without reading the smart dial
+     * tables. The trie is only replaced once an update is complete, so this always answers from
+     * a consistent snapshot of the last finished update.
+     *
+     * @param query The prefix of a contact's dialpad index.
+     * @param nameMatcher Name matcher configured with the query.
+     * @return A list of top candidate contacts, or an empty list if no update has finished yet.
+     */
+    @VisibleForTesting
+    ArrayList<ContactNumber> getSnapshotMatches(String query, SmartDialNameMatcher nameMatcher) {
+        return getSnapshotMatches(query, nameMatcher, null, new SmartDialMetrics.QueryTrace());
+    }
+
+    private ArrayList<ContactNumber> getSnapshotMatches(String query,
+            SmartDialNameMatcher nameMatcher, SmartDialMatchRanges matchRanges,
+            SmartDialMetrics.QueryTrace trace) {
+        trace.path = SmartDialMetrics.PATH_SNAPSHOT;
+        if (matchRanges != null) {
+            matchRanges.clear();
+        }
+        final ArrayList<ContactNumber> result = Lists.newArrayList();
+        final SmartDialTrie trie = mSmartDialTrie;
+        if (trie == null) {
+            return result;
+        }
+        final Set<ContactMatch> duplicates = new HashSet<ContactMatch>();
+        for (ContactNumber candidate : trie.getSupersetRows(query)) {
+            if (result.size() >= MAX_ENTRIES) {
+                break;
             }
-        } finally {
-            cursor.close();
+            trace.scannedRows++;
+            addIfMatches(candidate, query, nameMatcher, duplicates, result, matchRanges);
         }
         return result;
     }
+
+    /**
+     * Adds a candidate row to the result if its contact has not been added yet, and either the
+     * name or the number of the row matches the query. The highlight ranges of an added row are
+     * recorded in matchRanges, unless it is null.
+     *
+     * @return Whether the candidate was added to the result.
+     */
+    private boolean addIfMatches(ContactNumber candidate, String query,
+            SmartDialNameMatcher nameMatcher, Set<ContactMatch> duplicates,
+            ArrayList<ContactNumber> result, SmartDialMatchRanges matchRanges) {
+        /** If a contact already exists and another phone number of the contact is being
+         * processed, skip the second instance.
+         */
+        final ContactMatch contactMatch = new ContactMatch(candidate.lookupKey, candidate.id);
+        if (duplicates.contains(contactMatch)) {
+            return false;
+        }
+
+        /**
+         * If the contact has either the name or number that matches the query, add to the
+         * result.
+         */
+        final boolean nameMatches = nameMatcher.matches(candidate.displayName);
+        final boolean numberMatches = nameMatcher.isNumberMatch(candidate.phoneNumber, query);
+        if (nameMatches || numberMatches) {
+            /** If a contact has not been added, add it to the result and the hash set.*/
+            duplicates.add(contactMatch);
+            result.add(candidate);
+            if (matchRanges != null) {
+                matchRanges.add(nameMatcher, nameMatches, numberMatches);
+            }
+            return true;
+        }
+        return false;
+    }
 }
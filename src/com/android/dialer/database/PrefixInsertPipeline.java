@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.sqlite.SQLiteStatement;
+
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Inserts the smart dial prefixes of names and phone numbers into the prefix table. Prefixes are
+ * computed in chunks on worker threads, while the thread that owns the database transaction stays
+ * the only writer and inserts the finished chunks in the order they were added.
+ *
+ * At most {@link #MAX_PENDING_CHUNKS_PER_WORKER} chunks per worker are in flight at any time, so
+ * a large rebuild never holds more than a bounded number of computed prefixes in memory. Small
+ * updates that fit into a single chunk are computed on the calling thread without starting any
+ * worker.
+ */
+final class PrefixInsertPipeline {
+    /** Number of names or numbers whose prefixes are computed by one task. */
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 128;
+
+    private static final int MAX_PENDING_CHUNKS_PER_WORKER = 2;
+
+    /** Data id queued with names, whose prefixes belong to every number of the contact. */
+    private static final long NO_DATA_ID = -1;
+
+    private final SQLiteStatement mInsert;
+    private final ExecutorService mExecutor;
+    private final int mMaxPendingChunks;
+
+    private final ArrayDeque<PendingChunk> mPendingChunks = new ArrayDeque<PendingChunk>();
+
+    private Chunk mChunk = new Chunk();
+
+    /**
+     * @param insert Statement compiled by {@link DialerDatabaseHelper} inserting a contact id, a
+     * packed prefix and a data id into the prefix table.
+     * @param expectedCount Number of names and numbers that are going to be added, used to decide
+     * whether starting worker threads is worthwhile.
+     */
+    public PrefixInsertPipeline(SQLiteStatement insert, int expectedCount) {
+        mInsert = insert;
+        final int workers = Math.min(Runtime.getRuntime().availableProcessors(),
+                (expectedCount + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (workers > 1) {
+            mExecutor = Executors.newFixedThreadPool(workers);
+            mMaxPendingChunks = workers * MAX_PENDING_CHUNKS_PER_WORKER;
+        } else {
+            mExecutor = null;
+            mMaxPendingChunks = 0;
+        }
+    }
+
+    /**
+     * Queues the prefixes of a contact name, see {@link SmartDialPrefix#generateNamePrefixes}.
+     */
+    public void addName(long contactId, String displayName) {
+        add(contactId, NO_DATA_ID, displayName, true);
+    }
+
+    /**
+     * Queues the prefixes of a phone number, see {@link SmartDialPrefix#parseToNumberTokens}.
+     */
+    public void addNumber(long contactId, long dataId, String number) {
+        add(contactId, dataId, number, false);
+    }
+
+    private void add(long contactId, long dataId, String text, boolean isName) {
+        mChunk.add(contactId, dataId, text, isName);
+        if (mChunk.size == CHUNK_SIZE) {
+            submit(mChunk);
+            mChunk = new Chunk();
+        }
+    }
+
+    /**
+     * Inserts all queued prefixes and stops the worker threads. Must be called on the thread that
+     * added the prefixes, before the transaction is marked successful.
+     */
+    public void finish() {
+        try {
+            if (mChunk.size > 0) {
+                submit(mChunk);
+                mChunk = new Chunk();
+            }
+            while (!mPendingChunks.isEmpty()) {
+                write(mPendingChunks.removeFirst());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops the worker threads without inserting the queued prefixes.
+     */
+    public void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+        mPendingChunks.clear();
+    }
+
+    private void submit(Chunk chunk) {
+        if (mExecutor == null) {
+            insert(chunk.computePrefixes());
+            return;
+        }
+        if (mPendingChunks.size() >= mMaxPendingChunks) {
+            write(mPendingChunks.removeFirst());
+        }
+        mPendingChunks.addLast(new PendingChunk(chunk, mExecutor.submit(chunk)));
+    }
+
+    /**
+     * Waits for the prefixes of a chunk and inserts them. If the calling thread is interrupted
+     * while waiting, the prefixes are computed on the calling thread instead.
+     */
+    private void write(PendingChunk pending) {
+        PackedPrefixes prefixes;
+        try {
+            prefixes = pending.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prefixes = pending.chunk.computePrefixes();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        insert(prefixes);
+    }
+
+    private void insert(PackedPrefixes prefixes) {
+        for (int i = 0; i < prefixes.size; i++) {
+            mInsert.bindLong(1, prefixes.contactIds[i]);
+            mInsert.bindLong(2, prefixes.keys[i]);
+            if (prefixes.dataIds[i] == NO_DATA_ID) {
+                mInsert.bindNull(3);
+            } else {
+                mInsert.bindLong(3, prefixes.dataIds[i]);
+            }
+            mInsert.executeInsert();
+            mInsert.clearBindings();
+        }
+    }
+
+    /**
+     * Names and numbers whose prefixes are computed together by one task.
+     */
+    private static class Chunk implements Callable<PackedPrefixes> {
+        final long[] contactIds = new long[CHUNK_SIZE];
+        final long[] dataIds = new long[CHUNK_SIZE];
+        final String[] texts = new String[CHUNK_SIZE];
+        final boolean[] isName = new boolean[CHUNK_SIZE];
+        int size;
+
+        void add(long contactId, long dataId, String text, boolean name) {
+            contactIds[size] = contactId;
+            dataIds[size] = dataId;
+            texts[size] = text;
+            isName[size] = name;
+            size++;
+        }
+
+        @Override
+        public PackedPrefixes call() {
+            return computePrefixes();
+        }
+
+        PackedPrefixes computePrefixes() {
+            final PackedPrefixes result = new PackedPrefixes(size * 4);
+            for (int i = 0; i < size; i++) {
+                final ArrayList<String> prefixes = isName[i] ?
+                        SmartDialPrefix.generateNamePrefixes(texts[i]) :
+                        SmartDialPrefix.parseToNumberTokens(texts[i]);
+                final int start = result.size;
+                for (String prefix : prefixes) {
+                    /** Prefixes longer than the packed key may share the same key. */
+                    final long key = DialerDatabaseHelper.packPrefix(prefix);
+                    if (!result.containsKey(start, key)) {
+                        result.add(contactIds[i], dataIds[i], key);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Rows of the prefix table computed for a chunk, ready to be inserted.
+     */
+    private static class PackedPrefixes {
+        long[] contactIds;
+        long[] dataIds;
+        long[] keys;
+        int size;
+
+        PackedPrefixes(int capacity) {
+            contactIds = new long[Math.max(capacity, 1)];
+            dataIds = new long[contactIds.length];
+            keys = new long[contactIds.length];
+        }
+
+        void add(long contactId, long dataId, long key) {
+            if (size == keys.length) {
+                contactIds = Arrays.copyOf(contactIds, size * 2);
+                dataIds = Arrays.copyOf(dataIds, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            contactIds[size] = contactId;
+            dataIds[size] = dataId;
+            keys[size] = key;
+            size++;
+        }
+
+        /**
+         * Returns whether a key has been added since the given position.
+         */
+        boolean containsKey(int start, long key) {
+            for (int i = start; i < size; i++) {
+                if (keys[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class PendingChunk {
+        final Chunk chunk;
+        final Future<PackedPrefixes> future;
+
+        PendingChunk(Chunk chunk, Future<PackedPrefixes> future) {
+            this.chunk = chunk;
+            this.future = future;
+        }
+    }
+}
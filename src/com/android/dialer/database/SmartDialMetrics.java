@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.os.SystemClock;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on counters of the smart dial database: the duration and rows touched by each phase of
+ * an update, and the latency, path and rows scanned of each query. Recording a query only
+ * increments a few atomic counters, so the metrics are kept in production builds and can be
+ * printed with {@code adb shell dumpsys activity com.android.dialer/.DialtactsActivity}.
+ */
+public final class SmartDialMetrics {
+    /** Phases of an update of the smart dial database, in the order they run. */
+    static final int PHASE_QUERY_CONTACTS = 0;
+    static final int PHASE_DELETE = 1;
+    static final int PHASE_INSERT = 2;
+    static final int PHASE_NAME_PREFIXES = 3;
+    static final int PHASE_COMMIT = 4;
+    static final int PHASE_RANK_SCORES = 5;
+    static final int PHASE_TRIE = 6;
+    static final int PHASE_PRECOMPUTE = 7;
+    static final int PHASE_SNAPSHOT = 8;
+    static final int PHASE_ANALYZE = 9;
+    private static final int PHASE_COUNT = 10;
+
+    private static final String[] PHASE_NAMES = {
+            "query contacts", "delete", "insert", "name prefixes", "commit", "rank scores",
+            "trie", "precompute", "snapshot", "analyze"};
+
+    /** Ways a query can be answered, from the cheapest to the most expensive. */
+    static final int PATH_PRECOMPUTED = 0;
+    static final int PATH_NARROWED = 1;
+    static final int PATH_TRIE = 2;
+    static final int PATH_DATABASE = 3;
+    static final int PATH_SNAPSHOT = 4;
+    private static final int PATH_COUNT = 5;
+
+    private static final String[] PATH_NAMES = {
+            "precomputed", "narrowed", "trie", "database", "snapshot"};
+
+    /** Value of the rows of a phase that does not count the rows it touches. */
+    private static final int ROWS_NOT_COUNTED = -1;
+
+    private final LatencyHistogram mQueryLatency = new LatencyHistogram();
+    private final AtomicLongArray mPathCounts = new AtomicLongArray(PATH_COUNT);
+    private final AtomicLong mScannedRows = new AtomicLong();
+    private final AtomicLong mReturnedRows = new AtomicLong();
+    private final AtomicLong mCanceledQueries = new AtomicLong();
+
+    /** Statistics of the phases of all finished updates, guarded by this. */
+    private int mUpdateCount;
+    private long mLastUpdateNanos;
+    private long mMaxUpdateNanos;
+    private final int[] mPhaseRuns = new int[PHASE_COUNT];
+    private final long[] mLastPhaseNanos = new long[PHASE_COUNT];
+    private final long[] mTotalPhaseNanos = new long[PHASE_COUNT];
+    private final long[] mMaxPhaseNanos = new long[PHASE_COUNT];
+    private final int[] mLastPhaseRows = new int[PHASE_COUNT];
+    private final long[] mTotalPhaseRows = new long[PHASE_COUNT];
+
+    /**
+     * Path and candidate rows scanned of a single query, filled in while it runs.
+     */
+    static final class QueryTrace {
+        int path = PATH_DATABASE;
+        int scannedRows;
+    }
+
+    /**
+     * Times the phases of a single update. Each phase lasts from the end of the previous one,
+     * and the update is only recorded once it has finished.
+     */
+    final class UpdateTimer {
+        private final long mStartNanos;
+        private long mLapNanos;
+        private final long[] mPhaseNanos = new long[PHASE_COUNT];
+        private final int[] mPhaseRows = new int[PHASE_COUNT];
+
+        private UpdateTimer() {
+            mStartNanos = SystemClock.elapsedRealtimeNanos();
+            mLapNanos = mStartNanos;
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                mPhaseNanos[i] = -1;
+            }
+        }
+
+        /**
+         * Ends a phase that does not count the rows it touches.
+         */
+        void lap(int phase) {
+            lap(phase, ROWS_NOT_COUNTED);
+        }
+
+        /**
+         * Ends a phase.
+         *
+         * @param phase One of the PHASE_ constants.
+         * @param rows Number of rows the phase touched.
+         */
+        void lap(int phase, int rows) {
+            final long nowNanos = SystemClock.elapsedRealtimeNanos();
+            mPhaseNanos[phase] = nowNanos - mLapNanos;
+            mPhaseRows[phase] = rows;
+            mLapNanos = nowNanos;
+        }
+
+        /**
+         * Records the phases of the finished update. Phases that did not run are left out.
+         */
+        void finish() {
+            synchronized (SmartDialMetrics.this) {
+                mUpdateCount++;
+                mLastUpdateNanos = mLapNanos - mStartNanos;
+                mMaxUpdateNanos = Math.max(mMaxUpdateNanos, mLastUpdateNanos);
+                for (int i = 0; i < PHASE_COUNT; i++) {
+                    final long nanos = mPhaseNanos[i];
+                    if (nanos < 0) {
+                        continue;
+                    }
+                    mPhaseRuns[i]++;
+                    mLastPhaseNanos[i] = nanos;
+                    mTotalPhaseNanos[i] += nanos;
+                    mMaxPhaseNanos[i] = Math.max(mMaxPhaseNanos[i], nanos);
+                    mLastPhaseRows[i] = mPhaseRows[i];
+                    if (mPhaseRows[i] != ROWS_NOT_COUNTED) {
+                        mTotalPhaseRows[i] += mPhaseRows[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts timing an update of the smart dial database.
+     */
+    UpdateTimer startUpdate() {
+        return new UpdateTimer();
+    }
+
+    /**
+     * Records a query that returned its results.
+     *
+     * @param path One of the PATH_ constants.
+     * @param elapsedNanos Time taken by the query.
+     * @param scannedRows Number of candidate rows matched against the query.
+     * @param returnedRows Number of rows returned.
+     */
+    void recordQuery(int path, long elapsedNanos, int scannedRows, int returnedRows) {
+        mQueryLatency.record(elapsedNanos / 1000);
+        mPathCounts.incrementAndGet(path);
+        mScannedRows.addAndGet(scannedRows);
+        mReturnedRows.addAndGet(returnedRows);
+    }
+
+    /**
+     * Records a query that was canceled before it returned.
+     */
+    void recordCanceledQuery() {
+        mCanceledQueries.incrementAndGet();
+    }
+
+    @VisibleForTesting
+    LatencyHistogram getQueryLatency() {
+        return mQueryLatency;
+    }
+
+    /**
+     * Prints the metrics, for dumpsys.
+     *
+     * @param prefix Prefix of every line.
+     * @param writer Writer to print to.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Smart dial queries:");
+        final String indent = prefix + "  ";
+        final long queryCount = mQueryLatency.getCount();
+        writer.print(indent);
+        writer.println("count=" + queryCount + " canceled=" + mCanceledQueries.get());
+        writer.print(indent);
+        writer.println(String.format(Locale.US,
+                "latency ms: p50=%.2f p95=%.2f p99=%.2f max=%.2f mean=%.2f",
+                mQueryLatency.getPercentileMicros(50) / 1000f,
+                mQueryLatency.getPercentileMicros(95) / 1000f,
+                mQueryLatency.getPercentileMicros(99) / 1000f,
+                mQueryLatency.getMaxMicros() / 1000f,
+                mQueryLatency.getMeanMicros() / 1000f));
+        writer.print(indent);
+        writer.print("paths:");
+        for (int i = 0; i < PATH_COUNT; i++) {
+            writer.print(" " + PATH_NAMES[i] + "=" + mPathCounts.get(i));
+        }
+        writer.println();
+        writer.print(indent);
+        writer.println("rows: scanned=" + mScannedRows.get() + " returned=" +
+                mReturnedRows.get());
+
+        synchronized (this) {
+            writer.print(prefix);
+            writer.println("Smart dial updates:");
+            writer.print(indent);
+            writer.println(String.format(Locale.US, "count=%d last ms=%.1f max ms=%.1f",
+                    mUpdateCount, mLastUpdateNanos / 1e6, mMaxUpdateNanos / 1e6));
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                final int runs = mPhaseRuns[i];
+                if (runs == 0) {
+                    continue;
+                }
+                writer.print(indent);
+                writer.print(String.format(Locale.US,
+                        "%s: runs=%d last ms=%.1f mean ms=%.1f max ms=%.1f", PHASE_NAMES[i],
+                        runs, mLastPhaseNanos[i] / 1e6, mTotalPhaseNanos[i] / 1e6 / runs,
+                        mMaxPhaseNanos[i] / 1e6));
+                if (mLastPhaseRows[i] != ROWS_NOT_COUNTED) {
+                    writer.print(" last rows=" + mLastPhaseRows[i] + " total rows=" +
+                            mTotalPhaseRows[i]);
+                }
+                writer.println();
+            }
+        }
+    }
+
+    /**
+     * Histogram of latencies in microseconds, with logarithmic buckets. Every power of two is
+     * split into {@link #SUB_BUCKETS} buckets, so a percentile is reported with an error of at
+     * most a quarter of its value, using a fixed array of counters.
+     */
+    @VisibleForTesting
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        /** Covers latencies up to 2^27 microseconds, about two minutes. */
+        @VisibleForTesting
+        static final int BUCKET_COUNT = (27 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalMicros = new AtomicLong();
+        private final AtomicLong mMaxMicros = new AtomicLong();
+
+        void record(long micros) {
+            mCounts.incrementAndGet(getBucket(micros));
+            mCount.incrementAndGet();
+            mTotalMicros.addAndGet(micros);
+            long max = mMaxMicros.get();
+            while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+                max = mMaxMicros.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        long getMaxMicros() {
+            return mMaxMicros.get();
+        }
+
+        long getMeanMicros() {
+            final long count = mCount.get();
+            return count == 0 ? 0 : mTotalMicros.get() / count;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the recorded latencies, or 0 if none
+         * were recorded.
+         *
+         * @param percent The percentile, between 0 and 100.
+         */
+        long getPercentileMicros(int percent) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += mCounts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            /** Rank of the sample at the percentile, counting from one. */
+            final long rank = Math.max(1, (total * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(getBucketLowerBound(i + 1) - 1, mMaxMicros.get());
+                }
+            }
+            return mMaxMicros.get();
+        }
+
+        /**
+         * Returns the bucket of a latency. Latencies below {@link #SUB_BUCKETS} have a bucket of
+         * their own, and each following power of two is split into {@link #SUB_BUCKETS} buckets.
+         */
+        @VisibleForTesting
+        static int getBucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(micros, 0);
+            }
+            final int octave = 63 - Long.numberOfLeadingZeros(micros);
+            final int bucket = (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS +
+                    (int) ((micros >> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+            return Math.min(bucket, BUCKET_COUNT - 1);
+        }
+
+        /**
+         * Returns the smallest latency of a bucket.
+         */
+        @VisibleForTesting
+        static long getBucketLowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (octave - SUB_BUCKET_BITS);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Persists a {@link SmartDialTrie} to a file so that it can answer smart dial queries right after
+ * the process starts, before the first update of the smart dial database has finished.
+ *
+ * The file starts with a header holding a magic number, the format version, the time of the
+ * smart dial update the trie was built by, the length of the payload and a CRC32 checksum of it.
+ * It is memory-mapped read-only when loaded, and any file that does not match its header is
+ * ignored, in which case queries fall back to the database.
+ */
+public class SmartDialSnapshot {
+    private static final String TAG = "SmartDialSnapshot";
+
+    private static final int MAGIC = 0x53445453;
+
+    /** Incremented whenever the layout written by {@link SmartDialTrie#writeTo} changes. */
+    @VisibleForTesting
+    static final int FORMAT_VERSION = 1;
+
+    /** Magic, version, update time, payload length and checksum. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+
+    private static final int CHECKSUM_BUFFER_SIZE = 8192;
+
+    private final File mFile;
+
+    public SmartDialSnapshot(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Writes the trie to the snapshot file. The file is replaced atomically, so a reader never
+     * sees a partially written snapshot.
+     *
+     * @param trie The trie to persist.
+     * @param updateMillis Time of the smart dial update the trie was built by.
+     * @return Whether the snapshot was written.
+     */
+    public boolean write(SmartDialTrie trie, long updateMillis) {
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            final DataOutputStream payloadOut = new DataOutputStream(payload);
+            trie.writeTo(payloadOut);
+            payloadOut.flush();
+            final byte[] payloadBytes = payload.toByteArray();
+            final CRC32 checksum = new CRC32();
+            checksum.update(payloadBytes);
+
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(updateMillis);
+                out.writeInt(payloadBytes.length);
+                out.writeLong(checksum.getValue());
+                out.write(payloadBytes);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write smart dial snapshot", e);
+            tempFile.delete();
+            mFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Loads the trie from the snapshot file.
+     *
+     * @param updateMillis Time of the last smart dial update. A snapshot built by any other
+     * update is out of date and ignored.
+     * @return The trie, or null if there is no valid snapshot for the given update.
+     */
+    public SmartDialTrie read(long updateMillis) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+            try {
+                final FileChannel channel = file.getChannel();
+                final MappedByteBuffer buffer =
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                final SmartDialTrie trie = parse(buffer, updateMillis);
+                if (trie != null) {
+                    return trie;
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read smart dial snapshot", e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Smart dial snapshot is corrupt", e);
+        }
+        mFile.delete();
+        return null;
+    }
+
+    /**
+     * Deletes the snapshot file.
+     */
+    public void delete() {
+        mFile.delete();
+    }
+
+    /**
+     * Parses a snapshot, returning null if it was built by another update.
+     *
+     * @throws IllegalArgumentException If the snapshot is corrupt.
+     */
+    private static SmartDialTrie parse(ByteBuffer buffer, long updateMillis) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a smart dial snapshot");
+        }
+        final int version = buffer.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version " + version);
+        }
+        if (buffer.getLong() != updateMillis) {
+            return null;
+        }
+        final int length = buffer.getInt();
+        final long expectedChecksum = buffer.getLong();
+        if (length != buffer.remaining()) {
+            throw new IllegalArgumentException("Snapshot has wrong length " + length);
+        }
+
+        final CRC32 checksum = new CRC32();
+        final ByteBuffer payload = buffer.slice();
+        final byte[] chunk = new byte[CHECKSUM_BUFFER_SIZE];
+        while (payload.hasRemaining()) {
+            final int count = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, count);
+            checksum.update(chunk, 0, count);
+        }
+        if (checksum.getValue() != expectedChecksum) {
+            throw new IllegalArgumentException("Snapshot checksum mismatch");
+        }
+
+        final SmartDialTrie trie = SmartDialTrie.readFrom(buffer);
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException("Unexpected data after the snapshot");
+        }
+        return trie;
+    }
+}
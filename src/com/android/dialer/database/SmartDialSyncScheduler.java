@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Keeps the smart dial database in sync with the contacts database. Once started, it observes
+ * the contacts provider and applies the changes in the background after the contacts have been
+ * quiet for {@link #QUIET_PERIOD_MS}, so that a burst of changes, such as a contacts sync,
+ * results in a single update. Changes made while the process was not running are picked up by
+ * a single update when the scheduler starts.
+ */
+class SmartDialSyncScheduler extends Handler {
+    private static final String TAG = "SmartDialSyncScheduler";
+    private static final boolean DEBUG = false;
+
+    /** Time without contact changes after which the smart dial database is updated. */
+    @VisibleForTesting
+    static final long QUIET_PERIOD_MS = 2000;
+
+    /** Longest time an update is postponed by contacts that keep changing. */
+    @VisibleForTesting
+    static final long MAX_SYNC_DELAY_MS = 30000;
+
+    @VisibleForTesting
+    static final int MSG_SYNC = 1;
+
+    private final Context mContext;
+    private final DialerDatabaseHelper mDatabaseHelper;
+    private final ContentObserver mContactsObserver;
+
+    /** Time of the first change not yet applied, or -1 if no update is pending. */
+    private long mFirstPendingChangeMillis = -1;
+
+    private boolean mStarted;
+
+    /**
+     * Creates the scheduler with its own background thread.
+     */
+    static SmartDialSyncScheduler create(Context context, DialerDatabaseHelper databaseHelper) {
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return new SmartDialSyncScheduler(thread.getLooper(), context, databaseHelper);
+    }
+
+    @VisibleForTesting
+    SmartDialSyncScheduler(Looper looper, Context context, DialerDatabaseHelper databaseHelper) {
+        super(looper);
+        mContext = context;
+        mDatabaseHelper = databaseHelper;
+        mContactsObserver = new ContentObserver(this) {
+            @Override
+            public void onChange(boolean selfChange) {
+                scheduleSync(SystemClock.uptimeMillis());
+            }
+        };
+    }
+
+    /**
+     * Starts observing the contacts provider and schedules an update for the changes made since
+     * the last one. Later calls have no effect.
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        registerContactsObserver(mContactsObserver);
+        sendEmptyMessage(MSG_SYNC);
+    }
+
+    /**
+     * Registers the observer of the contacts provider.
+     */
+    @VisibleForTesting
+    void registerContactsObserver(ContentObserver observer) {
+        mContext.getContentResolver().registerContentObserver(
+                ContactsContract.Contacts.CONTENT_URI, true, observer);
+    }
+
+    /**
+     * Postpones the update until the contacts have been quiet for {@link #QUIET_PERIOD_MS}, but
+     * no more than {@link #MAX_SYNC_DELAY_MS} after the first pending change. Called on the
+     * thread of the scheduler.
+     *
+     * @return The delay of the update, in milliseconds.
+     */
+    @VisibleForTesting
+    long scheduleSync(long nowMillis) {
+        if (mFirstPendingChangeMillis < 0) {
+            mFirstPendingChangeMillis = nowMillis;
+        }
+        removeMessages(MSG_SYNC);
+        final long delay = Math.max(0, Math.min(QUIET_PERIOD_MS,
+                mFirstPendingChangeMillis + MAX_SYNC_DELAY_MS - nowMillis));
+        sendEmptyMessageDelayed(MSG_SYNC, delay);
+        return delay;
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what != MSG_SYNC) {
+            return;
+        }
+        mFirstPendingChangeMillis = -1;
+        if (DEBUG) {
+            Log.v(TAG, "Updating smart dial database");
+        }
+        mDatabaseHelper.syncSmartDialDatabase();
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.dialpad.SmartDialPrefix;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Immutable in-memory digit trie over the smart dial prefixes of all contacts. Each node keeps a
+ * pre-ranked list of at most {@code nodeCapacity} contacts whose name or number prefixes pass
+ * through the node, so looking up a query only walks one node per digit and never touches SQLite.
+ *
+ * The trie is rebuilt from the smart dial table by {@link DialerDatabaseHelper} and stays
+ * read-only afterwards, so it can be shared across threads without locking. Queries longer than
+ * {@link #MAX_DEPTH} are not indexed; they match few contacts and are left to the database.
+ */
+public class SmartDialTrie {
+
+    /** Maximum number of digits indexed by the trie. */
+    @VisibleForTesting
+    static final int MAX_DEPTH = 6;
+
+    /** Returned by {@link #findNode} if no contact has the query as a prefix. */
+    static final int NO_MATCH = -1;
+
+    /** Returned by {@link #findNode} if the query can not be answered by the trie. */
+    static final int NOT_INDEXED = -2;
+
+    private static final int DIGIT_COUNT = 10;
+
+    /**
+     * For each digit, the mask of the digits on the keys next to it on the dialpad, including the
+     * diagonal ones.
+     */
+    private static final short[] NEIGHBOR_KEYS = new short[] {
+            keys(7, 8, 9),                  // 0
+            keys(2, 4, 5),                  // 1
+            keys(1, 3, 4, 5, 6),            // 2
+            keys(2, 5, 6),                  // 3
+            keys(1, 2, 5, 7, 8),            // 4
+            keys(1, 2, 3, 4, 6, 7, 8, 9),   // 5
+            keys(2, 3, 5, 8, 9),            // 6
+            keys(0, 4, 5, 8),               // 7
+            keys(0, 4, 5, 6, 7, 9),         // 8
+            keys(0, 5, 6, 8)};              // 9
+
+    /** Rows of the smart dial table, in the order of the smart dial sorting order. */
+    private final ContactNumber[] mRows;
+
+    /** For each contact, the positions of its rows in {@link #mRows} in ascending order. */
+    private final int[][] mContactRows;
+
+    /**
+     * Nodes are stored in flat arrays in breadth first order. The children of a node are stored
+     * contiguously starting at mNodeChildStart, and mNodeChildMask has bit d set if there is a
+     * child for digit d.
+     */
+    private final int[] mNodeChildStart;
+    private final short[] mNodeChildMask;
+
+    /** Contacts of a node are stored in mNodeContacts starting at mNodeContactStart. */
+    private final int[] mNodeContactStart;
+    private final short[] mNodeContactCount;
+
+    /** Whether more contacts than the node capacity pass through a node. */
+    private final boolean[] mNodeTruncated;
+
+    private final int[] mNodeContacts;
+
+    private SmartDialTrie(ContactNumber[] rows, int[][] contactRows, int[] nodeChildStart,
+            short[] nodeChildMask, int[] nodeContactStart, short[] nodeContactCount,
+            boolean[] nodeTruncated, int[] nodeContacts) {
+        mRows = rows;
+        mContactRows = contactRows;
+        mNodeChildStart = nodeChildStart;
+        mNodeChildMask = nodeChildMask;
+        mNodeContactStart = nodeContactStart;
+        mNodeContactCount = nodeContactCount;
+        mNodeTruncated = nodeTruncated;
+        mNodeContacts = nodeContacts;
+    }
+
+    /**
+     * Walks the trie along the digits of the query.
+     *
+     * @param query Normalized query consisting of the digits 0-9.
+     * @return Index of the node matching the query, {@link #NO_MATCH} if no contact matches the
+     * query, or {@link #NOT_INDEXED} if the trie can not answer the query.
+     */
+    public int findNode(String query) {
+        final int length = query.length();
+        if (length > MAX_DEPTH) {
+            return NOT_INDEXED;
+        }
+        int node = 0;
+        for (int i = 0; i < length; i++) {
+            final int digit = query.charAt(i) - '0';
+            if (digit < 0 || digit >= DIGIT_COUNT) {
+                return NOT_INDEXED;
+            }
+            node = getChild(node, digit);
+            if (node < 0) {
+                return NO_MATCH;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns the child of a node for a digit, or -1 if no prefix continues with the digit.
+     */
+    private int getChild(int node, int digit) {
+        final int mask = mNodeChildMask[node];
+        if ((mask & (1 << digit)) == 0) {
+            return -1;
+        }
+        return mNodeChildStart[node] + Integer.bitCount(mask & ((1 << digit) - 1));
+    }
+
+    /**
+     * Finds the queries one typing error away from the given query that are a prefix of some
+     * contact, so that they can be looked up instead when the query itself matches too few
+     * contacts. The errors considered are pressing a key next to the intended one on the dialpad,
+     * swapping two adjacent digits, pressing an extra key and missing a key.
+     *
+     * The query is matched against the trie like a Levenshtein automaton of distance one: the
+     * walk follows the digits of the query, branches off once per error and only descends into
+     * existing children, so branches no prefix continues are never explored. The error must be
+     * within the first {@link #MAX_DEPTH} digits, after which the rest of the query is appended
+     * unchanged.
+     *
+     * @param query Normalized query consisting of the digits 0-9.
+     * @return The corrected queries, with errors in later digits first. Queries that the query is
+     * a prefix of, or that are a prefix of the query, are left out, since they add no contacts or
+     * only widen the query.
+     */
+    public ArrayList<String> findFuzzyQueries(String query) {
+        final LinkedHashSet<String> result = new LinkedHashSet<String>();
+        collectFuzzyQueries(query, 0, 0, false, new StringBuilder(), result);
+        final ArrayList<String> queries = Lists.newArrayListWithCapacity(result.size());
+        for (String fuzzyQuery : result) {
+            if (!query.startsWith(fuzzyQuery) && !fuzzyQuery.startsWith(query)) {
+                queries.add(fuzzyQuery);
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Walks the trie from a node reached by the digits in path, which correspond to the digits
+     * of the query before position, with or without an error.
+     */
+    private void collectFuzzyQueries(String query, int position, int node, boolean corrected,
+            StringBuilder path, LinkedHashSet<String> result) {
+        final int length = query.length();
+        if (position == length || path.length() == MAX_DEPTH) {
+            if (corrected) {
+                result.add(path + query.substring(position));
+            }
+            return;
+        }
+        final int digit = query.charAt(position) - '0';
+        if (digit < 0 || digit >= DIGIT_COUNT) {
+            return;
+        }
+        final int pathLength = path.length();
+
+        final int child = getChild(node, digit);
+        if (child >= 0) {
+            path.append((char) ('0' + digit));
+            collectFuzzyQueries(query, position + 1, child, corrected, path, result);
+            path.setLength(pathLength);
+        }
+        if (corrected) {
+            return;
+        }
+
+        /** A neighboring key was pressed instead of the digit. */
+        final int mask = mNodeChildMask[node];
+        for (int other = 0; other < DIGIT_COUNT; other++) {
+            if ((mask & NEIGHBOR_KEYS[digit] & (1 << other)) != 0) {
+                path.append((char) ('0' + other));
+                collectFuzzyQueries(query, position + 1, getChild(node, other), true, path,
+                        result);
+                path.setLength(pathLength);
+            }
+        }
+
+        /** The digit was swapped with the next one. */
+        if (position + 1 < length && query.charAt(position + 1) != query.charAt(position)) {
+            final int next = query.charAt(position + 1) - '0';
+            final int nextChild = next >= 0 && next < DIGIT_COUNT ? getChild(node, next) : -1;
+            final int swapped = nextChild >= 0 ? getChild(nextChild, digit) : -1;
+            if (swapped >= 0) {
+                path.append((char) ('0' + next)).append((char) ('0' + digit));
+                collectFuzzyQueries(query, position + 2, swapped, true, path, result);
+                path.setLength(pathLength);
+            }
+        }
+
+        /** The digit was pressed by mistake. Skipping the last digit would only widen the
+         * query, which the previous query already did.
+         */
+        if (position + 1 < length) {
+            collectFuzzyQueries(query, position + 1, node, true, path, result);
+        }
+
+        /** A digit was missed before this one. */
+        for (int other = 0; other < DIGIT_COUNT; other++) {
+            if ((mask & (1 << other)) != 0) {
+                path.append((char) ('0' + other));
+                collectFuzzyQueries(query, position, getChild(node, other), true, path,
+                        result);
+                path.setLength(pathLength);
+            }
+        }
+    }
+
+    /**
+     * Returns whether contacts were left out of the given node because it was full. If so, the
+     * candidates of the node are only the top ranked subset of all matching contacts.
+     */
+    public boolean isTruncated(int node) {
+        return mNodeTruncated[node];
+    }
+
+    /**
+     * Returns all rows of the contacts stored at the given node, in the smart dial sorting order.
+     */
+    public ArrayList<ContactNumber> getCandidateRows(int node) {
+        final int start = mNodeContactStart[node];
+        final int end = start + mNodeContactCount[node];
+        int rowCount = 0;
+        for (int i = start; i < end; i++) {
+            rowCount += mContactRows[mNodeContacts[i]].length;
+        }
+
+        final int[] rows = new int[rowCount];
+        int position = 0;
+        for (int i = start; i < end; i++) {
+            final int[] contactRows = mContactRows[mNodeContacts[i]];
+            System.arraycopy(contactRows, 0, rows, position, contactRows.length);
+            position += contactRows.length;
+        }
+        Arrays.sort(rows);
+
+        final ArrayList<ContactNumber> result = Lists.newArrayListWithCapacity(rowCount);
+        for (int row : rows) {
+            result.add(mRows[row]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns rows in the smart dial sorting order that include all rows able to match the query,
+     * so that the query can be answered without the database. Queries the trie can not narrow
+     * down return every row.
+     */
+    public ArrayList<ContactNumber> getSupersetRows(String query) {
+        final int node = findNode(query.length() > MAX_DEPTH ?
+                query.substring(0, MAX_DEPTH) : query);
+        if (node == NO_MATCH) {
+            return Lists.newArrayList();
+        }
+        if (node == NOT_INDEXED || mNodeTruncated[node]) {
+            return Lists.newArrayList(Arrays.asList(mRows));
+        }
+        return getCandidateRows(node);
+    }
+
+    /**
+     * Returns the number of nodes in the trie.
+     */
+    @VisibleForTesting
+    int getNodeCount() {
+        return mNodeChildStart.length;
+    }
+
+    /**
+     * Writes the trie in the binary form read by {@link #readFrom(ByteBuffer)}.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mRows.length);
+        for (ContactNumber row : mRows) {
+            out.writeLong(row.id);
+            out.writeLong(row.dataId);
+            out.writeLong(row.photoId);
+            writeString(out, row.displayName);
+            writeString(out, row.phoneNumber);
+            writeString(out, row.lookupKey);
+        }
+
+        out.writeInt(mContactRows.length);
+        for (int[] contactRows : mContactRows) {
+            writeInts(out, contactRows);
+        }
+
+        final int nodeCount = mNodeChildStart.length;
+        out.writeInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            out.writeInt(mNodeChildStart[i]);
+            out.writeShort(mNodeChildMask[i]);
+            out.writeInt(mNodeContactStart[i]);
+            out.writeShort(mNodeContactCount[i]);
+            out.writeBoolean(mNodeTruncated[i]);
+        }
+        writeInts(out, mNodeContacts);
+    }
+
+    /**
+     * Reads a trie written by {@link #writeTo(DataOutputStream)}. The node arrays are bulk copied
+     * out of the buffer, so the buffer can be released afterwards.
+     *
+     * @throws IllegalArgumentException If the data does not describe a valid trie.
+     * @throws java.nio.BufferUnderflowException If the data is truncated.
+     */
+    static SmartDialTrie readFrom(ByteBuffer in) {
+        final ContactNumber[] rows = new ContactNumber[readCount(in)];
+        for (int i = 0; i < rows.length; i++) {
+            final long id = in.getLong();
+            final long dataId = in.getLong();
+            final long photoId = in.getLong();
+            final String displayName = readString(in);
+            final String phoneNumber = readString(in);
+            final String lookupKey = readString(in);
+            rows[i] = new ContactNumber(id, dataId, displayName, phoneNumber, lookupKey, photoId);
+        }
+
+        final int[][] contactRows = new int[readCount(in)][];
+        for (int i = 0; i < contactRows.length; i++) {
+            contactRows[i] = readInts(in, rows.length);
+        }
+
+        final int nodeCount = readCount(in);
+        final int[] childStart = new int[nodeCount];
+        final short[] childMask = new short[nodeCount];
+        final int[] contactStart = new int[nodeCount];
+        final short[] contactCount = new short[nodeCount];
+        final boolean[] truncated = new boolean[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            childStart[i] = in.getInt();
+            childMask[i] = in.getShort();
+            contactStart[i] = in.getInt();
+            contactCount[i] = in.getShort();
+            truncated[i] = in.get() != 0;
+        }
+        final int[] contacts = readInts(in, contactRows.length);
+
+        /** Checks every index, so that a damaged file can not break queries later on. */
+        for (int i = 0; i < nodeCount; i++) {
+            checkRange(childStart[i], Integer.bitCount(childMask[i] & 0xffff), nodeCount);
+            checkRange(contactStart[i], contactCount[i], contacts.length);
+        }
+        return new SmartDialTrie(rows, contactRows, childStart, childMask, contactStart,
+                contactCount, truncated, contacts);
+    }
+
+    private static short keys(int... digits) {
+        short mask = 0;
+        for (int digit : digits) {
+            mask |= 1 << digit;
+        }
+        return mask;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static String readString(ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining() / 2) {
+            throw new IllegalArgumentException("String longer than the data: " + length);
+        }
+        final char[] chars = new char[length];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + length * 2);
+        return new String(chars);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Reads an array of ints, each of which must be a valid index below the given limit.
+     */
+    private static int[] readInts(ByteBuffer in, int limit) {
+        final int[] values = new int[readCount(in)];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * 4);
+        for (int value : values) {
+            checkRange(value, 1, limit);
+        }
+        return values;
+    }
+
+    private static int readCount(ByteBuffer in) {
+        final int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new IllegalArgumentException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    private static void checkRange(int start, int count, int limit) {
+        if (start < 0 || count < 0 || start > limit - count) {
+            throw new IllegalArgumentException("Index out of range: " + start);
+        }
+    }
+
+    /**
+     * Builds a {@link SmartDialTrie}. Rows must be added in the smart dial sorting order, which is
+     * the order used to rank the contacts stored at each node.
+     */
+    public static class Builder {
+        private final int mNodeCapacity;
+
+        private final ArrayList<ContactNumber> mRows = Lists.newArrayList();
+
+        /** Maps a contact id to the index of the contact, in order of first appearance. */
+        private final HashMap<Long, Integer> mContactIndices = new HashMap<Long, Integer>();
+
+        private final ArrayList<ArrayList<Integer>> mContactRows = Lists.newArrayList();
+
+        public Builder(int nodeCapacity) {
+            mNodeCapacity = nodeCapacity;
+        }
+
+        public void addRow(ContactNumber row) {
+            Integer contactIndex = mContactIndices.get(row.id);
+            if (contactIndex == null) {
+                contactIndex = mContactRows.size();
+                mContactIndices.put(row.id, contactIndex);
+                mContactRows.add(new ArrayList<Integer>());
+            }
+            mContactRows.get(contactIndex).add(mRows.size());
+            mRows.add(row);
+        }
+
+        public SmartDialTrie build() {
+            final int contactCount = mContactRows.size();
+            final int[][] contactRows = new int[contactCount][];
+            for (int i = 0; i < contactCount; i++) {
+                final ArrayList<Integer> rows = mContactRows.get(i);
+                contactRows[i] = new int[rows.size()];
+                for (int j = 0; j < rows.size(); j++) {
+                    contactRows[i][j] = rows.get(j);
+                }
+            }
+
+            /**
+             * Collects the prefixes of every contact together with the rank of the best row they
+             * can match. A name prefix matches every row of the contact, so it takes the rank of
+             * the first row, while a number prefix only matches the row the number belongs to.
+             */
+            final ArrayList<String> prefixes = Lists.newArrayList();
+            final ArrayList<Integer> prefixContacts = Lists.newArrayList();
+            final ArrayList<Integer> prefixRanks = Lists.newArrayList();
+            for (int i = 0; i < contactCount; i++) {
+                final int firstRow = contactRows[i][0];
+                for (String prefix : SmartDialPrefix.generateNamePrefixes(
+                        mRows.get(firstRow).displayName)) {
+                    prefixes.add(prefix);
+                    prefixContacts.add(i);
+                    prefixRanks.add(firstRow);
+                }
+                for (int row : contactRows[i]) {
+                    for (String prefix : SmartDialPrefix.parseToNumberTokens(
+                            mRows.get(row).phoneNumber)) {
+                        prefixes.add(prefix);
+                        prefixContacts.add(i);
+                        prefixRanks.add(row);
+                    }
+                }
+            }
+
+            /** Sorts the prefixes by rank, keeping the insertion order for equal ranks. */
+            final int prefixCount = prefixes.size();
+            final long[] order = new long[prefixCount];
+            for (int i = 0; i < prefixCount; i++) {
+                order[i] = ((long) prefixRanks.get(i) << 32) | i;
+            }
+            Arrays.sort(order);
+
+            final BuilderNode root = new BuilderNode();
+            int nodeCount = 1;
+            for (long entry : order) {
+                final int index = (int) entry;
+                nodeCount += insert(root, prefixes.get(index), prefixContacts.get(index));
+            }
+
+            return flatten(root, nodeCount, contactRows);
+        }
+
+        /**
+         * Adds the contact to every node along the prefix, up to {@link #MAX_DEPTH} digits.
+         *
+         * @return The number of nodes created.
+         */
+        private int insert(BuilderNode root, String prefix, int contact) {
+            int created = 0;
+            BuilderNode node = root;
+            node.add(contact, mNodeCapacity);
+            final int depth = Math.min(prefix.length(), MAX_DEPTH);
+            for (int i = 0; i < depth; i++) {
+                final int digit = prefix.charAt(i) - '0';
+                if (digit < 0 || digit >= DIGIT_COUNT) {
+                    return created;
+                }
+                if (node.children == null) {
+                    node.children = new BuilderNode[DIGIT_COUNT];
+                }
+                if (node.children[digit] == null) {
+                    node.children[digit] = new BuilderNode();
+                    created++;
+                }
+                node = node.children[digit];
+                node.add(contact, mNodeCapacity);
+            }
+            return created;
+        }
+
+        /**
+         * Converts the tree of builder nodes into the flat breadth first layout used by
+         * {@link SmartDialTrie}.
+         */
+        private SmartDialTrie flatten(BuilderNode root, int nodeCount, int[][] contactRows) {
+            final BuilderNode[] queue = new BuilderNode[nodeCount];
+            final int[] childStart = new int[nodeCount];
+            final short[] childMask = new short[nodeCount];
+            final int[] contactStart = new int[nodeCount];
+            final short[] contactCount = new short[nodeCount];
+            final boolean[] truncated = new boolean[nodeCount];
+
+            int totalContacts = 0;
+            int tail = 0;
+            queue[tail++] = root;
+            for (int head = 0; head < tail; head++) {
+                final BuilderNode node = queue[head];
+                contactStart[head] = totalContacts;
+                contactCount[head] = (short) node.size;
+                truncated[head] = node.truncated;
+                totalContacts += node.size;
+
+                childStart[head] = tail;
+                if (node.children != null) {
+                    for (int digit = 0; digit < DIGIT_COUNT; digit++) {
+                        if (node.children[digit] != null) {
+                            childMask[head] |= 1 << digit;
+                            queue[tail++] = node.children[digit];
+                        }
+                    }
+                }
+            }
+
+            final int[] contacts = new int[totalContacts];
+            for (int i = 0; i < nodeCount; i++) {
+                System.arraycopy(queue[i].contacts, 0, contacts, contactStart[i], queue[i].size);
+            }
+
+            return new SmartDialTrie(mRows.toArray(new ContactNumber[mRows.size()]),
+                    contactRows, childStart, childMask, contactStart, contactCount, truncated,
+                    contacts);
+        }
+    }
+
+    private static class BuilderNode {
+        BuilderNode[] children;
+        int[] contacts = new int[1];
+        int size;
+        boolean truncated;
+
+        /**
+         * Adds a contact to the node unless it is already present. Contacts are added in rank
+         * order, so once the node is full any further contact ranks lower than all stored ones.
+         */
+        void add(int contact, int capacity) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (contacts[i] == contact) {
+                    return;
+                }
+            }
+            if (size == capacity) {
+                truncated = true;
+                return;
+            }
+            if (size == contacts.length) {
+                contacts = Arrays.copyOf(contacts, Math.min(capacity, size * 2));
+            }
+            contacts[size++] = contact;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Immutable lookup table backing a {@link SmartDialMap}. For every character up to a maximum it
+ * stores the normalized character and a flags byte combining the dialpad index with whether the
+ * character is alphabetic or numeric, so that classifying a character is a single array load.
+ * Characters beyond the end of the table are not valid and normalize to themselves.
+ *
+ * A table is compiled once through its {@link Builder}, so adding an alphabet only means listing
+ * its letters and the characters that normalize to them.
+ */
+final class SmartDialCharacterTable {
+    /** Bits of a flags byte holding the dialpad index of a valid character. */
+    static final int INDEX_MASK = 0x0f;
+
+    static final int FLAG_ALPHABETIC = 0x10;
+    static final int FLAG_NUMERIC = 0x20;
+    static final int FLAG_VALID = FLAG_ALPHABETIC | FLAG_NUMERIC;
+
+    private final char[] mNormalized;
+
+    /** Flags of each character. */
+    private final byte[] mFlags;
+
+    /** Flags of the normalized form of each character. */
+    private final byte[] mNormalizedFlags;
+
+    private SmartDialCharacterTable(char[] normalized, byte[] flags, byte[] normalizedFlags) {
+        mNormalized = normalized;
+        mFlags = flags;
+        mNormalizedFlags = normalizedFlags;
+    }
+
+    public char normalize(char ch) {
+        return ch < mNormalized.length ? mNormalized[ch] : ch;
+    }
+
+    public int getFlags(char ch) {
+        return ch < mFlags.length ? mFlags[ch] : 0;
+    }
+
+    public int getNormalizedFlags(char ch) {
+        return ch < mNormalizedFlags.length ? mNormalizedFlags[ch] : 0;
+    }
+
+    /**
+     * Returns the dialpad index stored in the given flags, or -1 if they do not belong to a valid
+     * dialpad character.
+     */
+    public static byte toDialpadIndex(int flags) {
+        return (byte) ((flags & FLAG_VALID) != 0 ? flags & INDEX_MASK : -1);
+    }
+
+    public static class Builder {
+        private final char[] mNormalized;
+        private final byte[] mFlags;
+
+        /**
+         * @param maxChar The largest character that is valid or normalizes to another character.
+         */
+        public Builder(char maxChar) {
+            mNormalized = new char[maxChar + 1];
+            mFlags = new byte[maxChar + 1];
+            for (int i = 0; i < mNormalized.length; i++) {
+                mNormalized[i] = (char) i;
+            }
+        }
+
+        /**
+         * Marks the characters from first to last as numeric, with their offset from the first
+         * character as dialpad index.
+         */
+        public Builder addNumericRange(char first, char last) {
+            for (char ch = first; ch <= last; ch++) {
+                mFlags[ch] = (byte) (FLAG_NUMERIC | (ch - first));
+            }
+            return this;
+        }
+
+        /**
+         * Marks the characters from first to last as alphabetic, mapped to the dialpad keys given
+         * by the matching entries of digits.
+         */
+        public Builder addAlphabeticRange(char first, char last, char[] digits) {
+            Preconditions.checkArgument(digits.length == last - first + 1);
+            for (char ch = first; ch <= last; ch++) {
+                mFlags[ch] = (byte) (FLAG_ALPHABETIC | (digits[ch - first] - '0'));
+            }
+            return this;
+        }
+
+        /**
+         * Normalizes the characters from first to last onto the same number of characters
+         * starting at target, e.g. to map upper case letters to lower case ones.
+         */
+        public Builder mapRange(char first, char last, char target) {
+            for (char ch = first; ch <= last; ch++) {
+                mNormalized[ch] = (char) (target + (ch - first));
+            }
+            return this;
+        }
+
+        /**
+         * Normalizes each of the given characters to target.
+         */
+        public Builder mapCharacters(String characters, char target) {
+            for (int i = 0; i < characters.length(); i++) {
+                mNormalized[characters.charAt(i)] = target;
+            }
+            return this;
+        }
+
+        public SmartDialCharacterTable build() {
+            final byte[] normalizedFlags = new byte[mFlags.length];
+            for (int i = 0; i < mNormalized.length; i++) {
+                normalizedFlags[i] = mFlags[mNormalized[i]];
+            }
+            return new SmartDialCharacterTable(mNormalized.clone(), mFlags.clone(),
+                    normalizedFlags);
+        }
+    }
+}
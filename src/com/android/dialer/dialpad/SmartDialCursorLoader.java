@@ -22,12 +22,15 @@ import android.content.Loader.ForceLoadContentObserver;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.Log;
 
 import com.android.contacts.common.list.PhoneNumberListAdapter.PhoneQuery;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialCandidates;
 import com.android.dialerbind.DatabaseHelperManager;
 
 import java.util.ArrayList;
@@ -49,6 +52,18 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
 
     private ForceLoadContentObserver mObserver;
 
+    /**
+     * Candidates of the last loaded query. When the user appends a digit, the new results are
+     * narrowed down from them instead of querying the database again.
+     */
+    private SmartDialCandidates mCandidates;
+
+    /** Scheduler shared with the loaders of other queries, or null to load right away. */
+    private SmartDialQueryScheduler mScheduler;
+    private int mQueryGeneration;
+
+    private CancellationSignal mCancellationSignal;
+
     public SmartDialCursorLoader(Context context) {
         super(context);
         mContext = context;
@@ -66,6 +81,30 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
 
         /** Constructs a name matcher object for matching names. */
         mNameMatcher = new SmartDialNameMatcher(mQuery, SmartDialPrefix.getMap());
+        mNameMatcher.setNumberInfixMatching(true);
+        mNameMatcher.setFuzzyMatching(true);
+
+        if (mScheduler != null) {
+            mQueryGeneration = mScheduler.onQueryChanged();
+        }
+    }
+
+    /**
+     * Configures the scheduler coalescing the queries of consecutive loaders and canceling the
+     * ones that have been superseded. Must be called before {@link #configureQuery}.
+     * @param scheduler Scheduler shared between the loaders of the caller.
+     */
+    public void configureScheduler(SmartDialQueryScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Configures the candidates kept from previous queries. A new loader is created for every
+     * query, so the candidates are owned by the caller and shared between its loaders.
+     * @param candidates Candidates to narrow down results from, and to update with the results.
+     */
+    public void configureCandidates(SmartDialCandidates candidates) {
+        mCandidates = candidates;
     }
 
     /**
@@ -82,20 +121,64 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
             return new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
         }
 
+        final CancellationSignal cancellationSignal;
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            cancellationSignal = new CancellationSignal();
+            mCancellationSignal = cancellationSignal;
+        }
+        try {
+            if (mScheduler == null) {
+                return loadMatches(cancellationSignal);
+            }
+            mScheduler.acquire(mQueryGeneration, cancellationSignal);
+            try {
+                return loadMatches(cancellationSignal);
+            } finally {
+                mScheduler.release();
+            }
+        } catch (OperationCanceledException e) {
+            if (isLoadInBackgroundCanceled()) {
+                throw e;
+            }
+            /** The query has been superseded by the loader of a newer query, which abandons
+             * this loader, so the result is never delivered.
+             */
+            if (DEBUG) {
+                Log.v(TAG, "Superseded query " + mQuery);
+            }
+            return new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    /**
+     * Loads the matches of the query into a cursor.
+     * @throws OperationCanceledException If the signal is canceled while loading.
+     */
+    private Cursor loadMatches(CancellationSignal cancellationSignal) {
         /** Loads results from the database helper. */
         final DialerDatabaseHelper dialerDatabaseHelper = DatabaseHelperManager.getDatabaseHelper(
                 mContext);
+        final SmartDialMatchRanges matchRanges = new SmartDialMatchRanges();
         final ArrayList<ContactNumber> allMatches = dialerDatabaseHelper.getLooseMatches(mQuery,
-                mNameMatcher);
+                mNameMatcher, mCandidates, cancellationSignal, matchRanges);
 
         if (DEBUG) {
             Log.v(TAG, "Loaded matches " + String.valueOf(allMatches.size()));
         }
 
         /** Constructs a cursor for the returned array of results. */
-        final MatrixCursor cursor = new MatrixCursor(PhoneQuery.PROJECTION_PRIMARY);
+        final MatrixCursor cursor = new SmartDialMatchCursor(PhoneQuery.PROJECTION_PRIMARY,
+                matchRanges);
         Object[] row = new Object[PhoneQuery.PROJECTION_PRIMARY.length];
         for (ContactNumber contact : allMatches) {
+            cancellationSignal.throwIfCanceled();
             row[PhoneQuery.PHONE_ID] = contact.dataId;
             row[PhoneQuery.PHONE_NUMBER] = contact.phoneNumber;
             row[PhoneQuery.CONTACT_ID] = contact.id;
@@ -107,6 +190,17 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
         return cursor;
     }
 
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
     @Override
     public void deliverResult(Cursor cursor) {
         if (isReset()) {
@@ -148,6 +242,15 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
         }
     }
 
+    @Override
+    public void onContentChanged() {
+        /** The smart dial database changed, so the kept candidates may be stale. */
+        if (mCandidates != null) {
+            mCandidates.invalidate();
+        }
+        super.onContentChanged();
+    }
+
     @Override
     protected void onStopLoading() {
         /** The Loader is in a stopped state, so we should attempt to cancel the current load. */
@@ -189,4 +292,24 @@ public class SmartDialCursorLoader extends AsyncTaskLoader<Cursor> {
             cursor.close();
         }
     }
+
+    /**
+     * Cursor over smart dial results that carries the highlight ranges computed while searching,
+     * so that binding a row does not need to match it against the query again.
+     */
+    public static class SmartDialMatchCursor extends MatrixCursor {
+        private final SmartDialMatchRanges mMatchRanges;
+
+        public SmartDialMatchCursor(String[] columnNames, SmartDialMatchRanges matchRanges) {
+            super(columnNames);
+            mMatchRanges = matchRanges;
+        }
+
+        /**
+         * Returns the highlight ranges, whose rows are the positions of the cursor.
+         */
+        public SmartDialMatchRanges getMatchRanges() {
+            return mMatchRanges;
+        }
+    }
 }
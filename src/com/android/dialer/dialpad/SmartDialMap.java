@@ -40,4 +40,11 @@ public interface SmartDialMap {
      * from accented characters.
      */
     public char normalizeCharacter(char ch);
+
+    /*
+     * Returns the dialpad index of the normalized form of the provided character, or -1 if the
+     * normalized character can not be mapped to a key on the dialpad. This is equivalent to
+     * getDialpadIndex(normalizeCharacter(ch)) but only needs a single lookup.
+     */
+    public byte getNormalizedDialpadIndex(char ch);
 }
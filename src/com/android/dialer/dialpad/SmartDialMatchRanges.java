@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import java.util.Arrays;
+
+/**
+ * Highlight ranges of the rows of a smart dial result, recorded from the
+ * {@link SmartDialNameMatcher} when each row is accepted, so that the rows can be highlighted
+ * without matching them again. Rows are numbered in the order they were added, and all ranges
+ * are packed into int arrays.
+ */
+public class SmartDialMatchRanges {
+    private static final int INITIAL_ROW_CAPACITY = 32;
+
+    /** Index of the first name range of each row in {@link #mNameRanges}, plus one at the end. */
+    private int[] mNameRangeOffsets = new int[INITIAL_ROW_CAPACITY + 1];
+    /** Start and end of every name range. */
+    private int[] mNameRanges = new int[INITIAL_ROW_CAPACITY * 2];
+    /** Start and end of the number range of each row, or -1 if the number did not match. */
+    private int[] mNumberRanges = new int[INITIAL_ROW_CAPACITY * 2];
+    private int mRowCount;
+
+    /**
+     * Records the ranges of the next row from the state of a matcher that has just matched its
+     * name and number.
+     *
+     * @param matcher The matcher.
+     * @param nameMatches Whether the name of the row matched.
+     * @param numberMatches Whether the number of the row matched.
+     */
+    public void add(SmartDialNameMatcher matcher, boolean nameMatches, boolean numberMatches) {
+        if (mRowCount == mNumberRanges.length / 2) {
+            mNumberRanges = Arrays.copyOf(mNumberRanges, mNumberRanges.length * 2);
+            mNameRangeOffsets = Arrays.copyOf(mNameRangeOffsets, mRowCount * 2 + 1);
+        }
+        int nameRangeEnd = mNameRangeOffsets[mRowCount];
+        if (nameMatches) {
+            final int count = matcher.getMatchPositionCount();
+            if (nameRangeEnd + count * 2 > mNameRanges.length) {
+                mNameRanges = Arrays.copyOf(mNameRanges,
+                        Math.max(mNameRanges.length * 2, nameRangeEnd + count * 2));
+            }
+            for (int i = 0; i < count; i++) {
+                mNameRanges[nameRangeEnd++] = matcher.getMatchStart(i);
+                mNameRanges[nameRangeEnd++] = matcher.getMatchEnd(i);
+            }
+        }
+        mNameRangeOffsets[mRowCount + 1] = nameRangeEnd;
+        mNumberRanges[mRowCount * 2] = numberMatches ? matcher.getNumberMatchStart() : -1;
+        mNumberRanges[mRowCount * 2 + 1] = numberMatches ? matcher.getNumberMatchEnd() : -1;
+        mRowCount++;
+    }
+
+    /**
+     * Replaces the ranges of all rows with those of another instance.
+     */
+    public void copyFrom(SmartDialMatchRanges other) {
+        mNameRangeOffsets = Arrays.copyOf(other.mNameRangeOffsets,
+                other.mNameRangeOffsets.length);
+        mNameRanges = Arrays.copyOf(other.mNameRanges, other.mNameRanges.length);
+        mNumberRanges = Arrays.copyOf(other.mNumberRanges, other.mNumberRanges.length);
+        mRowCount = other.mRowCount;
+    }
+
+    /**
+     * Removes the ranges of all rows.
+     */
+    public void clear() {
+        mRowCount = 0;
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    public int getNameRangeCount(int row) {
+        return (mNameRangeOffsets[row + 1] - mNameRangeOffsets[row]) / 2;
+    }
+
+    public int getNameRangeStart(int row, int index) {
+        return mNameRanges[mNameRangeOffsets[row] + index * 2];
+    }
+
+    public int getNameRangeEnd(int row, int index) {
+        return mNameRanges[mNameRangeOffsets[row] + index * 2 + 1];
+    }
+
+    /**
+     * Returns whether the number of the row matched, in which case its range can be read with
+     * {@link #getNumberRangeStart} and {@link #getNumberRangeEnd}.
+     */
+    public boolean hasNumberRange(int row) {
+        return mNumberRanges[row * 2] >= 0;
+    }
+
+    public int getNumberRangeStart(int row) {
+        return mNumberRanges[row * 2];
+    }
+
+    public int getNumberRangeEnd(int row) {
+        return mNumberRanges[row * 2 + 1];
+    }
+}
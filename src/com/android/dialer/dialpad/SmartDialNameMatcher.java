@@ -21,9 +21,9 @@ import android.text.TextUtils;
 import com.android.dialer.dialpad.SmartDialPrefix.PhoneNumberTokens;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 
 /**
  * {@link #SmartDialNameMatcher} contains utility functions to remove accents from accented
@@ -43,14 +43,38 @@ public class SmartDialNameMatcher {
     // positives
     private static final int INITIAL_LENGTH_LIMIT = 1;
 
-    private final ArrayList<SmartDialMatchPosition> mMatchPositions = Lists.newArrayList();
-
     public static final SmartDialMap LATIN_SMART_DIAL_MAP = new LatinSmartDialMap();
 
     private final SmartDialMap mMap;
 
-    private String mNameMatchMask = "";
-    private String mPhoneNumberMatchMask = "";
+    /**
+     * Match positions found by {@link #matchesCombination}, stored as start/end pairs. Every level
+     * of recursion owns a row of {@link #mPositionStride} pairs, so that a partial match found at
+     * one level is not overwritten while later branches are explored. The buffers are reused
+     * across calls and only grow when a longer query is matched.
+     */
+    private int[] mPositions = new int[0];
+    private int[] mPositionCounts = new int[0];
+    private int mPositionStride;
+
+    /** Number of match positions of the last name match, stored in the first row of mPositions. */
+    private int mMatchPositionCount;
+
+    /** Highlight masks of the last name and number matches, and the length of the matched text. */
+    private final BitSet mNameMatchMask = new BitSet();
+    private int mNameMatchMaskLength;
+    private final BitSet mPhoneNumberMatchMask = new BitSet();
+    private int mPhoneNumberMatchMaskLength;
+
+    /** Range of the last number match. */
+    private int mNumberMatchStart;
+    private int mNumberMatchEnd;
+
+    /** Whether a number also matches a query found anywhere inside it. */
+    private boolean mNumberInfixMatching;
+
+    /** Whether queries one typing error away are also looked up. */
+    private boolean mFuzzyMatching;
 
     @VisibleForTesting
     public SmartDialNameMatcher(String query) {
@@ -63,26 +87,37 @@ public class SmartDialNameMatcher {
     }
 
     /**
-     * Constructs empty highlight mask. Bit 0 at a position means there is no match, Bit 1 means
-     * there is a match and should be highlighted in the TextView.
-     * @param builder StringBuilder object
-     * @param length Length of the desired mask.
+     * Makes sure the position buffers can hold the match positions of a query of the given
+     * length. Every level of recursion consumes at least one query character, so there are at
+     * most queryLength levels, each with at most queryLength positions.
      */
-    private void constructEmptyMask(StringBuilder builder, int length) {
-        for (int i = 0; i < length; ++i) {
-            builder.append("0");
+    private void ensurePositionCapacity(int queryLength) {
+        mPositionStride = queryLength;
+        final int levels = queryLength + 1;
+        if (mPositionCounts.length < levels) {
+            mPositionCounts = new int[levels];
+        }
+        if (mPositions.length < levels * queryLength * 2) {
+            mPositions = new int[levels * queryLength * 2];
         }
     }
 
+    private void setPosition(int level, int index, int start, int end) {
+        final int offset = (level * mPositionStride + index) * 2;
+        mPositions[offset] = start;
+        mPositions[offset + 1] = end;
+    }
+
     /**
-     * Replaces the 0-bit at a position with 1-bit, indicating that there is a match.
-     * @param builder StringBuilder object.
-     * @param matchPos Match Positions to mask as 1.
+     * Converts a highlight mask into a string. Character 0 at a position means there is no match,
+     * 1 means there is a match and should be highlighted in the TextView.
      */
-    private void replaceBitInMask(StringBuilder builder, SmartDialMatchPosition matchPos) {
-        for (int i = matchPos.start; i < matchPos.end; ++i) {
-            builder.replace(i, i + 1, "1");
+    private static String maskToString(BitSet mask, int length) {
+        final StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            builder.append(mask.get(i) ? '1' : '0');
         }
+        return builder.toString();
     }
 
     /**
@@ -124,33 +159,10 @@ public class SmartDialNameMatcher {
      */
     @VisibleForTesting
     public SmartDialMatchPosition matchesNumber(String phoneNumber, String query, boolean useNanp) {
-        StringBuilder builder = new StringBuilder();
-        constructEmptyMask(builder, phoneNumber.length());
-        mPhoneNumberMatchMask = builder.toString();
-
-        // Try matching the number as is
-        SmartDialMatchPosition matchPos = matchesNumberWithOffset(phoneNumber, query, 0);
-        if (matchPos == null) {
-            final PhoneNumberTokens phoneNumberTokens =
-                    SmartDialPrefix.parsePhoneNumber(phoneNumber);
-
-            if (phoneNumberTokens == null) {
-                return matchPos;
-            }
-            if (phoneNumberTokens.countryCodeOffset != 0) {
-                matchPos = matchesNumberWithOffset(phoneNumber, query,
-                        phoneNumberTokens.countryCodeOffset);
-            }
-            if (matchPos == null && phoneNumberTokens.nanpCodeOffset != 0 && useNanp) {
-                matchPos = matchesNumberWithOffset(phoneNumber, query,
-                        phoneNumberTokens.nanpCodeOffset);
-            }
-        }
-        if (matchPos != null) {
-            replaceBitInMask(builder, matchPos);
-            mPhoneNumberMatchMask = builder.toString();
+        if (!isNumberMatch(phoneNumber, query, useNanp)) {
+            return null;
         }
-        return matchPos;
+        return new SmartDialMatchPosition(mNumberMatchStart, mNumberMatchEnd);
     }
 
     /**
@@ -179,19 +191,88 @@ public class SmartDialNameMatcher {
     }
 
     /**
-     * Matches a phone number against a query, taking care of formatting characters
+     * Sets whether a number that does not start with the query also matches it when the query
+     * appears anywhere inside the number, such as the last digits of the number. Only queries of
+     * at least {@link SmartDialPrefix#MIN_INFIX_QUERY_LENGTH} digits are matched this way.
+     */
+    public void setNumberInfixMatching(boolean numberInfixMatching) {
+        mNumberInfixMatching = numberInfixMatching;
+    }
+
+    public boolean isNumberInfixMatching() {
+        return mNumberInfixMatching;
+    }
+
+    /**
+     * Sets whether contacts matching a query one typing error away, such as a neighboring key
+     * pressed on the dialpad, are also looked up when the query itself matches too few contacts.
+     * They are ranked after all exact matches. Only queries of at least
+     * {@link SmartDialPrefix#MIN_FUZZY_QUERY_LENGTH} digits are corrected this way.
+     */
+    public void setFuzzyMatching(boolean fuzzyMatching) {
+        mFuzzyMatching = fuzzyMatching;
+    }
+
+    public boolean isFuzzyMatching() {
+        return mFuzzyMatching;
+    }
+
+    /**
+     * Same as {@link #matchesNumber(String, String)}, but does not allocate a
+     * {@link SmartDialMatchPosition}. The range of the match can be read with
+     * {@link #getNumberMatchStart} and {@link #getNumberMatchEnd}.
+     *
+     * @return Whether the number matches the query.
+     */
+    public boolean isNumberMatch(String phoneNumber, String query) {
+        return isNumberMatch(phoneNumber, query, true);
+    }
+
+    private boolean isNumberMatch(String phoneNumber, String query, boolean useNanp) {
+        mPhoneNumberMatchMask.clear();
+        mPhoneNumberMatchMaskLength = phoneNumber.length();
+
+        // Try matching the number as is
+        boolean matches = matchesNumberWithOffset(phoneNumber, query, 0);
+        if (!matches) {
+            final PhoneNumberTokens phoneNumberTokens =
+                    SmartDialPrefix.parsePhoneNumber(phoneNumber);
+
+            if (phoneNumberTokens == null) {
+                return false;
+            }
+            if (phoneNumberTokens.countryCodeOffset != 0) {
+                matches = matchesNumberWithOffset(phoneNumber, query,
+                        phoneNumberTokens.countryCodeOffset);
+            }
+            if (!matches && phoneNumberTokens.nanpCodeOffset != 0 && useNanp) {
+                matches = matchesNumberWithOffset(phoneNumber, query,
+                        phoneNumberTokens.nanpCodeOffset);
+            }
+            if (!matches && mNumberInfixMatching &&
+                    query.length() >= SmartDialPrefix.MIN_INFIX_QUERY_LENGTH) {
+                matches = matchesNumberInfix(phoneNumber, query);
+            }
+        }
+        if (matches) {
+            mPhoneNumberMatchMask.set(mNumberMatchStart, mNumberMatchEnd);
+        }
+        return matches;
+    }
+
+    /**
+     * Matches a phone number against a query, taking care of formatting characters. On a match,
+     * the matching range is stored in {@link #mNumberMatchStart} and {@link #mNumberMatchEnd}.
      *
      * @param phoneNumber - Raw phone number
      * @param query - Normalized query (only contains numbers from 0-9)
      * @param offset - The position in the number to start the match against (used to ignore
      * leading prefixes/country codes)
-     * @return {@literal null} if the number and the query don't match, a valid
-     *         SmartDialMatchPosition with the matching positions otherwise
+     * @return Whether the number and the query match.
      */
-    private SmartDialMatchPosition matchesNumberWithOffset(String phoneNumber, String query,
-            int offset) {
+    private boolean matchesNumberWithOffset(String phoneNumber, String query, int offset) {
         if (TextUtils.isEmpty(phoneNumber) || TextUtils.isEmpty(query)) {
-            return null;
+            return false;
         }
         int queryAt = 0;
         int numberAt = offset;
@@ -202,7 +283,7 @@ public class SmartDialNameMatcher {
             char ch = phoneNumber.charAt(i);
             if (mMap.isValidDialpadNumericChar(ch)) {
                 if (ch != query.charAt(queryAt)) {
-                    return null;
+                    return false;
                 }
                 queryAt++;
             } else {
@@ -223,7 +304,48 @@ public class SmartDialNameMatcher {
             }
             numberAt++;
         }
-        return new SmartDialMatchPosition(0 + offset, numberAt);
+        mNumberMatchStart = 0 + offset;
+        mNumberMatchEnd = numberAt;
+        return true;
+    }
+
+    /**
+     * Finds the first occurrence of a query in a phone number, skipping formatting characters
+     * between its digits. On a match, the range from the first to the last matched digit is
+     * stored in {@link #mNumberMatchStart} and {@link #mNumberMatchEnd}.
+     *
+     * @param phoneNumber - Raw phone number
+     * @param query - Normalized query (only contains numbers from 0-9)
+     * @return Whether the query appears in the number.
+     */
+    private boolean matchesNumberInfix(String phoneNumber, String query) {
+        if (TextUtils.isEmpty(phoneNumber) || TextUtils.isEmpty(query)) {
+            return false;
+        }
+        final int length = phoneNumber.length();
+        for (int start = 0; start < length; start++) {
+            if (phoneNumber.charAt(start) != query.charAt(0)) {
+                continue;
+            }
+            int queryAt = 1;
+            int numberAt = start + 1;
+            while (queryAt < query.length() && numberAt < length) {
+                final char ch = phoneNumber.charAt(numberAt);
+                if (mMap.isValidDialpadNumericChar(ch)) {
+                    if (ch != query.charAt(queryAt)) {
+                        break;
+                    }
+                    queryAt++;
+                }
+                numberAt++;
+            }
+            if (queryAt == query.length()) {
+                mNumberMatchStart = start;
+                mNumberMatchEnd = numberAt;
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -256,13 +378,54 @@ public class SmartDialNameMatcher {
     @VisibleForTesting
     boolean matchesCombination(String displayName, String query,
             ArrayList<SmartDialMatchPosition> matchList) {
-        StringBuilder builder = new StringBuilder();
-        constructEmptyMask(builder, displayName.length());
-        mNameMatchMask = builder.toString();
+        if (!matchesName(displayName, query)) {
+            return false;
+        }
+        for (int i = 0; i < mMatchPositionCount; i++) {
+            matchList.add(new SmartDialMatchPosition(getMatchStart(i), getMatchEnd(i)));
+        }
+        return true;
+    }
+
+    /**
+     * Matches the display name against the query without allocating, leaving the match positions
+     * in the first row of the position buffer and the highlight mask.
+     */
+    private boolean matchesName(String displayName, String query) {
+        mMatchPositionCount = 0;
+        mNameMatchMask.clear();
+        mNameMatchMaskLength = displayName.length();
+        ensurePositionCapacity(query.length());
+
+        if (!matchesCombination(displayName, 0, query, 0, 0)) {
+            return false;
+        }
+        mMatchPositionCount = mPositionCounts[0];
+        for (int i = 0; i < mMatchPositionCount; i++) {
+            mNameMatchMask.set(getMatchStart(i), getMatchEnd(i));
+        }
+        return true;
+    }
+
+    /**
+     * Implements {@link #matchesCombination(String, String, ArrayList)} on offsets into the
+     * original strings, so that matching the remaining tokens of the name against the remaining
+     * characters of the query does not need to create substrings.
+     *
+     * @param displayName The normalized display name.
+     * @param nameOffset Position in the display name to start matching from.
+     * @param query The string of digits that we want to match the display name to.
+     * @param queryOffset Position in the query to start matching from.
+     * @param level Level of recursion, which selects the row of the position buffer the match
+     * positions are stored in.
+     * @return Whether the display name from nameOffset matches the query from queryOffset.
+     */
+    private boolean matchesCombination(String displayName, int nameOffset, String query,
+            int queryOffset, int level) {
         final int nameLength = displayName.length();
-        final int queryLength = query.length();
+        final int queryLength = query.length() - queryOffset;
 
-        if (nameLength < queryLength) {
+        if (nameLength - nameOffset < queryLength) {
             return false;
         }
 
@@ -272,13 +435,14 @@ public class SmartDialNameMatcher {
 
         // The current character index in displayName
         // E.g. 3 corresponds to 'd' in "Fred Smith"
-        int nameStart = 0;
+        int nameStart = nameOffset;
 
-        // The current character in the query we are trying to match the displayName against
+        // The current character in the query we are trying to match the displayName against,
+        // relative to queryOffset
         int queryStart = 0;
 
         // The start position of the current token we are inspecting
-        int tokenStart = 0;
+        int tokenStart = nameOffset;
 
         // The number of non-alphabetic characters we've encountered so far in the current match.
         // E.g. if we've currently matched 3733764849 to (Fred Smith W)illiam, then the
@@ -286,17 +450,16 @@ public class SmartDialNameMatcher {
         // positions
         int seperatorCount = 0;
 
-        ArrayList<SmartDialMatchPosition> partial = new ArrayList<SmartDialMatchPosition>();
+        // The number of match positions of the partial token match found so far, if any. They are
+        // stored in this level's row of the position buffer.
+        int partialCount = 0;
+
         // Keep going until we reach the end of displayName
         while (nameStart < nameLength && queryStart < queryLength) {
-            char ch = displayName.charAt(nameStart);
-            // Strip diacritics from accented characters if any
-            ch = mMap.normalizeCharacter(ch);
-            if (mMap.isValidDialpadCharacter(ch)) {
-                if (mMap.isValidDialpadAlphabeticChar(ch)) {
-                    ch = mMap.getDialpadNumericCharacter(ch);
-                }
-                if (ch != query.charAt(queryStart)) {
+            // Strip diacritics from accented characters if any, and look up the dialpad key
+            final byte index = mMap.getNormalizedDialpadIndex(displayName.charAt(nameStart));
+            if (index >= 0) {
+                if ('0' + index != query.charAt(queryOffset + queryStart)) {
                     // Failed to match the current character in the query.
 
                     // Case 1: Failed to match the first character in the query. Skip to the next
@@ -313,12 +476,9 @@ public class SmartDialNameMatcher {
                     // Yo-Yoghurt because the query match would fail on the 3rd character, and
                     // then skip to the end of the "Yoghurt" token.
 
-                    if (queryStart == 0 || mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                            displayName.charAt(nameStart - 1)))) {
+                    if (queryStart == 0 || !isSeparator(displayName, nameStart - 1)) {
                         // skip to the next token, in the case of 1 or 2.
-                        while (nameStart < nameLength &&
-                                mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                                        displayName.charAt(nameStart)))) {
+                        while (nameStart < nameLength && !isSeparator(displayName, nameStart)) {
                             nameStart++;
                         }
                         nameStart++;
@@ -333,12 +493,9 @@ public class SmartDialNameMatcher {
 
                         // As much as possible, we prioritize a full token match over a sub token
                         // one so if we find a full token match, we can return right away
-                        matchList.add(new SmartDialMatchPosition(
-                                tokenStart, queryLength + tokenStart + seperatorCount));
-                        for (SmartDialMatchPosition match : matchList) {
-                            replaceBitInMask(builder, match);
-                        }
-                        mNameMatchMask = builder.toString();
+                        setPosition(level, 0, tokenStart,
+                                queryLength + tokenStart + seperatorCount);
+                        mPositionCounts[level] = 1;
                         return true;
                     } else if (ALLOW_INITIAL_MATCH && queryStart < INITIAL_LENGTH_LIMIT) {
                         // we matched the first character.
@@ -347,27 +504,22 @@ public class SmartDialNameMatcher {
                         // find the next separator in the query string
                         int j;
                         for (j = nameStart; j < nameLength; j++) {
-                            if (!mMap.isValidDialpadCharacter(mMap.normalizeCharacter(
-                                    displayName.charAt(j)))) {
+                            if (isSeparator(displayName, j)) {
                                 break;
                             }
                         }
                         // this means there is at least one character left after the separator
                         if (j < nameLength - 1) {
-                            final String remainder = displayName.substring(j + 1);
-                            final ArrayList<SmartDialMatchPosition> partialTemp =
-                                    Lists.newArrayList();
-                            if (matchesCombination(
-                                    remainder, query.substring(queryStart + 1), partialTemp)) {
-
-                                // store the list of possible match positions
-                                SmartDialMatchPosition.advanceMatchPositions(partialTemp, j + 1);
-                                partialTemp.add(0,
-                                        new SmartDialMatchPosition(nameStart, nameStart + 1));
-                                // we found a partial token match, store the data in a
-                                // temp buffer and return it if we end up not finding a full
-                                // token match
-                                partial = partialTemp;
+                            if (matchesCombination(displayName, j + 1, query,
+                                    queryOffset + queryStart + 1, level + 1)) {
+                                // we found a partial token match, store the initial followed by
+                                // the positions of the remainder in this level's row, and return
+                                // it if we end up not finding a full token match
+                                final int count = mPositionCounts[level + 1];
+                                setPosition(level, 0, nameStart, nameStart + 1);
+                                System.arraycopy(mPositions, (level + 1) * mPositionStride * 2,
+                                        mPositions, (level * mPositionStride + 1) * 2, count * 2);
+                                partialCount = count + 1;
                             }
                         }
                     }
@@ -393,27 +545,60 @@ public class SmartDialNameMatcher {
         }
         // if we have no complete match at this point, then we attempt to fall back to the partial
         // token match(if any). If we don't allow initial matching (ALLOW_INITIAL_MATCH = false)
-        // then partial will always be empty.
-        if (!partial.isEmpty()) {
-            matchList.addAll(partial);
-            for (SmartDialMatchPosition match : matchList) {
-                replaceBitInMask(builder, match);
-            }
-            mNameMatchMask = builder.toString();
+        // then there will never be a partial match.
+        if (partialCount > 0) {
+            mPositionCounts[level] = partialCount;
             return true;
         }
         return false;
     }
 
+    /**
+     * Returns whether the character at the given index of the name does not map to a key on the
+     * dialpad, and therefore separates two tokens.
+     */
+    private boolean isSeparator(String displayName, int index) {
+        return mMap.getNormalizedDialpadIndex(displayName.charAt(index)) < 0;
+    }
+
     public boolean matches(String displayName) {
-        mMatchPositions.clear();
-        return matchesCombination(displayName, mQuery, mMatchPositions);
+        return matchesName(displayName, mQuery);
     }
 
     public ArrayList<SmartDialMatchPosition> getMatchPositions() {
-        // Return a clone of mMatchPositions so that the caller can use it without
+        // Return a copy of the match positions so that the caller can use it without
         // worrying about it changing
-        return new ArrayList<SmartDialMatchPosition>(mMatchPositions);
+        final ArrayList<SmartDialMatchPosition> result =
+                new ArrayList<SmartDialMatchPosition>(mMatchPositionCount);
+        for (int i = 0; i < mMatchPositionCount; i++) {
+            result.add(new SmartDialMatchPosition(getMatchStart(i), getMatchEnd(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of match positions of the last name match. Together with
+     * {@link #getMatchStart} and {@link #getMatchEnd}, this reads the match positions without
+     * allocating.
+     */
+    public int getMatchPositionCount() {
+        return mMatchPositionCount;
+    }
+
+    public int getMatchStart(int index) {
+        return mPositions[index * 2];
+    }
+
+    public int getMatchEnd(int index) {
+        return mPositions[index * 2 + 1];
+    }
+
+    public int getNumberMatchStart() {
+        return mNumberMatchStart;
+    }
+
+    public int getNumberMatchEnd() {
+        return mNumberMatchEnd;
     }
 
     public void setQuery(String query) {
@@ -421,11 +606,11 @@ public class SmartDialNameMatcher {
     }
 
     public String getNameMatchPositionsInString() {
-        return mNameMatchMask;
+        return maskToString(mNameMatchMask, mNameMatchMaskLength);
     }
 
     public String getNumberMatchPositionsInString() {
-        return mPhoneNumberMatchMask;
+        return maskToString(mPhoneNumberMatchMask, mPhoneNumberMatchMaskLength);
     }
 
     public String getQuery() {
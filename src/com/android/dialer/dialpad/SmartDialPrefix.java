@@ -49,6 +49,26 @@ public class SmartDialPrefix {
     private static final int LAST_TOKENS_FOR_INITIALS = 2;
     private static final int FIRST_TOKENS_FOR_INITIALS = 2;
 
+    /**
+     * The default maximum number of strings generated for a contact's name, see
+     * {@link #generateNamePrefixes(String, int)}. Names with up to a dozen tokens stay below it.
+     */
+    public static final int DEFAULT_MAX_NAME_PREFIXES = 24;
+
+    private static volatile int sMaxNamePrefixes = DEFAULT_MAX_NAME_PREFIXES;
+
+    /**
+     * The minimum length of a query matched anywhere inside a phone number, long enough for the
+     * last four digits of a number. Shorter queries would match most numbers.
+     */
+    public static final int MIN_INFIX_QUERY_LENGTH = 4;
+
+    /**
+     * The minimum length of a query corrected for typing errors. Correcting shorter queries would
+     * match a large part of the contacts.
+     */
+    public static final int MIN_FUZZY_QUERY_LENGTH = 3;
+
     /** The country code of the user's sim card obtained by calling getSimCountryIso*/
     private static final String PREF_USER_SIM_COUNTRY_CODE =
             "DialtactsActivity_user_sim_country_code";
@@ -61,8 +81,24 @@ public class SmartDialPrefix {
     /** Set of country names that use NANP code.*/
     private static Set<String> sNanpCountries = null;
 
-    /** Set of supported country codes in front of the phone number. */
-    private static Set<String> sCountryCodes = null;
+    /**
+     * Supported country codes in front of the phone number, indexed by their numeric value.
+     * Volatile since numbers may be parsed on several threads at once while the smart dial
+     * database is rebuilt.
+     */
+    private static volatile boolean[] sCountryCodes = null;
+
+    /** Country codes have at most three digits. */
+    private static final int MAX_COUNTRY_CODE_LENGTH = 3;
+
+    /**
+     * Recently parsed phone numbers, indexed by the hash code of the number. The entries are
+     * immutable, so they are shared between threads without locking, and a lost race only costs
+     * parsing a number again.
+     */
+    private static final int PARSED_NUMBER_CACHE_SIZE = 512;
+    private static final PhoneNumberTokens[] sParsedNumbers =
+            new PhoneNumberTokens[PARSED_NUMBER_CACHE_SIZE];
 
     /** Dialpad mapping. */
     private static final SmartDialMap mMap = new LatinSmartDialMap();
@@ -100,12 +136,23 @@ public class SmartDialPrefix {
         sUserInNanpRegion = userInNanpRegion;
     }
 
+    /**
+     * Sets the maximum number of strings generated for a contact's name. The prefix table has to
+     * be rebuilt for a new limit to apply to contacts that are already in it.
+     */
+    public static void setMaxNamePrefixes(int maxNamePrefixes) {
+        sMaxNamePrefixes = maxNamePrefixes;
+    }
+
     /**
      * Class to record phone number parsing information.
      */
     public static class PhoneNumberTokens {
-        /** Country code of the phone number. */
-        final String countryCode;
+        /** The phone number that was parsed. */
+        final String number;
+
+        /** Whether the number was parsed as if the user was in a NANP region. */
+        final boolean userInNanpRegion;
 
         /** Offset of national number after the country code. */
         final int countryCodeOffset;
@@ -113,8 +160,10 @@ public class SmartDialPrefix {
         /** Offset of local number after NANP area code.*/
         final int nanpCodeOffset;
 
-        public PhoneNumberTokens(String countryCode, int countryCodeOffset, int nanpCodeOffset) {
-            this.countryCode = countryCode;
+        public PhoneNumberTokens(String number, boolean userInNanpRegion, int countryCodeOffset,
+                int nanpCodeOffset) {
+            this.number = number;
+            this.userInNanpRegion = userInNanpRegion;
             this.countryCodeOffset = countryCodeOffset;
             this.nanpCodeOffset = nanpCodeOffset;
         }
@@ -129,7 +178,7 @@ public class SmartDialPrefix {
     public static ArrayList<String> parseToIndexTokens(String contactName) {
         final int length = contactName.length();
         final ArrayList<String> result = Lists.newArrayList();
-        char c;
+        byte index;
         final StringBuilder currentIndexToken = new StringBuilder();
         /**
          * Iterates through the whole name string. If the current character is a valid character,
@@ -137,10 +186,10 @@ public class SmartDialPrefix {
          * example space " ", mark the current token as complete and add it to the list of tokens.
          */
         for (int i = 0; i < length; i++) {
-            c = mMap.normalizeCharacter(contactName.charAt(i));
-            if (mMap.isValidDialpadCharacter(c)) {
-                /** Converts a character into the number on dialpad that represents the character.*/
-                currentIndexToken.append(mMap.getDialpadIndex(c));
+            index = mMap.getNormalizedDialpadIndex(contactName.charAt(i));
+            if (index >= 0) {
+                /** Appends the number on dialpad that represents the character.*/
+                currentIndexToken.append(index);
             } else {
                 if (currentIndexToken.length() != 0) {
                     result.add(currentIndexToken.toString());
@@ -158,59 +207,134 @@ public class SmartDialPrefix {
 
     /**
      * Generates a list of strings that any prefix of any string in the list can be used to look
-     * up the contact's name.
+     * up the contact's name, with at most the number of strings set by
+     * {@link #setMaxNamePrefixes}.
      *
      * @param index The contact's name in string.
      * @return A List of strings, whose prefix can be used to look up the contact.
      */
     public static ArrayList<String> generateNamePrefixes(String index) {
-        final ArrayList<String> result = Lists.newArrayList();
+        return generateNamePrefixes(index, sMaxNamePrefixes);
+    }
 
+    /**
+     * Generates a list of strings that any prefix of any string in the list can be used to look
+     * up the contact's name. The list holds no duplicates, and no string that is a prefix of
+     * another one, since every lookup it allows is allowed by the longer string as well.
+     *
+     * If a name has more strings than the limit, the strings starting at a token that takes part
+     * in initials are kept first, followed by the initial combinations, and the strings starting
+     * at the other tokens in the middle of the name.
+     *
+     * @param index The contact's name in string.
+     * @param maxPrefixes Maximum number of strings returned.
+     * @return A List of strings, whose prefix can be used to look up the contact.
+     */
+    public static ArrayList<String> generateNamePrefixes(String index, int maxPrefixes) {
         /** Parses the name into a list of tokens.*/
         final ArrayList<String> indexTokens = parseToIndexTokens(index);
+        final int tokenCount = indexTokens.size();
+        if (tokenCount == 0) {
+            return Lists.newArrayList();
+        }
 
-        if (indexTokens.size() > 0) {
-            /** Adds the full token combinations to the list. For example, a contact with name
-             * "Albert Ben Ed Foster" can be looked up by any prefix of the following strings
-             * "Foster" "EdFoster" "BenEdFoster" and "AlbertBenEdFoster". This covers all cases of
-             * look up that contains only one token, and that spans multiple continuous tokens.
-             */
-            final StringBuilder fullNameToken = new StringBuilder();
-            for (int i = indexTokens.size() - 1; i >= 0; i--) {
-                fullNameToken.insert(0, indexTokens.get(i));
-                result.add(fullNameToken.toString());
+        /** Builds the full token combinations. For example, a contact with name
+         * "Albert Ben Ed Foster" can be looked up by any prefix of the following strings
+         * "Foster" "EdFoster" "BenEdFoster" and "AlbertBenEdFoster". This covers all cases of
+         * look up that contains only one token, and that spans multiple continuous tokens.
+         */
+        final String[] fullNameTokens = new String[tokenCount];
+        final StringBuilder fullNameToken = new StringBuilder();
+        for (int i = tokenCount - 1; i >= 0; i--) {
+            fullNameToken.insert(0, indexTokens.get(i));
+            fullNameTokens[i] = fullNameToken.toString();
+        }
+
+        final ArrayList<String> candidates = Lists.newArrayList();
+        for (int i = tokenCount - 1; i >= 0; i--) {
+            if (isTokenForInitials(i, tokenCount) || i == tokenCount - 1) {
+                candidates.add(fullNameTokens[i]);
             }
+        }
 
-            /** Adds initial combinations to the list, with the number of initials restricted by
-             * {@link #LAST_TOKENS_FOR_INITIALS} and {@link #FIRST_TOKENS_FOR_INITIALS}.
-             * For example, a contact with name "Albert Ben Ed Foster" can be looked up by any
-             * prefix of the following strings "EFoster" "BFoster" "BEFoster" "AFoster" "ABFoster"
-             * "AEFoster" and "ABEFoster". This covers all cases of initial lookup.
-             */
-            ArrayList<String> fullNames = Lists.newArrayList();
-            fullNames.add(indexTokens.get(indexTokens.size() - 1));
-            final int recursiveNameStart = result.size();
-            int recursiveNameEnd = result.size();
-            String initial = "";
-            for (int i = indexTokens.size() - 2; i >= 0; i--) {
-                if ((i >= indexTokens.size() - LAST_TOKENS_FOR_INITIALS) ||
-                        (i < FIRST_TOKENS_FOR_INITIALS)) {
-                    initial = indexTokens.get(i).substring(0, 1);
-
-                    /** Recursively adds initial combinations to the list.*/
-                    for (int j = 0; j < fullNames.size(); ++j) {
-                        result.add(initial + fullNames.get(j));
-                    }
-                    for (int j = recursiveNameStart; j < recursiveNameEnd; ++j) {
-                       result.add(initial + result.get(j));
-                    }
-                    recursiveNameEnd = result.size();
-                    final String currentFullName = fullNames.get(fullNames.size() - 1);
-                    fullNames.add(indexTokens.get(i) +  currentFullName);
+        /** Adds initial combinations to the list, with the number of initials restricted by
+         * {@link #LAST_TOKENS_FOR_INITIALS} and {@link #FIRST_TOKENS_FOR_INITIALS}.
+         * For example, a contact with name "Albert Ben Ed Foster" can be looked up by any
+         * prefix of the following strings "EFoster" "BFoster" "BEFoster" "AFoster" "ABFoster"
+         * "AEFoster" and "ABEFoster". This covers all cases of initial lookup.
+         */
+        final ArrayList<String> fullNames = Lists.newArrayList();
+        fullNames.add(indexTokens.get(tokenCount - 1));
+        final int recursiveNameStart = candidates.size();
+        int recursiveNameEnd = candidates.size();
+        for (int i = tokenCount - 2; i >= 0; i--) {
+            if (isTokenForInitials(i, tokenCount)) {
+                final String initial = indexTokens.get(i).substring(0, 1);
+
+                /** Recursively adds initial combinations to the list.*/
+                for (int j = 0; j < fullNames.size(); ++j) {
+                    candidates.add(initial + fullNames.get(j));
+                }
+                for (int j = recursiveNameStart; j < recursiveNameEnd; ++j) {
+                    candidates.add(initial + candidates.get(j));
                 }
+                recursiveNameEnd = candidates.size();
+                final String currentFullName = fullNames.get(fullNames.size() - 1);
+                fullNames.add(indexTokens.get(i) + currentFullName);
+            }
+        }
+
+        /** The tokens in the middle of long names come last. */
+        for (int i = 0; i < tokenCount - 1; i++) {
+            if (!isTokenForInitials(i, tokenCount)) {
+                candidates.add(fullNameTokens[i]);
             }
         }
+        return keepMaximalPrefixes(candidates, maxPrefixes);
+    }
+
+    /**
+     * Returns whether the token at the given position of a name can be replaced by its initial.
+     */
+    private static boolean isTokenForInitials(int position, int tokenCount) {
+        return position < tokenCount - 1 && (position >= tokenCount - LAST_TOKENS_FOR_INITIALS ||
+                position < FIRST_TOKENS_FOR_INITIALS);
+    }
 
+    /**
+     * Returns the candidates that are not a prefix of another candidate, without duplicates, in
+     * the order of the candidates. If there are more of them than the limit, the ones appearing
+     * first are kept.
+     */
+    private static ArrayList<String> keepMaximalPrefixes(ArrayList<String> candidates,
+            int maxPrefixes) {
+        final ArrayList<String> result = Lists.newArrayList();
+        for (String candidate : candidates) {
+            boolean covered = false;
+            int replacedPosition = -1;
+            for (int i = result.size() - 1; i >= 0; i--) {
+                final String kept = result.get(i);
+                if (kept.startsWith(candidate)) {
+                    covered = true;
+                    break;
+                }
+                if (candidate.startsWith(kept)) {
+                    /** The kept strings never contain each other, so the candidate cannot be
+                     * covered by one of the remaining ones.
+                     */
+                    result.remove(i);
+                    replacedPosition = i;
+                }
+            }
+            if (covered) {
+                continue;
+            }
+            if (replacedPosition >= 0) {
+                result.add(replacedPosition, candidate);
+            } else if (result.size() < maxPrefixes) {
+                result.add(candidate);
+            }
+        }
         return result;
     }
 
@@ -252,296 +376,371 @@ public class SmartDialPrefix {
     }
 
     /**
-     * Parses a phone number to find out whether it has country code and NANP area code.
+     * Computes the suffixes of a phone number that a query found anywhere inside the number is a
+     * prefix of. The full number is left out, since its prefixes are found by
+     * {@link #parseToNumberTokens}, as are suffixes shorter than
+     * {@link #MIN_INFIX_QUERY_LENGTH}. For example, the number 650-555-1234 has the suffixes
+     * 505551234, 05551234, 5551234, 551234, 51234 and 1234.
+     *
+     * @param number String of user's phone number.
+     * @return A list of strings where any prefix of any entry appears inside the phone number.
+     */
+    public static ArrayList<String> generateNumberSuffixes(String number) {
+        final ArrayList<String> result = Lists.newArrayList();
+        if (TextUtils.isEmpty(number)) {
+            return result;
+        }
+        final String normalizedNumber = SmartDialNameMatcher.normalizeNumber(number, mMap);
+        for (int i = 1; i <= normalizedNumber.length() - MIN_INFIX_QUERY_LENGTH; i++) {
+            result.add(normalizedNumber.substring(i));
+        }
+        return result;
+    }
+
+    /**
+     * Parses a phone number to find out whether it has country code and NANP area code. The
+     * result of recently parsed numbers is cached, so that matching a number again on the next
+     * key press does not allocate.
      *
      * @param number Raw phone number.
      * @return a PhoneNumberToken instance with country code, NANP code information.
      */
     public static PhoneNumberTokens parsePhoneNumber(String number) {
-        String countryCode = "";
-        int countryCodeOffset = 0;
-        int nanpNumberOffset = 0;
+        if (TextUtils.isEmpty(number)) {
+            return new PhoneNumberTokens(number, sUserInNanpRegion, 0, 0);
+        }
+        final boolean userInNanpRegion = sUserInNanpRegion;
+        final int slot = number.hashCode() & (PARSED_NUMBER_CACHE_SIZE - 1);
+        final PhoneNumberTokens cached = sParsedNumbers[slot];
+        if (cached != null && cached.userInNanpRegion == userInNanpRegion
+                && number.equals(cached.number)) {
+            return cached;
+        }
+        final PhoneNumberTokens result = tokenizePhoneNumber(number, userInNanpRegion);
+        sParsedNumbers[slot] = result;
+        return result;
+    }
 
-        if (!TextUtils.isEmpty(number)) {
-            String normalizedNumber = SmartDialNameMatcher.normalizeNumber(number, mMap);
-            if (number.charAt(0) == '+') {
-                /** If the number starts with '+', tries to find valid country code. */
-                for (int i = 1; i <= 1 + 3; i++) {
-                    if (number.length() <= i) {
-                        break;
-                    }
-                    countryCode = number.substring(1, i);
-                    if (isValidCountryCode(countryCode)) {
-                        countryCodeOffset = i;
-                        break;
-                    }
+    /**
+     * Finds the country code and NANP area code of a phone number in a single pass over its
+     * characters, working on offsets only.
+     */
+    @VisibleForTesting
+    static PhoneNumberTokens tokenizePhoneNumber(String number, boolean userInNanpRegion) {
+        final int length = number.length();
+
+        /** Counts the digits and records where the first four of them are in the number. */
+        int digitCount = 0;
+        int firstDigit = -1;
+        int secondDigit = -1;
+        int digitOffset0 = -1;
+        int digitOffset1 = -1;
+        int digitOffset2 = -1;
+        int digitOffset3 = -1;
+        for (int i = 0; i < length; i++) {
+            final char ch = number.charAt(i);
+            if (!mMap.isValidDialpadNumericChar(ch)) {
+                continue;
+            }
+            switch (digitCount) {
+                case 0:
+                    firstDigit = ch;
+                    digitOffset0 = i;
+                    break;
+                case 1:
+                    secondDigit = ch;
+                    digitOffset1 = i;
+                    break;
+                case 2:
+                    digitOffset2 = i;
+                    break;
+                case 3:
+                    digitOffset3 = i;
+                    break;
+            }
+            digitCount++;
+        }
+
+        int countryCodeOffset = 0;
+        boolean hasCountryCodeOne = false;
+        /** Whether the number has no country code, as far as the NANP format is concerned. */
+        boolean hasNoCountryCode = true;
+        if (number.charAt(0) == '+') {
+            /** If the number starts with '+', tries to find valid country code. The code must
+             * be followed by at least one more character.
+             */
+            final boolean[] countryCodes = getCountryCodes();
+            int countryCode = 0;
+            for (int i = 1; i <= MAX_COUNTRY_CODE_LENGTH && i + 1 < length; i++) {
+                final char ch = number.charAt(i);
+                if (ch < '0' || ch > '9' || (i == 1 && ch == '0')) {
+                    break;
                 }
-            } else {
-                /** If the number does not start with '+', finds out whether it is in NANP
-                 * format and has '1' preceding the number.
-                 */
-                if ((normalizedNumber.length() == 11) && (normalizedNumber.charAt(0) == '1') &&
-                        (sUserInNanpRegion)) {
-                    countryCode = "1";
-                    countryCodeOffset = number.indexOf(normalizedNumber.charAt(1));
-                    if (countryCodeOffset == -1) {
-                        countryCodeOffset = 0;
-                    }
+                countryCode = countryCode * 10 + (ch - '0');
+                if (countryCodes[countryCode]) {
+                    countryCodeOffset = i + 1;
+                    hasCountryCodeOne = countryCode == 1;
+                    break;
                 }
             }
+            hasNoCountryCode = length <= 2;
+        } else if (digitCount == 11 && firstDigit == '1' && userInNanpRegion) {
+            /** If the number does not start with '+', finds out whether it is in NANP format and
+             * has '1' preceding the number. An area code can not start with 1, so a second 1 is
+             * not split off from the first one.
+             */
+            hasCountryCodeOne = true;
+            hasNoCountryCode = false;
+            countryCodeOffset = secondDigit == '1' ? digitOffset0 : digitOffset1;
+        }
 
-            /** If user is in NANP region, finds out whether a number is in NANP format.*/
-            if (sUserInNanpRegion)  {
-                String areaCode = "";
-                if (countryCode.equals("") && normalizedNumber.length() == 10){
-                    /** if the number has no country code but fits the NANP format, extracts the
-                     * NANP area code, and finds out offset of the local number.
-                     */
-                    areaCode = normalizedNumber.substring(0, 3);
-                } else if (countryCode.equals("1") && normalizedNumber.length() == 11) {
-                    /** If the number has country code '1', finds out area code and offset of the
-                     * local number.
-                     */
-                    areaCode = normalizedNumber.substring(1, 4);
+        /** If user is in NANP region, finds out whether a number is in NANP format. The area code
+         * is only split off if its digits are not separated from each other.
+         */
+        int nanpNumberOffset = 0;
+        if (userInNanpRegion) {
+            if (hasNoCountryCode && digitCount == 10) {
+                /** If the number has no country code but fits the NANP format, the area code is
+                 * made of the first three digits.
+                 */
+                if (digitOffset2 - digitOffset0 == 2) {
+                    nanpNumberOffset = digitOffset0 + 3;
                 }
-                if (!areaCode.equals("")) {
-                    final int areaCodeIndex = number.indexOf(areaCode);
-                    if (areaCodeIndex != -1) {
-                        nanpNumberOffset = number.indexOf(areaCode) + 3;
-                    }
+            } else if (hasCountryCodeOne && digitCount == 11) {
+                /** If the number has country code '1', the area code follows it. */
+                if (digitOffset3 - digitOffset1 == 2) {
+                    nanpNumberOffset = digitOffset1 + 3;
                 }
             }
         }
-        return new PhoneNumberTokens(countryCode, countryCodeOffset, nanpNumberOffset);
+        return new PhoneNumberTokens(number, userInNanpRegion, countryCodeOffset,
+                nanpNumberOffset);
     }
 
-    /**
-     * Checkes whether a country code is valid.
-     */
-    private static boolean isValidCountryCode(String countryCode) {
+    private static boolean[] getCountryCodes() {
         if (sCountryCodes == null) {
             sCountryCodes = initCountryCodes();
         }
-        return sCountryCodes.contains(countryCode);
+        return sCountryCodes;
     }
 
-    private static Set<String> initCountryCodes() {
-        final HashSet<String> result = new HashSet<String>();
-        result.add("1");
-        result.add("7");
-        result.add("20");
-        result.add("27");
-        result.add("30");
-        result.add("31");
-        result.add("32");
-        result.add("33");
-        result.add("34");
-        result.add("36");
-        result.add("39");
-        result.add("40");
-        result.add("41");
-        result.add("43");
-        result.add("44");
-        result.add("45");
-        result.add("46");
-        result.add("47");
-        result.add("48");
-        result.add("49");
-        result.add("51");
-        result.add("52");
-        result.add("53");
-        result.add("54");
-        result.add("55");
-        result.add("56");
-        result.add("57");
-        result.add("58");
-        result.add("60");
-        result.add("61");
-        result.add("62");
-        result.add("63");
-        result.add("64");
-        result.add("65");
-        result.add("66");
-        result.add("81");
-        result.add("82");
-        result.add("84");
-        result.add("86");
-        result.add("90");
-        result.add("91");
-        result.add("92");
-        result.add("93");
-        result.add("94");
-        result.add("95");
-        result.add("98");
-        result.add("211");
-        result.add("212");
-        result.add("213");
-        result.add("216");
-        result.add("218");
-        result.add("220");
-        result.add("221");
-        result.add("222");
-        result.add("223");
-        result.add("224");
-        result.add("225");
-        result.add("226");
-        result.add("227");
-        result.add("228");
-        result.add("229");
-        result.add("230");
-        result.add("231");
-        result.add("232");
-        result.add("233");
-        result.add("234");
-        result.add("235");
-        result.add("236");
-        result.add("237");
-        result.add("238");
-        result.add("239");
-        result.add("240");
-        result.add("241");
-        result.add("242");
-        result.add("243");
-        result.add("244");
-        result.add("245");
-        result.add("246");
-        result.add("247");
-        result.add("248");
-        result.add("249");
-        result.add("250");
-        result.add("251");
-        result.add("252");
-        result.add("253");
-        result.add("254");
-        result.add("255");
-        result.add("256");
-        result.add("257");
-        result.add("258");
-        result.add("260");
-        result.add("261");
-        result.add("262");
-        result.add("263");
-        result.add("264");
-        result.add("265");
-        result.add("266");
-        result.add("267");
-        result.add("268");
-        result.add("269");
-        result.add("290");
-        result.add("291");
-        result.add("297");
-        result.add("298");
-        result.add("299");
-        result.add("350");
-        result.add("351");
-        result.add("352");
-        result.add("353");
-        result.add("354");
-        result.add("355");
-        result.add("356");
-        result.add("357");
-        result.add("358");
-        result.add("359");
-        result.add("370");
-        result.add("371");
-        result.add("372");
-        result.add("373");
-        result.add("374");
-        result.add("375");
-        result.add("376");
-        result.add("377");
-        result.add("378");
-        result.add("379");
-        result.add("380");
-        result.add("381");
-        result.add("382");
-        result.add("385");
-        result.add("386");
-        result.add("387");
-        result.add("389");
-        result.add("420");
-        result.add("421");
-        result.add("423");
-        result.add("500");
-        result.add("501");
-        result.add("502");
-        result.add("503");
-        result.add("504");
-        result.add("505");
-        result.add("506");
-        result.add("507");
-        result.add("508");
-        result.add("509");
-        result.add("590");
-        result.add("591");
-        result.add("592");
-        result.add("593");
-        result.add("594");
-        result.add("595");
-        result.add("596");
-        result.add("597");
-        result.add("598");
-        result.add("599");
-        result.add("670");
-        result.add("672");
-        result.add("673");
-        result.add("674");
-        result.add("675");
-        result.add("676");
-        result.add("677");
-        result.add("678");
-        result.add("679");
-        result.add("680");
-        result.add("681");
-        result.add("682");
-        result.add("683");
-        result.add("685");
-        result.add("686");
-        result.add("687");
-        result.add("688");
-        result.add("689");
-        result.add("690");
-        result.add("691");
-        result.add("692");
-        result.add("800");
-        result.add("808");
-        result.add("850");
-        result.add("852");
-        result.add("853");
-        result.add("855");
-        result.add("856");
-        result.add("870");
-        result.add("878");
-        result.add("880");
-        result.add("881");
-        result.add("882");
-        result.add("883");
-        result.add("886");
-        result.add("888");
-        result.add("960");
-        result.add("961");
-        result.add("962");
-        result.add("963");
-        result.add("964");
-        result.add("965");
-        result.add("966");
-        result.add("967");
-        result.add("968");
-        result.add("970");
-        result.add("971");
-        result.add("972");
-        result.add("973");
-        result.add("974");
-        result.add("975");
-        result.add("976");
-        result.add("977");
-        result.add("979");
-        result.add("992");
-        result.add("993");
-        result.add("994");
-        result.add("995");
-        result.add("996");
-        result.add("998");
+    private static boolean[] initCountryCodes() {
+        final boolean[] result = new boolean[1000];
+        result[1] = true;
+        result[7] = true;
+        result[20] = true;
+        result[27] = true;
+        result[30] = true;
+        result[31] = true;
+        result[32] = true;
+        result[33] = true;
+        result[34] = true;
+        result[36] = true;
+        result[39] = true;
+        result[40] = true;
+        result[41] = true;
+        result[43] = true;
+        result[44] = true;
+        result[45] = true;
+        result[46] = true;
+        result[47] = true;
+        result[48] = true;
+        result[49] = true;
+        result[51] = true;
+        result[52] = true;
+        result[53] = true;
+        result[54] = true;
+        result[55] = true;
+        result[56] = true;
+        result[57] = true;
+        result[58] = true;
+        result[60] = true;
+        result[61] = true;
+        result[62] = true;
+        result[63] = true;
+        result[64] = true;
+        result[65] = true;
+        result[66] = true;
+        result[81] = true;
+        result[82] = true;
+        result[84] = true;
+        result[86] = true;
+        result[90] = true;
+        result[91] = true;
+        result[92] = true;
+        result[93] = true;
+        result[94] = true;
+        result[95] = true;
+        result[98] = true;
+        result[211] = true;
+        result[212] = true;
+        result[213] = true;
+        result[216] = true;
+        result[218] = true;
+        result[220] = true;
+        result[221] = true;
+        result[222] = true;
+        result[223] = true;
+        result[224] = true;
+        result[225] = true;
+        result[226] = true;
+        result[227] = true;
+        result[228] = true;
+        result[229] = true;
+        result[230] = true;
+        result[231] = true;
+        result[232] = true;
+        result[233] = true;
+        result[234] = true;
+        result[235] = true;
+        result[236] = true;
+        result[237] = true;
+        result[238] = true;
+        result[239] = true;
+        result[240] = true;
+        result[241] = true;
+        result[242] = true;
+        result[243] = true;
+        result[244] = true;
+        result[245] = true;
+        result[246] = true;
+        result[247] = true;
+        result[248] = true;
+        result[249] = true;
+        result[250] = true;
+        result[251] = true;
+        result[252] = true;
+        result[253] = true;
+        result[254] = true;
+        result[255] = true;
+        result[256] = true;
+        result[257] = true;
+        result[258] = true;
+        result[260] = true;
+        result[261] = true;
+        result[262] = true;
+        result[263] = true;
+        result[264] = true;
+        result[265] = true;
+        result[266] = true;
+        result[267] = true;
+        result[268] = true;
+        result[269] = true;
+        result[290] = true;
+        result[291] = true;
+        result[297] = true;
+        result[298] = true;
+        result[299] = true;
+        result[350] = true;
+        result[351] = true;
+        result[352] = true;
+        result[353] = true;
+        result[354] = true;
+        result[355] = true;
+        result[356] = true;
+        result[357] = true;
+        result[358] = true;
+        result[359] = true;
+        result[370] = true;
+        result[371] = true;
+        result[372] = true;
+        result[373] = true;
+        result[374] = true;
+        result[375] = true;
+        result[376] = true;
+        result[377] = true;
+        result[378] = true;
+        result[379] = true;
+        result[380] = true;
+        result[381] = true;
+        result[382] = true;
+        result[385] = true;
+        result[386] = true;
+        result[387] = true;
+        result[389] = true;
+        result[420] = true;
+        result[421] = true;
+        result[423] = true;
+        result[500] = true;
+        result[501] = true;
+        result[502] = true;
+        result[503] = true;
+        result[504] = true;
+        result[505] = true;
+        result[506] = true;
+        result[507] = true;
+        result[508] = true;
+        result[509] = true;
+        result[590] = true;
+        result[591] = true;
+        result[592] = true;
+        result[593] = true;
+        result[594] = true;
+        result[595] = true;
+        result[596] = true;
+        result[597] = true;
+        result[598] = true;
+        result[599] = true;
+        result[670] = true;
+        result[672] = true;
+        result[673] = true;
+        result[674] = true;
+        result[675] = true;
+        result[676] = true;
+        result[677] = true;
+        result[678] = true;
+        result[679] = true;
+        result[680] = true;
+        result[681] = true;
+        result[682] = true;
+        result[683] = true;
+        result[685] = true;
+        result[686] = true;
+        result[687] = true;
+        result[688] = true;
+        result[689] = true;
+        result[690] = true;
+        result[691] = true;
+        result[692] = true;
+        result[800] = true;
+        result[808] = true;
+        result[850] = true;
+        result[852] = true;
+        result[853] = true;
+        result[855] = true;
+        result[856] = true;
+        result[870] = true;
+        result[878] = true;
+        result[880] = true;
+        result[881] = true;
+        result[882] = true;
+        result[883] = true;
+        result[886] = true;
+        result[888] = true;
+        result[960] = true;
+        result[961] = true;
+        result[962] = true;
+        result[963] = true;
+        result[964] = true;
+        result[965] = true;
+        result[966] = true;
+        result[967] = true;
+        result[968] = true;
+        result[970] = true;
+        result[971] = true;
+        result[972] = true;
+        result[973] = true;
+        result[974] = true;
+        result[975] = true;
+        result[976] = true;
+        result[977] = true;
+        result[979] = true;
+        result[992] = true;
+        result[993] = true;
+        result[994] = true;
+        result[995] = true;
+        result[996] = true;
+        result[998] = true;
         return result;
     }
 
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Schedules the smart dial queries of consecutive {@link SmartDialCursorLoader}s, which are
+ * created for every key press on the dialpad.
+ *
+ * A query only starts after a short coalescing window, so that keys pressed in quick succession
+ * result in a single query for the last of them. The window adapts to the typing speed: it is
+ * only used while keys are pressed faster than {@link #MAX_COALESCE_WINDOW_MS}, so a single key
+ * press is answered right away. When the query changes, the running query is canceled and
+ * queries still waiting for their turn are dropped, so at most one query runs at any time and
+ * it is always the newest one.
+ */
+public class SmartDialQueryScheduler {
+    /** Longest time a query waits for further key presses. */
+    @VisibleForTesting
+    static final long MAX_COALESCE_WINDOW_MS = 150;
+
+    /** Key presses further apart than this start a new burst of typing. */
+    private static final long IDLE_INTERVAL_MS = 1000;
+
+    /** The coalescing window is slightly longer than the average interval between keys. */
+    private static final int WINDOW_PERCENT_OF_INTERVAL = 125;
+
+    /** Weight of the latest interval in the average interval between keys, as a fraction. */
+    private static final int INTERVAL_AVERAGE_DIVISOR = 4;
+
+    private int mGeneration;
+    private long mQueryTimeMillis = -1;
+    private long mAverageIntervalMillis;
+    private long mWindowMillis;
+
+    private boolean mRunning;
+    private CancellationSignal mRunningSignal;
+
+    /**
+     * Records a change of the query, canceling the running query. Must be called when the new
+     * query is configured, before it is loaded.
+     *
+     * @return The generation of the new query, passed to {@link #acquire}.
+     */
+    public int onQueryChanged() {
+        return onQueryChanged(SystemClock.uptimeMillis());
+    }
+
+    @VisibleForTesting
+    synchronized int onQueryChanged(long nowMillis) {
+        final long interval =
+                mQueryTimeMillis < 0 ? IDLE_INTERVAL_MS : nowMillis - mQueryTimeMillis;
+        if (interval >= IDLE_INTERVAL_MS) {
+            mAverageIntervalMillis = 0;
+            mWindowMillis = 0;
+        } else {
+            mAverageIntervalMillis = mAverageIntervalMillis == 0 ? interval :
+                    mAverageIntervalMillis +
+                    (interval - mAverageIntervalMillis) / INTERVAL_AVERAGE_DIVISOR;
+            final long window = mAverageIntervalMillis * WINDOW_PERCENT_OF_INTERVAL / 100;
+            mWindowMillis = window <= MAX_COALESCE_WINDOW_MS ? window : 0;
+        }
+        mQueryTimeMillis = nowMillis;
+        mGeneration++;
+
+        if (mRunningSignal != null) {
+            mRunningSignal.cancel();
+        }
+        notifyAll();
+        return mGeneration;
+    }
+
+    /**
+     * Returns the time a query configured now waits for further key presses.
+     */
+    @VisibleForTesting
+    synchronized long getCoalesceWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /**
+     * Blocks until the query of the given generation may run, that is once its coalescing window
+     * has passed and the previous query has finished. Every successful call must be followed by
+     * a call to {@link #release}.
+     *
+     * @param generation Generation returned by {@link #onQueryChanged} for the query.
+     * @param cancellationSignal Signal of the load, canceled by the scheduler once the query is
+     * superseded while it runs.
+     * @throws OperationCanceledException If the query was superseded or the load was canceled.
+     */
+    public void acquire(int generation, CancellationSignal cancellationSignal) {
+        cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                synchronized (SmartDialQueryScheduler.this) {
+                    SmartDialQueryScheduler.this.notifyAll();
+                }
+            }
+        });
+        try {
+            synchronized (this) {
+                while (true) {
+                    cancellationSignal.throwIfCanceled();
+                    if (generation != mGeneration) {
+                        throw new OperationCanceledException();
+                    }
+                    final long remainingMillis =
+                            mQueryTimeMillis + mWindowMillis - SystemClock.uptimeMillis();
+                    if (remainingMillis > 0) {
+                        wait(remainingMillis);
+                    } else if (mRunning) {
+                        wait();
+                    } else {
+                        break;
+                    }
+                }
+                mRunning = true;
+                mRunningSignal = cancellationSignal;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } finally {
+            /** The database attaches its own listener to the signal while querying. */
+            cancellationSignal.setOnCancelListener(null);
+        }
+    }
+
+    /**
+     * Lets the next query run, after the query that acquired the scheduler has finished.
+     */
+    public synchronized void release() {
+        mRunning = false;
+        mRunningSignal = null;
+        notifyAll();
+    }
+}
@@ -26,12 +26,13 @@ import android.util.Log;
 
 import com.android.contacts.common.CallUtil;
 import com.android.contacts.common.list.ContactListItemView;
+import com.android.dialer.database.DialerDatabaseHelper.SmartDialCandidates;
 import com.android.dialer.dialpad.SmartDialCursorLoader;
+import com.android.dialer.dialpad.SmartDialCursorLoader.SmartDialMatchCursor;
+import com.android.dialer.dialpad.SmartDialMatchRanges;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
-import com.android.dialer.dialpad.SmartDialMatchPosition;
-
-import java.util.ArrayList;
+import com.android.dialer.dialpad.SmartDialQueryScheduler;
 
 /**
  * List adapter to display the SmartDial search results.
@@ -43,9 +44,16 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
 
     private SmartDialNameMatcher mNameMatcher;
 
+    /** Candidates kept across the loaders of consecutive queries. */
+    private final SmartDialCandidates mCandidates = new SmartDialCandidates();
+
+    /** Coalesces and cancels the queries of consecutive loaders. */
+    private final SmartDialQueryScheduler mQueryScheduler = new SmartDialQueryScheduler();
+
     public SmartDialNumberListAdapter(Context context) {
         super(context);
         mNameMatcher = new SmartDialNameMatcher("", SmartDialPrefix.getMap());
+        mNameMatcher.setNumberInfixMatching(true);
         setShortcutEnabled(SmartDialNumberListAdapter.SHORTCUT_DIRECT_CALL, false);
 
         if (DEBUG) {
@@ -61,6 +69,9 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
             Log.v(TAG, "Configure Loader with query" + getQueryString());
         }
 
+        loader.configureCandidates(mCandidates);
+        loader.configureScheduler(mQueryScheduler);
+
         if (getQueryString() == null) {
             loader.configureQuery("");
             mNameMatcher.setQuery("");
@@ -79,21 +90,42 @@ public class SmartDialNumberListAdapter extends DialerPhoneNumberListAdapter {
     protected void setHighlight(ContactListItemView view, Cursor cursor) {
         view.clearHighlightSequences();
 
+        /** Applies the ranges recorded by the loader when the row was accepted. */
+        if (cursor instanceof SmartDialMatchCursor) {
+            final SmartDialMatchRanges matchRanges =
+                    ((SmartDialMatchCursor) cursor).getMatchRanges();
+            final int row = cursor.getPosition();
+            if (row >= 0 && row < matchRanges.getRowCount()) {
+                final int nameRangeCount = matchRanges.getNameRangeCount(row);
+                for (int i = 0; i < nameRangeCount; i++) {
+                    view.addNameHighlightSequence(matchRanges.getNameRangeStart(row, i),
+                            matchRanges.getNameRangeEnd(row, i));
+                }
+                if (matchRanges.hasNumberRange(row)) {
+                    view.addNumberHighlightSequence(matchRanges.getNumberRangeStart(row),
+                            matchRanges.getNumberRangeEnd(row));
+                }
+                return;
+            }
+        }
+
         if (mNameMatcher.matches(cursor.getString(PhoneQuery.DISPLAY_NAME))) {
-            final ArrayList<SmartDialMatchPosition> nameMatches = mNameMatcher.getMatchPositions();
-            for (SmartDialMatchPosition match:nameMatches) {
-                view.addNameHighlightSequence(match.start, match.end);
+            final int matchCount = mNameMatcher.getMatchPositionCount();
+            for (int i = 0; i < matchCount; i++) {
+                view.addNameHighlightSequence(mNameMatcher.getMatchStart(i),
+                        mNameMatcher.getMatchEnd(i));
                 if (DEBUG) {
                     Log.v(TAG, cursor.getString(PhoneQuery.DISPLAY_NAME) + " " +
-                            mNameMatcher.getQuery() + " " + String.valueOf(match.start));
+                            mNameMatcher.getQuery() + " " +
+                            String.valueOf(mNameMatcher.getMatchStart(i)));
                 }
             }
         }
 
-        final SmartDialMatchPosition numberMatch = mNameMatcher.matchesNumber(cursor.getString(
-                PhoneQuery.PHONE_NUMBER));
-        if (numberMatch != null) {
-            view.addNumberHighlightSequence(numberMatch.start, numberMatch.end);
+        if (mNameMatcher.isNumberMatch(cursor.getString(PhoneQuery.PHONE_NUMBER),
+                mNameMatcher.getQuery())) {
+            view.addNumberHighlightSequence(mNameMatcher.getNumberMatchStart(),
+                    mNameMatcher.getNumberMatchEnd());
         }
     }
 
@@ -154,6 +154,110 @@ public class CallLogGroupBuilderTest extends AndroidTestCase {
         assertGroupIs(8, 3, false, mFakeGroupCreator.groups.get(1));
     }
 
+    public void testAddGroups_NewCallsAtTop() {
+        final CountingGroupBuilder builder = new CountingGroupBuilder(mFakeGroupCreator);
+        addCallLogEntry(10, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(11, TEST_NUMBER1, Calls.OUTGOING_TYPE);
+        addCallLogEntry(12, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        addCallLogEntry(13, TEST_NUMBER2, Calls.MISSED_TYPE);
+        builder.addGroups(mCursor);
+        assertEquals(3, builder.comparisons);
+
+        createCursor();
+        clearFakeGroupCreator();
+        builder.comparisons = 0;
+        addCallLogEntry(20, TEST_NUMBER1, Calls.MISSED_TYPE);
+        addCallLogEntry(10, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(11, TEST_NUMBER1, Calls.OUTGOING_TYPE);
+        addCallLogEntry(12, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        addCallLogEntry(13, TEST_NUMBER2, Calls.MISSED_TYPE);
+        builder.addGroups(mCursor);
+        assertEquals(2, mFakeGroupCreator.groups.size());
+        assertGroupIs(0, 3, false, mFakeGroupCreator.groups.get(0));
+        assertGroupIs(3, 2, false, mFakeGroupCreator.groups.get(1));
+        // The calls after the new one are only compared until a group starts where it used to.
+        assertEquals(3, builder.comparisons);
+    }
+
+    public void testAddGroups_DeletedCall() {
+        final CountingGroupBuilder builder = new CountingGroupBuilder(mFakeGroupCreator);
+        addCallLogEntry(10, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(11, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        addCallLogEntry(12, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(13, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(14, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        addCallLogEntry(15, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        builder.addGroups(mCursor);
+        assertEquals(2, mFakeGroupCreator.groups.size());
+
+        createCursor();
+        clearFakeGroupCreator();
+        builder.comparisons = 0;
+        addCallLogEntry(10, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(12, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(13, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(14, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        addCallLogEntry(15, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        builder.addGroups(mCursor);
+        assertEquals(2, mFakeGroupCreator.groups.size());
+        assertGroupIs(0, 3, false, mFakeGroupCreator.groups.get(0));
+        assertGroupIs(3, 2, false, mFakeGroupCreator.groups.get(1));
+        assertEquals(3, builder.comparisons);
+    }
+
+    public void testAddGroups_NewPage() {
+        final CountingGroupBuilder builder = new CountingGroupBuilder(mFakeGroupCreator);
+        addCallLogEntry(10, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(11, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(12, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        builder.addGroups(mCursor);
+
+        clearFakeGroupCreator();
+        builder.comparisons = 0;
+        addCallLogEntry(13, TEST_NUMBER2, Calls.OUTGOING_TYPE);
+        addCallLogEntry(14, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        builder.addGroups(mCursor);
+        assertEquals(2, mFakeGroupCreator.groups.size());
+        assertGroupIs(0, 2, false, mFakeGroupCreator.groups.get(0));
+        assertGroupIs(2, 2, false, mFakeGroupCreator.groups.get(1));
+        assertEquals(2, builder.comparisons);
+    }
+
+    public void testAddPageGroups() {
+        final CountingGroupBuilder builder = new CountingGroupBuilder(mFakeGroupCreator);
+        addCallLogEntry(10, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(11, TEST_NUMBER2, Calls.INCOMING_TYPE);
+        builder.addGroups(mCursor);
+
+        // Only the calls of the page are in the cursor.
+        createCursor();
+        clearFakeGroupCreator();
+        builder.comparisons = 0;
+        addCallLogEntry(12, TEST_NUMBER2, Calls.OUTGOING_TYPE);
+        addCallLogEntry(13, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(14, TEST_NUMBER1, Calls.MISSED_TYPE);
+        builder.addPageGroups(mCursor);
+        assertEquals(2, mFakeGroupCreator.groups.size());
+        assertGroupIs(1, 2, false, mFakeGroupCreator.groups.get(0));
+        assertGroupIs(3, 2, false, mFakeGroupCreator.groups.get(1));
+        assertEquals(3, builder.comparisons);
+    }
+
+    public void testAddGroups_ChangedCall() {
+        final CountingGroupBuilder builder = new CountingGroupBuilder(mFakeGroupCreator);
+        addCallLogEntry(10, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        addCallLogEntry(11, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        builder.addGroups(mCursor);
+        assertEquals(1, mFakeGroupCreator.groups.size());
+
+        createCursor();
+        clearFakeGroupCreator();
+        addCallLogEntry(10, TEST_NUMBER1, Calls.VOICEMAIL_TYPE);
+        addCallLogEntry(11, TEST_NUMBER1, Calls.INCOMING_TYPE);
+        builder.addGroups(mCursor);
+        assertEquals(0, mFakeGroupCreator.groups.size());
+    }
+
     public void testEqualPhoneNumbers() {
         // Identical.
         assertTrue(mBuilder.equalNumbers("6505555555", "6505555555"));
@@ -192,6 +296,42 @@ public class CallLogGroupBuilderTest extends AndroidTestCase {
         assertFalse(mBuilder.equalNumbers("6505555555@host.com", null));
     }
 
+    public void testEqualNumbers_SameAsComparison() {
+        final String[] numbers = {
+                null, "", "6505555555", "650 555 5555", "(650) 555-5555", "+16505555555",
+                "16505555555", "0016505555555", "011 1 650 555 5555", "06505555555", "6505555551",
+                "5555555", "555-5555", "555555", "55555", "555 55", "(55555", "55555,1", "55555;1",
+                "1234567,89", "6505555555,123", "6505555555;123", "650555555N", "6505N55555",
+                "*86", "#31#6505555555", "+44 20 7946 0958", "020 7946 0958", "abc", "xyz",
+                "6505555555@host.com", "6505555555@HOST.COM", "user@host.com", "USER@host.com",
+                "user@Host.Com", "user%40host.com", "user@host.com;transport=tcp",
+                "user@stra\u00dfe.de", "user@STRASSE.DE", "user@\u0130stanbul.tr",
+                "user@istanbul.tr"
+        };
+        for (String number1 : numbers) {
+            for (String number2 : numbers) {
+                assertEquals(number1 + " vs " + number2,
+                        mBuilder.compareNumbers(number1, number2),
+                        mBuilder.equalNumbers(number1, number2));
+            }
+        }
+    }
+
+    public void testGetNumberKey() {
+        assertNull(CallLogGroupBuilder.getNumberKey(null));
+        assertNull(CallLogGroupBuilder.getNumberKey(""));
+        // Phone numbers keep the dialable characters before any pause or wait.
+        assertEquals("P+16505555555", CallLogGroupBuilder.getNumberKey("+1 (650) 555-5555"));
+        assertEquals("P6505555555", CallLogGroupBuilder.getNumberKey("650-555-5555,123"));
+        assertEquals("Q55555", CallLogGroupBuilder.getNumberKey("555 55"));
+        // Numbers which can only be compared from scratch.
+        assertNull(CallLogGroupBuilder.getNumberKey("650555555N"));
+        assertNull(CallLogGroupBuilder.getNumberKey("55555,1"));
+        // SIP addresses fold the case of the host only.
+        assertEquals("SUser@host.com", CallLogGroupBuilder.getNumberKey("User@HOST.com"));
+        assertEquals("Suser%40host.com", CallLogGroupBuilder.getNumberKey("user%40host.com"));
+    }
+
     public void testCompareSipAddresses() {
         // Identical.
         assertTrue(mBuilder.compareSipAddresses("6505555555@host.com", "6505555555@host.com"));
@@ -250,8 +390,13 @@ public class CallLogGroupBuilderTest extends AndroidTestCase {
     /** Adds a call log entry with the given number and type to the cursor. */
     private void addCallLogEntry(String number, int type) {
         mCursor.moveToNext();
+        addCallLogEntry(mCursor.getPosition(), number, type);
+    }
+
+    /** Adds a call log entry with the given id, number and type to the cursor. */
+    private void addCallLogEntry(long id, String number, int type) {
         Object[] values = CallLogQueryTestUtils.createTestValues();
-        values[CallLogQuery.ID] = mCursor.getPosition();
+        values[CallLogQuery.ID] = id;
         values[CallLogQuery.NUMBER] = number;
         values[CallLogQuery.CALL_TYPE] = type;
         mCursor.addRow(values);
@@ -288,6 +433,21 @@ public class CallLogGroupBuilderTest extends AndroidTestCase {
         }
     }
 
+    /** Builder counting the number comparisons it makes. */
+    private static class CountingGroupBuilder extends CallLogGroupBuilder {
+        public int comparisons;
+
+        public CountingGroupBuilder(GroupCreator groupCreator) {
+            super(groupCreator);
+        }
+
+        @Override
+        boolean equalNumbers(String number1, String key1, String number2, String key2) {
+            comparisons++;
+            return super.equalNumbers(number1, key1, number2, key2);
+        }
+    }
+
     /** Fake implementation of a GroupCreator which stores the created groups in a member field. */
     private static class FakeGroupCreator implements CallLogGroupBuilder.GroupCreator {
         /** The list of created groups. */
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link CallLogGroups}
+ */
+@SmallTest
+public class CallLogGroupsTest extends TestCase {
+    public void testCollectedGroups() {
+        final CallLogGroups.Collector collector = new CallLogGroups.Collector();
+        collector.clearDayGroups();
+        collector.setDayGroup(10, CallLogGroupBuilder.DAY_GROUP_TODAY);
+        collector.setDayGroup(11, CallLogGroupBuilder.DAY_GROUP_TODAY);
+        collector.setDayGroup(12, CallLogGroupBuilder.DAY_GROUP_YESTERDAY);
+        collector.addGroup(0, 2, false);
+        final CallLogGroups groups = collector.build();
+
+        assertEquals(1, groups.getGroupCount());
+        assertEquals(0, groups.getGroupPosition(0));
+        assertEquals(2, groups.getGroupSize(0));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_NONE, groups.getDayGroup(-1));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_TODAY, groups.getDayGroup(1));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_YESTERDAY, groups.getDayGroup(2));
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_NONE, groups.getDayGroup(3));
+    }
+
+    public void testBuildStartsAnew() {
+        final CallLogGroups.Collector collector = new CallLogGroups.Collector();
+        for (int i = 0; i < 100; i++) {
+            collector.setDayGroup(i, CallLogGroupBuilder.DAY_GROUP_OTHER);
+            collector.addGroup(i, 1, false);
+        }
+        assertEquals(100, collector.build().getGroupCount());
+
+        final CallLogGroups groups = collector.build();
+        assertEquals(0, groups.getGroupCount());
+        assertEquals(CallLogGroupBuilder.DAY_GROUP_NONE, groups.getDayGroup(0));
+    }
+}
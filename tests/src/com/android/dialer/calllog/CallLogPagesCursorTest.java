@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Unit tests for {@link CallLogPagesCursor}
+ */
+@SmallTest
+public class CallLogPagesCursorTest extends AndroidTestCase {
+    public void testRowsOfAllPages() {
+        final CallLogPagesCursor first = CallLogPagesCursor.create(createPage(0, 3), null);
+        assertEquals(3, first.getCount());
+
+        final CallLogPagesCursor second = first.extend(createPage(3, 2), null);
+        assertEquals(5, second.getCount());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(second.moveToPosition(i));
+            assertEquals(i, second.getLong(CallLogQuery.ID));
+        }
+        assertFalse(second.moveToPosition(5));
+
+        // The previous cursor still only sees its own pages
+        assertTrue(first.moveToLast());
+        assertEquals(2, first.getLong(CallLogQuery.ID));
+    }
+
+    public void testPagesAreClosedWithNewestCursor() {
+        final MatrixCursor firstPage = createPage(0, 3);
+        final MatrixCursor secondPage = createPage(3, 2);
+        final CallLogPagesCursor first = CallLogPagesCursor.create(firstPage, null);
+        final CallLogPagesCursor second = first.extend(secondPage, null);
+
+        first.close();
+        assertFalse(firstPage.isClosed());
+        assertTrue(second.moveToFirst());
+
+        second.close();
+        assertTrue(firstPage.isClosed());
+        assertTrue(secondPage.isClosed());
+    }
+
+    public void testDiscardLaterPages() {
+        final MatrixCursor firstPage = createPage(0, 3);
+        final MatrixCursor secondPage = createPage(3, 2);
+        final CallLogPagesCursor first = CallLogPagesCursor.create(firstPage, null);
+        first.extend(secondPage, null);
+
+        // The rejected page is closed, while the previous cursor keeps its pages
+        first.discardLaterPages();
+        assertTrue(secondPage.isClosed());
+        assertFalse(firstPage.isClosed());
+        assertTrue(first.moveToLast());
+        assertEquals(2, first.getLong(CallLogQuery.ID));
+
+        // The previous cursor is the newest again
+        final CallLogPagesCursor third = first.extend(createPage(3, 1), null);
+        assertEquals(4, third.getCount());
+        third.close();
+        assertTrue(firstPage.isClosed());
+    }
+
+    public void testOnlyNewestCursorCanBeExtended() {
+        final CallLogPagesCursor first = CallLogPagesCursor.create(createPage(0, 3), null);
+        first.extend(createPage(3, 2), null);
+        try {
+            first.extend(createPage(5, 1), null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /** Creates a page of calls whose ids are consecutive, starting at the given one. */
+    private MatrixCursor createPage(int firstId, int count) {
+        final MatrixCursor page = new MatrixCursor(CallLogQuery._PROJECTION);
+        for (int i = 0; i < count; i++) {
+            final Object[] values = new Object[CallLogQuery._PROJECTION.length];
+            values[CallLogQuery.ID] = firstId + i;
+            page.addRow(values);
+        }
+        return page;
+    }
+}
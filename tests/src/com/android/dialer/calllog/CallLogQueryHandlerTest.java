@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.calllog;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.CallLog.Calls;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the paging of {@link CallLogQueryHandler}. The queries are answered by a fake
+ * call log instead of the call log provider.
+ */
+@MediumTest
+public class CallLogQueryHandlerTest extends AndroidTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final String KEYSET_SELECTION =
+            "(" + Calls.DATE + " < ? OR (" + Calls.DATE + " = ? AND " + Calls._ID + " < ?))";
+
+    /** A query started by the handler. */
+    private static final class Query {
+        final int token;
+        final Object cookie;
+        final Uri uri;
+        final String selection;
+        final String[] selectionArgs;
+        final String orderBy;
+
+        Query(int token, Object cookie, Uri uri, String selection, String[] selectionArgs,
+                String orderBy) {
+            this.token = token;
+            this.cookie = cookie;
+            this.uri = uri;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+            this.orderBy = orderBy;
+        }
+
+        int getLimit() {
+            return Integer.parseInt(uri.getQueryParameter(Calls.LIMIT_PARAM_KEY));
+        }
+
+        boolean isAfterLastCall() {
+            return selection.contains(KEYSET_SELECTION);
+        }
+    }
+
+    /** Records the queries of the handler instead of running them. */
+    private final class TestCallLogQueryHandler extends CallLogQueryHandler {
+        TestCallLogQueryHandler(CallLogQueryHandler.Listener listener) {
+            super(getContext(), getContext().getContentResolver(), listener);
+        }
+
+        @Override
+        public void startQuery(int token, Object cookie, Uri uri, String[] projection,
+                String selection, String[] selectionArgs, String orderBy) {
+            mQueries.add(new Query(token, cookie, uri, selection, selectionArgs, orderBy));
+        }
+
+        void complete(Query query, Cursor cursor) {
+            onNotNullableQueryComplete(query.token, query.cookie, cursor);
+        }
+    }
+
+    /** Records the cursors handed to the listener. */
+    private final class TestListener implements CallLogQueryHandler.Listener {
+        final LinkedBlockingQueue<Cursor> cursors = new LinkedBlockingQueue<Cursor>();
+        volatile boolean takesOwnership = true;
+
+        @Override
+        public void onVoicemailStatusFetched(Cursor statusCursor) {
+        }
+
+        @Override
+        public boolean onCallsFetched(Cursor combinedCursor) {
+            cursors.add(combinedCursor);
+            return takesOwnership;
+        }
+    }
+
+    private final ArrayList<Query> mQueries = Lists.newArrayList();
+
+    /** The cursors returned by the fake call log, in the order of the queries they answer. */
+    private final ArrayList<Cursor> mAnswers = Lists.newArrayList();
+
+    /** The calls of the fake call log, as pairs of id and date. */
+    private final ArrayList<long[]> mCalls = Lists.newArrayList();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private TestListener mListener;
+    private TestCallLogQueryHandler mQueryHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("CallLogQueryHandlerTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mListener = new TestListener();
+        runOnHandlerThread(new Runnable() {
+            @Override
+            public void run() {
+                mQueryHandler = new TestCallLogQueryHandler(mListener);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    public void testFirstPageIsSmall() throws Exception {
+        addCalls(100, 1000);
+        fetchCalls();
+
+        final Query query = getLastQuery();
+        assertEquals(CallLogQueryHandler.FIRST_PAGE_SIZE, query.getLimit());
+        assertFalse(query.isAfterLastCall());
+        assertEquals(Calls.DATE + " DESC, " + Calls._ID + " DESC", query.orderBy);
+        assertEquals(CallLogQueryHandler.FIRST_PAGE_SIZE, completeAndGetCalls(query).getCount());
+    }
+
+    public void testNextPageStartsAfterLastCall() throws Exception {
+        addCalls(100, 1000);
+        fetchCalls();
+        final Cursor firstPage = completeAndGetCalls(getLastQuery());
+        assertTrue(firstPage.moveToLast());
+        final long lastId = firstPage.getLong(CallLogQuery.ID);
+        final long lastDate = firstPage.getLong(CallLogQuery.DATE);
+
+        fetchNextPage();
+        final Query query = getLastQuery();
+        assertEquals(CallLogQueryHandler.PAGE_SIZE, query.getLimit());
+        assertTrue(query.isAfterLastCall());
+        final int argCount = query.selectionArgs.length;
+        assertEquals(Long.toString(lastDate), query.selectionArgs[argCount - 3]);
+        assertEquals(Long.toString(lastDate), query.selectionArgs[argCount - 2]);
+        assertEquals(Long.toString(lastId), query.selectionArgs[argCount - 1]);
+
+        assertCallsInOrder(completeAndGetCalls(query), 100);
+    }
+
+    public void testNoMorePagesAfterShortPage() throws Exception {
+        addCalls(CallLogQueryHandler.FIRST_PAGE_SIZE + 10, 1000);
+        fetchCalls();
+        completeAndGetCalls(getLastQuery());
+
+        fetchNextPage();
+        assertCallsInOrder(completeAndGetCalls(getLastQuery()),
+                CallLogQueryHandler.FIRST_PAGE_SIZE + 10);
+
+        // The last page was not full, so there is nothing left to fetch
+        final int queryCount = mQueries.size();
+        fetchNextPage();
+        assertEquals(queryCount, mQueries.size());
+    }
+
+    public void testNoMorePagesAfterShortFirstPage() throws Exception {
+        addCalls(CallLogQueryHandler.FIRST_PAGE_SIZE - 1, 1000);
+        fetchCalls();
+        completeAndGetCalls(getLastQuery());
+
+        fetchNextPage();
+        assertEquals(1, mQueries.size());
+    }
+
+    public void testEqualDatesAtPageBoundary() throws Exception {
+        // All calls share the same date, so pages are only told apart by their ids
+        addCalls(CallLogQueryHandler.FIRST_PAGE_SIZE + CallLogQueryHandler.PAGE_SIZE + 5, 0);
+        fetchCalls();
+        completeAndGetCalls(getLastQuery());
+
+        fetchNextPage();
+        completeAndGetCalls(getLastQuery());
+        fetchNextPage();
+        assertCallsInOrder(completeAndGetCalls(getLastQuery()), mCalls.size());
+    }
+
+    public void testStalePageIsDropped() throws Exception {
+        addCalls(100, 1000);
+        fetchCalls();
+        completeAndGetCalls(getLastQuery());
+        fetchNextPage();
+        final Query stalePage = getLastQuery();
+
+        // A refresh replaces the fetch of the page
+        fetchCalls();
+        final Query refresh = getLastQuery();
+        final Cursor staleCursor = answer(stalePage);
+        complete(stalePage, staleCursor);
+        assertTrue(staleCursor.isClosed());
+
+        assertEquals(CallLogQueryHandler.FIRST_PAGE_SIZE, completeAndGetCalls(refresh).getCount());
+        assertTrue(mListener.cursors.isEmpty());
+    }
+
+    public void testRefreshReloadsLoadedCalls() throws Exception {
+        addCalls(500, 1000);
+        fetchCalls();
+        completeAndGetCalls(getLastQuery());
+        fetchNextPage();
+        completeAndGetCalls(getLastQuery());
+
+        fetchCalls();
+        final Query refresh = getLastQuery();
+        assertFalse(refresh.isAfterLastCall());
+        final int loadedCount = CallLogQueryHandler.FIRST_PAGE_SIZE + CallLogQueryHandler.PAGE_SIZE;
+        assertEquals(loadedCount, refresh.getLimit());
+        assertCallsInOrder(completeAndGetCalls(refresh), loadedCount);
+
+        // The refreshed calls are followed by the next page
+        fetchNextPage();
+        assertCallsInOrder(completeAndGetCalls(getLastQuery()),
+                loadedCount + CallLogQueryHandler.PAGE_SIZE);
+    }
+
+    public void testRefreshSizeIsCapped() throws Exception {
+        addCalls(1000, 1000);
+        fetchCalls();
+        completeAndGetCalls(getLastQuery());
+        for (int i = 0; i < 3; i++) {
+            fetchNextPage();
+            completeAndGetCalls(getLastQuery());
+        }
+
+        fetchCalls();
+        final Query refresh = getLastQuery();
+        assertEquals(CallLogQueryHandler.MAX_REFRESH_SIZE, refresh.getLimit());
+        assertCallsInOrder(completeAndGetCalls(refresh), CallLogQueryHandler.MAX_REFRESH_SIZE);
+
+        // The calls loaded beyond the cap are fetched again as the list is scrolled
+        fetchNextPage();
+        final Query nextPage = getLastQuery();
+        assertTrue(nextPage.isAfterLastCall());
+        assertCallsInOrder(completeAndGetCalls(nextPage),
+                CallLogQueryHandler.MAX_REFRESH_SIZE + CallLogQueryHandler.PAGE_SIZE);
+    }
+
+    public void testRejectedPageKeepsPreviousCalls() throws Exception {
+        addCalls(100, 1000);
+        fetchCalls();
+        final Cursor firstPage = completeAndGetCalls(getLastQuery());
+
+        mListener.takesOwnership = false;
+        fetchNextPage();
+        final Cursor rejected = completeAndGetCalls(getLastQuery());
+        assertEquals(100, rejected.getCount());
+
+        // Only the rejected page is closed, so the calls still shown can be read
+        assertTrue(mAnswers.get(1).isClosed());
+        assertFalse(mAnswers.get(0).isClosed());
+        assertCallsInOrder(firstPage, CallLogQueryHandler.FIRST_PAGE_SIZE);
+        firstPage.close();
+        assertTrue(mAnswers.get(0).isClosed());
+    }
+
+    /** Adds calls with consecutive ids, the later ones being older unless the step is zero. */
+    private void addCalls(int count, long dateStep) {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            mCalls.add(new long[] {count - i, now - i * dateStep});
+        }
+    }
+
+    /** Answers a query like the call log provider, from the calls of the fake call log. */
+    private Cursor answer(Query query) {
+        final MatrixCursor cursor = new MatrixCursor(CallLogQuery._PROJECTION);
+        final int argCount = query.selectionArgs.length;
+        for (long[] call : mCalls) {
+            if (cursor.getCount() == query.getLimit()) {
+                break;
+            }
+            if (query.isAfterLastCall()) {
+                final long lastDate = Long.parseLong(query.selectionArgs[argCount - 3]);
+                final long lastId = Long.parseLong(query.selectionArgs[argCount - 1]);
+                if (call[1] > lastDate || (call[1] == lastDate && call[0] >= lastId)) {
+                    continue;
+                }
+            }
+            final Object[] values = CallLogQueryTestUtils.createTestValues();
+            values[CallLogQuery.ID] = call[0];
+            values[CallLogQuery.DATE] = call[1];
+            values[CallLogQuery.NUMBER] = Long.toString(5550000 + call[0]);
+            cursor.addRow(values);
+        }
+        mAnswers.add(cursor);
+        return cursor;
+    }
+
+    /**
+     * Asserts that the cursor holds the given number of calls of the fake call log, in the
+     * order of the call log.
+     */
+    private void assertCallsInOrder(Cursor cursor, int count) {
+        assertEquals(count, cursor.getCount());
+        for (int i = 0; i < count; i++) {
+            assertTrue(cursor.moveToPosition(i));
+            assertEquals(mCalls.get(i)[0], cursor.getLong(CallLogQuery.ID));
+        }
+    }
+
+    private Query getLastQuery() {
+        return mQueries.get(mQueries.size() - 1);
+    }
+
+    private void fetchCalls() throws Exception {
+        runOnHandlerThread(new Runnable() {
+            @Override
+            public void run() {
+                mQueryHandler.fetchCalls(CallLogQueryHandler.CALL_TYPE_ALL);
+            }
+        });
+    }
+
+    private void fetchNextPage() throws Exception {
+        runOnHandlerThread(new Runnable() {
+            @Override
+            public void run() {
+                mQueryHandler.fetchNextPage();
+            }
+        });
+    }
+
+    private void complete(final Query query, final Cursor cursor) throws Exception {
+        runOnHandlerThread(new Runnable() {
+            @Override
+            public void run() {
+                mQueryHandler.complete(query, cursor);
+            }
+        });
+    }
+
+    /**
+     * Answers the query from the fake call log, and returns the cursor handed to the listener
+     * once the calls have been grouped.
+     */
+    private Cursor completeAndGetCalls(Query query) throws Exception {
+        complete(query, answer(query));
+        final Cursor cursor = mListener.cursors.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("The listener was not called", cursor);
+        return cursor;
+    }
+
+    /** Runs on the thread of the handler, where its state is accessed, and waits for it. */
+    private void runOnHandlerThread(final Runnable runnable) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
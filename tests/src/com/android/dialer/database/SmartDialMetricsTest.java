@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.database.SmartDialMetrics.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class SmartDialMetricsTest extends TestCase {
+    public void testBucketsAreContiguous() {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            final long lowerBound = LatencyHistogram.getBucketLowerBound(bucket);
+            final long upperBound = LatencyHistogram.getBucketLowerBound(bucket + 1);
+            assertTrue(lowerBound < upperBound);
+            assertEquals(bucket, LatencyHistogram.getBucket(lowerBound));
+            assertEquals(bucket, LatencyHistogram.getBucket(upperBound - 1));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getBucket(Long.MAX_VALUE));
+    }
+
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+
+        for (int micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMaxMicros());
+        assertEquals(500, histogram.getMeanMicros());
+        assertWithinBucket(500, histogram.getPercentileMicros(50));
+        assertWithinBucket(950, histogram.getPercentileMicros(95));
+        assertWithinBucket(990, histogram.getPercentileMicros(99));
+        assertEquals(1000, histogram.getPercentileMicros(100));
+    }
+
+    public void testDump() {
+        final SmartDialMetrics metrics = new SmartDialMetrics();
+        metrics.recordQuery(SmartDialMetrics.PATH_TRIE, 2000000, 40, 20);
+        metrics.recordQuery(SmartDialMetrics.PATH_PRECOMPUTED, 10000, 0, 20);
+        metrics.recordCanceledQuery();
+
+        final SmartDialMetrics.UpdateTimer timer = metrics.startUpdate();
+        timer.lap(SmartDialMetrics.PHASE_QUERY_CONTACTS, 12);
+        timer.lap(SmartDialMetrics.PHASE_TRIE);
+        timer.finish();
+
+        final StringWriter output = new StringWriter();
+        metrics.dump("", new PrintWriter(output, true));
+        final String dump = output.toString();
+        assertTrue(dump, dump.contains("count=2 canceled=1"));
+        assertTrue(dump, dump.contains("precomputed=1 narrowed=0 trie=1"));
+        assertTrue(dump, dump.contains("scanned=40 returned=40"));
+        assertTrue(dump, dump.contains("query contacts: runs=1"));
+        assertTrue(dump, dump.contains("last rows=12"));
+        assertTrue(dump, dump.contains("trie: runs=1"));
+        assertFalse(dump, dump.contains("analyze"));
+    }
+
+    /**
+     * Checks that a reported percentile is at least the exact value, and within the error of a
+     * bucket.
+     */
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue("Expected " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 5 / 4);
+    }
+}
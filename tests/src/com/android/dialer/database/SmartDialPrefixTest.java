@@ -16,8 +16,10 @@
 
 package com.android.dialer.database;
 
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
 import android.test.AndroidTestCase;
@@ -29,6 +31,8 @@ import android.provider.ContactsContract.Data;
 
 import com.android.dialer.database.DialerDatabaseHelper;
 import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+import com.android.dialer.dialpad.SmartDialMatchPosition;
+import com.android.dialer.dialpad.SmartDialMatchRanges;
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
 
@@ -36,6 +40,8 @@ import java.lang.Exception;
 import java.lang.Override;
 import java.lang.String;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
 
 /**
  * To run this test, use the command:
@@ -354,7 +360,9 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         contactCursor.close();
 
         assertTrue(getLooseMatchesFromDb("2222").contains(alphabet));
-        assertEquals(40, mTestHelper.countPrefixTableRows(db));
+        // 24 name prefixes of the first contact, limited by the default cap, 1 of the second,
+        // and 2 dummy numbers
+        assertEquals(27, mTestHelper.countPrefixTableRows(db));
     }
 
     public void testAccentedCharacters() {
@@ -560,6 +568,630 @@ public class SmartDialPrefixTest extends AndroidTestCase {
         assertFalse(getLooseMatchesFromDb("2849170").contains(contactno1));
     }
 
+    public void testTrieMatchesDatabase() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber jasonsmith = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "510-527-2357", 0, "Jason Smith");
+        final ContactNumber martinjuniorharry = constructNewContactWithDummyIds(contactCursor,
+                nameCursor, "+13684976334", 1, "Martin Jr Harry");
+        final ContactNumber sarahsmith = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "77212862357", 2, "Sarah Smith");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final String[] queries = new String[] {"", "5", "76", "654", "510", "3684",
+                "5276676484", "77212862357", "999"};
+        final ArrayList<ArrayList<ContactNumber>> expected =
+                new ArrayList<ArrayList<ContactNumber>>();
+        for (String query : queries) {
+            expected.add(getLooseMatchesFromDb(query));
+        }
+
+        mTestHelper.rebuildSmartDialTrie(db);
+
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(queries[i], expected.get(i), getLooseMatchesFromDb(queries[i]));
+        }
+        assertTrue(getLooseMatchesFromDb("76").contains(jasonsmith));
+        assertTrue(getLooseMatchesFromDb("76").contains(sarahsmith));
+        assertTrue(getLooseMatchesFromDb("654").contains(martinjuniorharry));
+    }
+
+    public void testPrefixesOfManyContacts() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final int contactCount = PrefixInsertPipeline.CHUNK_SIZE * 5 + 7;
+        int expectedRows = 0;
+        for (int i = 0; i < contactCount; i++) {
+            final String number = "650555" + (1000 + i);
+            final String name = "Contact" + i + " Smith";
+            constructNewContactWithDummyIds(contactCursor, nameCursor, number, i, name);
+            expectedRows += SmartDialPrefix.parseToNumberTokens(number).size();
+            expectedRows += SmartDialPrefix.generateNamePrefixes(name).size();
+        }
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        assertEquals(expectedRows, mTestHelper.countPrefixTableRows(db));
+        final ArrayList<ContactNumber> matches = getLooseMatchesFromDb("6505551500");
+        assertEquals(1, matches.size());
+        assertEquals("Contact500 Smith", matches.get(0).displayName);
+    }
+
+    public void testPackedPrefixRanges() {
+        final String[] prefixes = new String[] {"", "0", "00", "000", "1", "10", "100", "5",
+                "50", "500", "5005", "51", "527", "5276", "52766", "599", "6", "9", "99",
+                "99999999999999999", "999999999999999999", "12345678901234567",
+                "123456789012345678", "1234567890123456"};
+        final String[] queries = new String[] {"", "0", "00", "1", "10", "5", "50", "52", "527",
+                "59", "9", "99", "1234567890123456", "12345678901234567", "999999999999999999"};
+        for (String query : queries) {
+            final long lower = DialerDatabaseHelper.getPrefixKeyLowerBound(query);
+            final long upper = DialerDatabaseHelper.getPrefixKeyUpperBound(query);
+            for (String prefix : prefixes) {
+                final long key = DialerDatabaseHelper.packPrefix(prefix);
+                final boolean inRange = key >= lower && key <= upper;
+                if (query.length() <= 17) {
+                    assertEquals(query + " " + prefix, prefix.startsWith(query), inRange);
+                } else if (prefix.startsWith(query)) {
+                    assertTrue(query + " " + prefix, inRange);
+                }
+            }
+        }
+
+        assertEquals(-1, DialerDatabaseHelper.packPrefix("12a"));
+        assertEquals(-1, DialerDatabaseHelper.getPrefixKeyUpperBound("+1"));
+    }
+
+    public void testSnapshotMatchesDatabase() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "510-527-2357", 0,
+                "Jason Smith");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "+13684976334", 1,
+                "Martin Jr Harry");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "77212862357", 2,
+                "Sarah Smith");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        assertEquals(0, getSnapshotMatches("5").size());
+
+        mTestHelper.rebuildSmartDialTrie(db);
+
+        final String[] queries = new String[] {"", "5", "76", "654", "510", "3684",
+                "5276676484", "77212862357", "7721286235799", "999"};
+        for (String query : queries) {
+            assertEquals(query, getLooseMatchesFromDb(query), getSnapshotMatches(query));
+        }
+
+        /** The snapshot keeps answering while the tables are emptied by an update. */
+        final ArrayList<ContactNumber> expected = getSnapshotMatches("76");
+        db.delete(DialerDatabaseHelper.Tables.SMARTDIAL_TABLE, null, null);
+        db.delete(DialerDatabaseHelper.Tables.PREFIX_TABLE, null, null);
+        assertEquals(2, expected.size());
+        assertEquals(expected, getSnapshotMatches("76"));
+    }
+
+    private ArrayList<ContactNumber> getSnapshotMatches(String query) {
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                SmartDialPrefix.getMap());
+        return mTestHelper.getSnapshotMatches(query, nameMatcher);
+    }
+
+    public void testNarrowedMatchesMatchDatabase() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber jasonsmith = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "510-527-2357", 0, "Jason Smith");
+        final ContactNumber jasonsmitt = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "", 1, "Jason Smitt");
+        final ContactNumber james = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "77212862357", 2, "James");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final DialerDatabaseHelper.SmartDialCandidates candidates =
+                new DialerDatabaseHelper.SmartDialCandidates();
+        final String[] queries = new String[] {"5", "52", "527", "5276", "527667648", "5276676488"};
+        for (String query : queries) {
+            final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                    SmartDialPrefix.getMap());
+            assertEquals(query, getLooseMatchesFromDb(query),
+                    mTestHelper.getLooseMatches(query, nameMatcher, candidates));
+        }
+
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher("5276676484",
+                SmartDialPrefix.getMap());
+        final ArrayList<ContactNumber> result =
+                mTestHelper.getLooseMatches("5276676484", nameMatcher, candidates);
+        assertTrue(result.contains(jasonsmith));
+        assertFalse(result.contains(jasonsmitt));
+        assertFalse(result.contains(james));
+    }
+
+    public void testTopContactsAreDeduplicatedAndLimited() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber home = constructNewContact(contactCursor, nameCursor, 0,
+                "510-527-2357", 0, "0", "Jason Smith", 0, 0, 5, 0, 0, 0, 1);
+        final ContactNumber work = constructNewContact(contactCursor, nameCursor, 1,
+                "650-555-1212", 0, "0", "Jason Smith", 0, 0, 1, 0, 0, 0, 0);
+        for (int i = 2; i < DialerDatabaseHelper.MAX_ENTRIES + 7; i++) {
+            constructNewContactWithDummyIds(contactCursor, nameCursor, "415555" + (1000 + i), i,
+                    "Jane" + i);
+        }
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        /** The name matches both rows of the contact, which is returned once by its best row. */
+        final ArrayList<ContactNumber> byName = getLooseMatchesFromDb("527");
+        assertEquals(1, byName.size());
+        assertEquals(home, byName.get(0));
+
+        /** A number prefix only matches the row holding that number. */
+        final ArrayList<ContactNumber> byNumber = getLooseMatchesFromDb("650");
+        assertEquals(1, byNumber.size());
+        assertEquals(work, byNumber.get(0));
+
+        assertEquals(DialerDatabaseHelper.MAX_ENTRIES, getLooseMatchesFromDb("5").size());
+        assertEquals(DialerDatabaseHelper.MAX_ENTRIES, getLooseMatchesFromDb("4155551").size());
+    }
+
+    public void testPrecomputedResultsMatchDatabase() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "510-527-2357", 0,
+                "Jason Smith");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "+13684976334", 1,
+                "Martin Jr Harry");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "77212862357", 2,
+                "Sarah Smith");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.rebuildSmartDialTrie(db);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final String[] queries = new String[] {"5", "7", "0", "52", "76", "99", "527"};
+        final ArrayList<ArrayList<ContactNumber>> expected =
+                new ArrayList<ArrayList<ContactNumber>>();
+        for (String query : queries) {
+            expected.add(getLooseMatchesFromDb(query));
+        }
+
+        mTestHelper.precomputeResults();
+
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(queries[i], expected.get(i), getLooseMatchesFromDb(queries[i]));
+        }
+
+        /** Results computed for a trie that has been replaced are not used. */
+        mTestHelper.removeAllContacts(db);
+        assertEquals(0, getLooseMatchesFromDb("5").size());
+    }
+
+    public void testMatchRangesAreRecorded() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "510-527-2357", 0,
+                "Jason Smith");
+        constructNewContactWithDummyIds(contactCursor, nameCursor, "+1-527-555-1212", 1,
+                "Martin Jr Harry");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher("527",
+                SmartDialPrefix.getMap());
+        final SmartDialMatchRanges matchRanges = new SmartDialMatchRanges();
+        final ArrayList<ContactNumber> result =
+                mTestHelper.getLooseMatches("527", nameMatcher, null, null, matchRanges);
+        assertEquals(2, result.size());
+        assertEquals(2, matchRanges.getRowCount());
+
+        for (int row = 0; row < result.size(); row++) {
+            final ContactNumber contact = result.get(row);
+            final SmartDialNameMatcher expected = new SmartDialNameMatcher("527",
+                    SmartDialPrefix.getMap());
+            if (expected.matches(contact.displayName)) {
+                assertEquals(expected.getMatchPositionCount(),
+                        matchRanges.getNameRangeCount(row));
+                for (int i = 0; i < expected.getMatchPositionCount(); i++) {
+                    assertEquals(expected.getMatchStart(i), matchRanges.getNameRangeStart(row, i));
+                    assertEquals(expected.getMatchEnd(i), matchRanges.getNameRangeEnd(row, i));
+                }
+            } else {
+                assertEquals(0, matchRanges.getNameRangeCount(row));
+            }
+            final SmartDialMatchPosition number = expected.matchesNumber(contact.phoneNumber);
+            assertEquals(number != null, matchRanges.hasNumberRange(row));
+            if (number != null) {
+                assertEquals(number.start, matchRanges.getNumberRangeStart(row));
+                assertEquals(number.end, matchRanges.getNumberRangeEnd(row));
+            }
+        }
+    }
+
+    public void testNamePrefixesAreMaximal() {
+        // "J. R. R. Tolkien": single letter tokens repeat the full token combinations
+        final ArrayList<String> prefixes = SmartDialPrefix.generateNamePrefixes(
+                "J. R. R. Tolkien");
+        assertEquals(6, prefixes.size());
+        for (String prefix : prefixes) {
+            for (String other : prefixes) {
+                assertTrue(prefix + " " + other, prefix == other || !other.startsWith(prefix));
+            }
+        }
+        // 8655436 corresponds to "Tolkien", 58655436 to "(J) Tolkien"
+        assertTrue(prefixes.contains("8655436"));
+        assertTrue(prefixes.contains("58655436"));
+        assertTrue(prefixes.contains("5778655436"));
+    }
+
+    public void testNamePrefixesAreLimited() {
+        final String name = "abc def ghi jkl mno pqrs tuv wxyz";
+        final ArrayList<String> prefixes = SmartDialPrefix.generateNamePrefixes(name, 10);
+        assertEquals(10, prefixes.size());
+        // The full name, the last token and the initials are kept before the middle tokens
+        assertTrue(prefixes.contains("22233344455566677778889999"));
+        assertTrue(prefixes.contains("9999"));
+        assertTrue(prefixes.contains("89999"));
+        assertFalse(prefixes.contains("44455566677778889999"));
+        assertEquals(19, SmartDialPrefix.generateNamePrefixes(name, 100).size());
+    }
+
+    public void testNumberSuffixes() {
+        final ArrayList<String> suffixes = SmartDialPrefix.generateNumberSuffixes("650-555-1234");
+        assertEquals(6, suffixes.size());
+        assertEquals("505551234", suffixes.get(0));
+        assertEquals("1234", suffixes.get(5));
+        assertTrue(SmartDialPrefix.generateNumberSuffixes("1234").isEmpty());
+        assertTrue(SmartDialPrefix.generateNumberSuffixes("").isEmpty());
+    }
+
+    public void testPutForNumberInfixes() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber contactno1 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "510-527-2357", 0,  "James");
+        final ContactNumber contactno2 = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "+1-650-292-2323", 1, "Lara");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        assertTrue(getInfixMatchesFromDb("2357").contains(contactno1));
+        assertTrue(getInfixMatchesFromDb("5272357").contains(contactno1));
+        assertFalse(getInfixMatchesFromDb("2357").contains(contactno2));
+        assertTrue(getInfixMatchesFromDb("2922323").contains(contactno2));
+        assertTrue(getInfixMatchesFromDb("2323").contains(contactno2));
+
+        // Queries shorter than the minimum length, or matchers without infix matching, only
+        // match prefixes
+        assertFalse(getInfixMatchesFromDb("357").contains(contactno1));
+        assertFalse(getLooseMatchesFromDb("2357").contains(contactno1));
+
+        // Prefix matches rank before infix matches, "Lara" corresponds to 5272
+        final ArrayList<ContactNumber> result = getInfixMatchesFromDb("5272");
+        assertEquals(2, result.size());
+        assertEquals(contactno2, result.get(0));
+        assertEquals(contactno1, result.get(1));
+    }
+
+    public void testInfixMatchesSkipRowsOfContactsAlreadyFound() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        // A contact sorting first, with more matching numbers than the first rows read
+        for (int i = 0; i < DialerDatabaseHelper.MAX_ENTRIES + 5; i++) {
+            contactCursor.addRow(new Object[]{i, "", "", "650235" + (700 + i), 0, "0", "Aaron",
+                    0, 0, 0, 0, 0, 0, 0});
+        }
+        nameCursor.addRow(new Object[]{"Aaron", 0});
+        final ContactNumber zed = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "510-527-2357", 100, "Zed");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final ArrayList<ContactNumber> result = getInfixMatchesFromDb("2357");
+        assertEquals(2, result.size());
+        assertEquals("Aaron", result.get(0).displayName);
+        assertEquals(zed, result.get(1));
+    }
+
+    public void testFuzzyQueries() {
+        final SmartDialTrie.Builder builder = new SmartDialTrie.Builder(20);
+        builder.addRow(new ContactNumber(0, 0, "Jason Smith", "510-527-2357", "0", 0));
+        builder.addRow(new ContactNumber(1, 1, "Sarah Smith", "77212862357", "1", 0));
+        final SmartDialTrie trie = builder.build();
+
+        // 52766 corresponds to "Jason". 9 is next to 6 on the dialpad, 1 is not
+        assertTrue(trie.findFuzzyQueries("52769").contains("52766"));
+        assertFalse(trie.findFuzzyQueries("52761").contains("52766"));
+        // Swapped, extra and missing digits
+        assertTrue(trie.findFuzzyQueries("25766").contains("52766"));
+        assertTrue(trie.findFuzzyQueries("527366").contains("52766"));
+        assertTrue(trie.findFuzzyQueries("5766").contains("52766"));
+        // Exact queries, their prefixes and their extensions are left out
+        assertFalse(trie.findFuzzyQueries("5276").contains("52766"));
+        assertFalse(trie.findFuzzyQueries("52766").contains("5276"));
+        assertTrue(trie.findFuzzyQueries("999").isEmpty());
+    }
+
+    public void testFuzzyMatchesRankAfterExactMatches() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final ContactNumber jason = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "510-527-2357", 0,  "Jason");
+        final ContactNumber jasmyn = constructNewContactWithDummyIds(contactCursor, nameCursor,
+                "650-292-2323", 1, "Jasmyn");
+
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.rebuildSmartDialTrie(db);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        // "Jason" corresponds to 52766, "Jasmyn" to 527696
+        final ArrayList<ContactNumber> result = getFuzzyMatchesFromDb("52766");
+        assertEquals(2, result.size());
+        assertEquals(jason, result.get(0));
+        assertEquals(jasmyn, result.get(1));
+        assertEquals(jason, getFuzzyMatchesFromDb("52769").get(1));
+        assertTrue(getFuzzyMatchesFromDb("25766").contains(jason));
+        // Queries longer than the trie depth are matched against the candidates of their prefix
+        assertTrue(getFuzzyMatchesFromDb("5106272").contains(jason));
+        assertFalse(getFuzzyMatchesFromDb("5106272").contains(jasmyn));
+
+        // Fuzzy matching is off by default
+        assertFalse(getLooseMatchesFromDb("52766").contains(jasmyn));
+        assertFalse(getLooseMatchesFromDb("25766").contains(jason));
+    }
+
+    private ArrayList<ContactNumber> getFuzzyMatchesFromDb(String query) {
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                SmartDialPrefix.getMap());
+        nameMatcher.setFuzzyMatching(true);
+        final ArrayList<ContactNumber> result = mTestHelper.getLooseMatches(query, nameMatcher);
+        assertEquals(query, nameMatcher.getQuery());
+        return result;
+    }
+
+    private ArrayList<ContactNumber> getInfixMatchesFromDb(String query) {
+        final SmartDialNameMatcher nameMatcher = new SmartDialNameMatcher(query,
+                SmartDialPrefix.getMap());
+        nameMatcher.setNumberInfixMatching(true);
+        return mTestHelper.getLooseMatches(query, nameMatcher);
+    }
+
+    /**
+     * Benchmarks the size of the prefix table for a synthetic address book of 50000 contacts.
+     * The number of rows and the size of the database are written to the log.
+     */
+    @LargeTest
+    public void testPrefixTableSizeOfLargeAddressBook() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        final int contactCount = 50000;
+        final int expectedRows = constructLargeAddressBook(contactCursor, nameCursor,
+                contactCount);
+
+        final long startMillis = System.currentTimeMillis();
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final int rows = mTestHelper.countPrefixTableRows(db);
+        final long bytes = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) *
+                DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        Log.i("SmartDialPrefixTest", contactCount + " contacts: " + rows + " prefix rows, " +
+                bytes + " bytes, inserted in " + elapsedMillis + " ms");
+        assertEquals(expectedRows, rows);
+    }
+
+    /**
+     * Benchmarks fuzzy matching on the synthetic address book of
+     * {@link #testPrefixTableSizeOfLargeAddressBook}, with queries as long as a phone number. The
+     * corrected queries are answered from the trie, so a key press never runs a database query
+     * per correction. The time taken is written to the log.
+     */
+    @LargeTest
+    public void testFuzzyMatchesOfLargeAddressBook() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructLargeAddressBook(contactCursor, nameCursor, 50000);
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.rebuildSmartDialTrie(db);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final Random random = new Random(1);
+        final int queryCount = 200;
+        final String[] queries = new String[queryCount];
+        for (int i = 0; i < queryCount; i++) {
+            final StringBuilder query = new StringBuilder("1650");
+            final int length = 3 + random.nextInt(9);
+            while (query.length() < length) {
+                query.append(random.nextInt(10));
+            }
+            query.setLength(length);
+            queries[i] = query.toString();
+        }
+
+        final long startMillis = System.currentTimeMillis();
+        for (String query : queries) {
+            assertTrue(getFuzzyMatchesFromDb(query).size() <= DialerDatabaseHelper.MAX_ENTRIES);
+        }
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+        Log.i("SmartDialPrefixTest", queryCount + " fuzzy queries in " + elapsedMillis + " ms");
+    }
+
+    /**
+     * Benchmarks number infix matching on the synthetic address book of
+     * {@link #testPrefixTableSizeOfLargeAddressBook}, whose 50000 numbers share their area code.
+     * Queries of repeated digits are contained in many numbers. The time taken is written to the
+     * log.
+     */
+    @LargeTest
+    public void testInfixMatchesOfLargeAddressBook() {
+        final SQLiteDatabase db = mTestHelper.getWritableDatabase();
+        final MatrixCursor nameCursor =  constructNewNameCursor();
+        final MatrixCursor contactCursor = constructNewContactCursor();
+        constructLargeAddressBook(contactCursor, nameCursor, 50000);
+        mTestHelper.insertUpdatedContactsAndNumberPrefix(db, contactCursor, Long.valueOf(0));
+        mTestHelper.insertNamePrefixes(db, nameCursor);
+        mTestHelper.rebuildSmartDialTrie(db);
+
+        nameCursor.close();
+        contactCursor.close();
+
+        final Random random = new Random(2);
+        final int queryCount = 200;
+        final String[] queries = new String[queryCount];
+        for (int i = 0; i < queryCount; i++) {
+            final StringBuilder query = new StringBuilder();
+            final int length = 4 + random.nextInt(4);
+            if (i < 10) {
+                // Repeated digits, such as 0000
+                for (int j = 0; j < length; j++) {
+                    query.append(i);
+                }
+            } else {
+                for (int j = 0; j < length; j++) {
+                    query.append(random.nextInt(10));
+                }
+            }
+            queries[i] = query.toString();
+        }
+
+        final long startMillis = System.currentTimeMillis();
+        for (String query : queries) {
+            assertTrue(getInfixMatchesFromDb(query).size() <= DialerDatabaseHelper.MAX_ENTRIES);
+        }
+        final long elapsedMillis = System.currentTimeMillis() - startMillis;
+        Log.i("SmartDialPrefixTest", queryCount + " infix queries in " + elapsedMillis + " ms");
+    }
+
+    /**
+     * Adds a synthetic address book with a mix of names, initials and long business names, and
+     * numbers in the same area code, to the given cursors.
+     *
+     * @return The number of prefix table rows expected for the contacts.
+     */
+    private int constructLargeAddressBook(MatrixCursor contactCursor, MatrixCursor nameCursor,
+            int contactCount) {
+        final String[] firstNames = new String[] {"James", "Mary", "John", "Patricia", "Robert",
+                "Jennifer", "Michael", "Linda", "William", "Elizabeth", "David", "Barbara", "Wei",
+                "Maria", "Jose", "Anna", "Ahmed", "Fatima", "Juan", "Olga"};
+        final String[] lastNames = new String[] {"Smith", "Johnson", "Williams", "Brown", "Jones",
+                "Garcia", "Miller", "Davis", "Rodriguez", "Martinez", "Wang", "Li", "Kim", "Nguyen",
+                "Muller", "Rossi", "Silva", "Ivanova", "Kowalski", "Van der Berg"};
+        final Random random = new Random(0);
+
+        int expectedRows = 0;
+        for (int i = 0; i < contactCount; i++) {
+            final StringBuilder name = new StringBuilder();
+            final int style = random.nextInt(20);
+            if (style == 0) {
+                // Businesses with long names
+                for (int j = 0; j < 6; j++) {
+                    name.append(lastNames[random.nextInt(lastNames.length)]).append(' ');
+                }
+                name.append("Holdings Inc.");
+            } else if (style < 3) {
+                // Initials, such as "J. R. Smith"
+                name.append(firstNames[random.nextInt(firstNames.length)].charAt(0))
+                        .append(". ")
+                        .append(firstNames[random.nextInt(firstNames.length)].charAt(0))
+                        .append(". ")
+                        .append(lastNames[random.nextInt(lastNames.length)]);
+            } else {
+                name.append(firstNames[random.nextInt(firstNames.length)]).append(' ');
+                if (style < 8) {
+                    name.append(firstNames[random.nextInt(firstNames.length)]).append(' ');
+                }
+                name.append(lastNames[random.nextInt(lastNames.length)]);
+            }
+            final String number = "+1650" + (2000000 + random.nextInt(8000000));
+            constructNewContactWithDummyIds(contactCursor, nameCursor, number, i,
+                    name.toString());
+            expectedRows += countDistinctKeys(SmartDialPrefix.parseToNumberTokens(number));
+            expectedRows += countDistinctKeys(
+                    SmartDialPrefix.generateNamePrefixes(name.toString()));
+        }
+
+        return expectedRows;
+    }
+
+    private static int countDistinctKeys(ArrayList<String> prefixes) {
+        final HashSet<Long> keys = new HashSet<Long>();
+        for (String prefix : prefixes) {
+            keys.add(DialerDatabaseHelper.packPrefix(prefix));
+        }
+        return keys.size();
+    }
+
     public void testParseInfo() {
         final String name = "Mcdonald Jamie-Cullum";
         final ArrayList<String> info = SmartDialPrefix.parseToIndexTokens(name);
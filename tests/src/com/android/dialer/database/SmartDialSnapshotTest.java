@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.dialer.database.DialerDatabaseHelper.ContactNumber;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class SmartDialSnapshotTest extends TestCase {
+    private static final long UPDATE_MILLIS = 1234L;
+
+    private static final String[] QUERIES = new String[] {"", "5", "76", "654", "510", "3684",
+            "5276676484", "999"};
+
+    private File mFile;
+    private SmartDialSnapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("snapshot", ".smartdial");
+        mSnapshot = new SmartDialSnapshot(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() {
+        final SmartDialTrie trie = buildTrie();
+        assertTrue(mSnapshot.write(trie, UPDATE_MILLIS));
+
+        final SmartDialTrie read = mSnapshot.read(UPDATE_MILLIS);
+        assertNotNull(read);
+        assertEquals(trie.getNodeCount(), read.getNodeCount());
+        for (String query : QUERIES) {
+            assertEquals(query, trie.getSupersetRows(query), read.getSupersetRows(query));
+        }
+    }
+
+    public void testOutOfDateSnapshotIsIgnored() {
+        assertTrue(mSnapshot.write(buildTrie(), UPDATE_MILLIS));
+        assertNull(mSnapshot.read(UPDATE_MILLIS + 1));
+        assertFalse(mFile.exists());
+    }
+
+    public void testCorruptSnapshotIsIgnored() throws Exception {
+        assertTrue(mSnapshot.write(buildTrie(), UPDATE_MILLIS));
+
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(file.length() - 5);
+            final int value = file.read();
+            file.seek(file.length() - 5);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        assertNull(mSnapshot.read(UPDATE_MILLIS));
+        assertFalse(mFile.exists());
+    }
+
+    public void testTruncatedSnapshotIsIgnored() throws Exception {
+        assertTrue(mSnapshot.write(buildTrie(), UPDATE_MILLIS));
+
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() / 2);
+        } finally {
+            file.close();
+        }
+
+        assertNull(mSnapshot.read(UPDATE_MILLIS));
+    }
+
+    private static SmartDialTrie buildTrie() {
+        final SmartDialTrie.Builder builder = new SmartDialTrie.Builder(2);
+        builder.addRow(new ContactNumber(0, 0, "Jason Smith", "510-527-2357", "0", 0));
+        builder.addRow(new ContactNumber(1, 1, "Martin Jr Harry", "+13684976334", "1", 0));
+        builder.addRow(new ContactNumber(2, 2, "Sarah Smith", "77212862357", "2", 3));
+        builder.addRow(new ContactNumber(0, 3, "Jason Smith", "5276676484", "0", 0));
+        builder.addRow(new ContactNumber(3, 4, "Sam Smythe", "650-555-1212", "3", 0));
+        return builder.build();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.database;
+
+import android.database.ContentObserver;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link SmartDialSyncScheduler}. The database updates are counted instead of
+ * being run.
+ */
+@MediumTest
+public class SmartDialSyncSchedulerTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    /** Counts the registrations of the scheduler instead of observing the contacts. */
+    private final class TestSmartDialSyncScheduler extends SmartDialSyncScheduler {
+        int registrationCount;
+
+        TestSmartDialSyncScheduler() {
+            super(mThread.getLooper(), getContext(), mDatabaseHelper);
+        }
+
+        @Override
+        void registerContactsObserver(ContentObserver observer) {
+            registrationCount++;
+        }
+    }
+
+    private final Semaphore mSyncs = new Semaphore(0);
+
+    private HandlerThread mThread;
+    private DialerDatabaseHelper mDatabaseHelper;
+    private TestSmartDialSyncScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("SmartDialSyncSchedulerTest");
+        mThread.start();
+        mDatabaseHelper = new DialerDatabaseHelper(getContext(), null) {
+            @Override
+            void syncSmartDialDatabase() {
+                mSyncs.release();
+            }
+        };
+        mScheduler = new TestSmartDialSyncScheduler();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.removeMessages(SmartDialSyncScheduler.MSG_SYNC);
+        mThread.quit();
+        super.tearDown();
+    }
+
+    public void testBurstOfChangesIsCoalesced() throws Exception {
+        final long startMillis = SystemClock.uptimeMillis();
+        for (int i = 0; i < 10; i++) {
+            // Each change postpones the update until the contacts are quiet again
+            assertEquals(SmartDialSyncScheduler.QUIET_PERIOD_MS,
+                    scheduleSync(startMillis + i * 100));
+        }
+
+        assertTrue(mSyncs.tryAcquire(SmartDialSyncScheduler.QUIET_PERIOD_MS + TIMEOUT_MS,
+                TimeUnit.MILLISECONDS));
+        assertFalse(mSyncs.tryAcquire(SmartDialSyncScheduler.QUIET_PERIOD_MS,
+                TimeUnit.MILLISECONDS));
+    }
+
+    public void testDelayIsCappedAfterFirstChange() throws Exception {
+        final long startMillis = SystemClock.uptimeMillis();
+        final long maxDelayMillis = SmartDialSyncScheduler.MAX_SYNC_DELAY_MS;
+        assertEquals(SmartDialSyncScheduler.QUIET_PERIOD_MS, scheduleSync(startMillis));
+        assertEquals(SmartDialSyncScheduler.QUIET_PERIOD_MS,
+                scheduleSync(startMillis + maxDelayMillis / 2));
+        assertEquals(1000, scheduleSync(startMillis + maxDelayMillis - 1000));
+        assertEquals(0, scheduleSync(startMillis + maxDelayMillis + 1000));
+
+        // Once the update has run, the next change starts a new quiet period
+        assertTrue(mSyncs.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(SmartDialSyncScheduler.QUIET_PERIOD_MS,
+                scheduleSync(startMillis + maxDelayMillis + 2000));
+    }
+
+    public void testStartRegistersOnce() throws Exception {
+        mScheduler.start();
+        mScheduler.start();
+        assertEquals(1, mScheduler.registrationCount);
+
+        // Changes made while the process was not running are applied by a single update
+        assertTrue(mSyncs.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(mSyncs.tryAcquire(SmartDialSyncScheduler.QUIET_PERIOD_MS,
+                TimeUnit.MILLISECONDS));
+    }
+
+    /** Schedules an update on the thread of the scheduler, and returns its delay. */
+    private long scheduleSync(final long nowMillis) throws Exception {
+        final FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return mScheduler.scheduleSync(nowMillis);
+            }
+        });
+        mScheduler.post(task);
+        return task.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+}
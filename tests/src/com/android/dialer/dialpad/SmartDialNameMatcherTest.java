@@ -23,6 +23,7 @@ import android.test.AndroidTestCase;
 
 import com.android.dialer.dialpad.SmartDialNameMatcher;
 import com.android.dialer.dialpad.SmartDialPrefix;
+import com.android.dialer.dialpad.SmartDialPrefix.PhoneNumberTokens;
 
 import java.text.Normalizer;
 import java.util.ArrayList;
@@ -163,6 +164,29 @@ public class SmartDialNameMatcherTest extends TestCase {
     }
 
 
+    public void testMatches_reusedMatcher() {
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher("957");
+        assertTrue(matcher.matches("William John Smith"));
+        assertEquals(3, matcher.getMatchPositionCount());
+        assertEquals(13, matcher.getMatchStart(2));
+        assertEquals(14, matcher.getMatchEnd(2));
+        assertEquals("100000001000010000", matcher.getNameMatchPositionsInString());
+
+        // A longer query grows the buffers, a failed match clears the previous positions
+        matcher.setQuery("9455426576");
+        assertTrue(matcher.matches("William     J  Smith"));
+        assertEquals(1, matcher.getMatchPositionCount());
+        assertEquals(0, matcher.getMatchStart(0));
+        assertEquals(17, matcher.getMatchEnd(0));
+        assertFalse(matcher.matches("John Smith"));
+        assertEquals(0, matcher.getMatchPositionCount());
+        assertEquals("0000000000", matcher.getNameMatchPositionsInString());
+
+        assertTrue(matcher.isNumberMatch("+1-945-542-6576", "9455426576"));
+        assertEquals(3, matcher.getNumberMatchStart());
+        assertEquals(15, matcher.getNumberMatchEnd());
+    }
+
     public void testMatches_NumberBasic() {
         // Simple basic examples that start the match from the start of the number
         checkMatchesNumber("5103337596", "510", true, 0, 3);
@@ -231,6 +255,49 @@ public class SmartDialNameMatcherTest extends TestCase {
         checkMatchesNumber("(650) 292 2323", "6502922323", true, false, 0, 14);
     }
 
+    public void testParsePhoneNumber() {
+        SmartDialPrefix.setUserInNanpRegion(true);
+        checkParsePhoneNumber("+1-510-333-7596", 2, 6);
+        checkParsePhoneNumber("1-510-333-7596", 2, 5);
+        checkParsePhoneNumber("(650) 292 2323", 0, 4);
+        checkParsePhoneNumber("+44 20 7946 0958", 3, 0);
+        checkParsePhoneNumber("+854 1111 2222", 0, 0);
+        // The area code is not split off if its digits are separated
+        checkParsePhoneNumber("6 50 292 2323", 0, 0);
+
+        SmartDialPrefix.setUserInNanpRegion(false);
+        checkParsePhoneNumber("+1-510-333-7596", 2, 0);
+        checkParsePhoneNumber("1-510-333-7596", 0, 0);
+
+        // Parsing a number again reuses the previous result
+        final String number = "+1-650-292-2323";
+        assertSame(SmartDialPrefix.parsePhoneNumber(number),
+                SmartDialPrefix.parsePhoneNumber(new String(number)));
+    }
+
+    public void testMatches_NumberInfix() {
+        final SmartDialNameMatcher matcher = new SmartDialNameMatcher("3375");
+        assertFalse(matcher.isNumberMatch("+1-510-333-7596", "3375"));
+
+        matcher.setNumberInfixMatching(true);
+        assertTrue(matcher.isNumberMatch("+1-510-333-7596", "3375"));
+        assertEquals(8, matcher.getNumberMatchStart());
+        assertEquals(13, matcher.getNumberMatchEnd());
+        assertTrue(matcher.isNumberMatch("+1-510-333-7596", "7596"));
+        assertEquals(11, matcher.getNumberMatchStart());
+        assertEquals(15, matcher.getNumberMatchEnd());
+        assertFalse(matcher.isNumberMatch("+1-510-333-7596", "3376"));
+        // Queries shorter than the minimum length only match prefixes
+        assertFalse(matcher.isNumberMatch("+1-510-333-7596", "596"));
+    }
+
+
+    private void checkParsePhoneNumber(String number, int countryCodeOffset,
+            int nanpCodeOffset) {
+        final PhoneNumberTokens tokens = SmartDialPrefix.parsePhoneNumber(number);
+        assertEquals(number, countryCodeOffset, tokens.countryCodeOffset);
+        assertEquals(number, nanpCodeOffset, tokens.nanpCodeOffset);
+    }
 
     private void checkMatchesNumber(String number, String query, boolean expectedMatches,
             int matchStart, int matchEnd) {
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.dialpad;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class SmartDialQuerySchedulerTest extends TestCase {
+    private SmartDialQueryScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new SmartDialQueryScheduler();
+    }
+
+    public void testWindowAdaptsToTypingSpeed() {
+        mScheduler.onQueryChanged(10000);
+        assertEquals(0, mScheduler.getCoalesceWindowMillis());
+
+        mScheduler.onQueryChanged(10080);
+        assertEquals(100, mScheduler.getCoalesceWindowMillis());
+        mScheduler.onQueryChanged(10160);
+        assertEquals(100, mScheduler.getCoalesceWindowMillis());
+
+        /** Slow typing is not worth waiting for. */
+        mScheduler.onQueryChanged(10560);
+        assertEquals(0, mScheduler.getCoalesceWindowMillis());
+
+        /** A pause starts a new burst of typing. */
+        mScheduler.onQueryChanged(20000);
+        assertEquals(0, mScheduler.getCoalesceWindowMillis());
+    }
+
+    public void testSupersededQueryIsDropped() {
+        final int first = mScheduler.onQueryChanged();
+        final int second = mScheduler.onQueryChanged();
+
+        try {
+            mScheduler.acquire(first, new CancellationSignal());
+            fail("Superseded query acquired the scheduler");
+        } catch (OperationCanceledException expected) {
+        }
+        mScheduler.acquire(second, new CancellationSignal());
+        mScheduler.release();
+    }
+
+    public void testNewQueryCancelsRunningQuery() {
+        final CancellationSignal running = new CancellationSignal();
+        mScheduler.acquire(mScheduler.onQueryChanged(), running);
+        assertFalse(running.isCanceled());
+
+        mScheduler.onQueryChanged();
+        assertTrue(running.isCanceled());
+        mScheduler.release();
+    }
+
+    public void testOnlyOneQueryRuns() throws Exception {
+        final int first = mScheduler.onQueryChanged();
+        mScheduler.acquire(first, new CancellationSignal());
+
+        /** A reload of the running query waits until it has finished. */
+        final boolean[] acquired = new boolean[1];
+        final Thread reload = new Thread() {
+            @Override
+            public void run() {
+                mScheduler.acquire(first, new CancellationSignal());
+                synchronized (acquired) {
+                    acquired[0] = true;
+                }
+                mScheduler.release();
+            }
+        };
+        reload.start();
+        reload.join(100);
+        synchronized (acquired) {
+            assertFalse(acquired[0]);
+        }
+
+        mScheduler.release();
+        reload.join();
+        synchronized (acquired) {
+            assertTrue(acquired[0]);
+        }
+    }
+
+    public void testCanceledLoadStopsWaiting() throws Exception {
+        final int first = mScheduler.onQueryChanged();
+        mScheduler.acquire(first, new CancellationSignal());
+
+        final CancellationSignal signal = new CancellationSignal();
+        final boolean[] canceled = new boolean[1];
+        final Thread reload = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mScheduler.acquire(first, signal);
+                    mScheduler.release();
+                } catch (OperationCanceledException e) {
+                    canceled[0] = true;
+                }
+            }
+        };
+        reload.start();
+        signal.cancel();
+        reload.join();
+        assertTrue(canceled[0]);
+        mScheduler.release();
+    }
+}